@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Realistic shapes of the events logged by applications, shared by the benchmarks. Messages, MDC
+ * maps and throwables are created once; each call creates a new LoggingEvent, so the values it
+ * caches (rendered message, location) are computed during the benchmark as they are in an
+ * appender.
+ */
+final class BenchmarkEvents {
+
+    /** A short INFO message, without MDC or throwable. */
+    static final String PLAIN = "plain";
+
+    /** A WARN message with 20 MDC entries. */
+    static final String HEAVY_MDC = "heavyMdc";
+
+    /** An ERROR message with an exception chained four levels deep. */
+    static final String CHAINED_EXCEPTION = "chainedException";
+
+    /** A short INFO message dense in quotes and backslashes. */
+    static final String ESCAPED = "escaped";
+
+    /** An INFO message of 4 KB, with quotes and backslashes. */
+    static final String LONG_MESSAGE = "longMessage";
+
+    private static final Logger LOGGER = Logger.getLogger("org.example.orders.OrderService");
+
+    private final Level level;
+
+    private final String message;
+
+    private final Map<String, Object> mdc;
+
+    private final ThrowableInformation throwableInfo;
+
+    BenchmarkEvents(String shape) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("requestId", "6f1c2a9e-3b7d-4c55-9e0a-0d5b7f2c1e44");
+        ThrowableInformation throwable = null;
+        if (PLAIN.equals(shape)) {
+            level = Level.INFO;
+            message = "Order 4711 accepted for customer 1337";
+        } else if (HEAVY_MDC.equals(shape)) {
+            level = Level.WARN;
+            message = "Payment provider responded slowly";
+            for (int i = 0; i < 19; i++) {
+                properties.put("context" + i, "value-" + i + "-" + Integer.toHexString(i * 7919));
+            }
+        } else if (CHAINED_EXCEPTION.equals(shape)) {
+            level = Level.ERROR;
+            message = "Failed to place order 4711";
+            throwable = new ThrowableInformation(chain(4));
+        } else if (ESCAPED.equals(shape)) {
+            level = Level.INFO;
+            message = "Saved \"C:\\Users\\svc\\orders.json\" as '{\"id\":\"4711\"}'";
+        } else if (LONG_MESSAGE.equals(shape)) {
+            level = Level.INFO;
+            StringBuilder sb = new StringBuilder(4096);
+            while (sb.length() < 4096) {
+                sb.append("Request \"GET /orders?customer=1337\" from C:\\clients\\web ");
+            }
+            message = sb.toString();
+        } else {
+            throw new IllegalArgumentException("Unknown event shape: " + shape);
+        }
+        mdc = properties;
+        throwableInfo = throwable;
+    }
+
+    /**
+     * @return A new event of this shape
+     */
+    LoggingEvent newEvent() {
+        return new LoggingEvent(Logger.class.getName(), LOGGER, System.currentTimeMillis(), level,
+                message, "http-nio-8080-exec-7", throwableInfo, null, null, mdc);
+    }
+
+    private static Throwable chain(int depth) {
+        Throwable cause = null;
+        for (int i = 0; i < depth; i++) {
+            cause = nest(20, i, cause);
+        }
+        return cause;
+    }
+
+    private static Throwable nest(int frames, int level, Throwable cause) {
+        // Grows the stack so each throwable has a realistic number of frames
+        if (frames > 0) {
+            return nest(frames - 1, level, cause);
+        }
+        return new IllegalStateException("Failure at level " + level, cause);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.DBObjectCodec;
+import com.mongodb.MongoClient;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.bson.BsonBinaryWriter;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of LoggingEventBsonifierImpl and of encoding its documents to bytes the way the
+ * driver does when inserting them. Run with the jmh profile, e.g.
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="BsonifyBenchmark -prof gc"
+ * </pre>
+ *
+ * newEvent is the cost of creating the event itself, included in the other benchmarks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BsonifyBenchmark {
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.HEAVY_MDC, BenchmarkEvents.CHAINED_EXCEPTION,
+            BenchmarkEvents.LONG_MESSAGE })
+    public String shape;
+
+    private BenchmarkEvents events;
+
+    private LoggingEventBsonifierImpl bsonifier;
+
+    private DBObjectCodec codec;
+
+    private EncoderContext encoderContext;
+
+    @Setup
+    public void setUp() {
+        events = new BenchmarkEvents(shape);
+        bsonifier = new LoggingEventBsonifierImpl();
+        codec = (DBObjectCodec) MongoClient.getDefaultCodecRegistry().get(DBObject.class);
+        encoderContext = EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+    }
+
+    @Benchmark
+    public LoggingEvent newEvent() {
+        return events.newEvent();
+    }
+
+    @Benchmark
+    public BSONObject bsonify() {
+        return bsonifier.bsonify(events.newEvent());
+    }
+
+    @Benchmark
+    public int encode() {
+        DBObject document = (DBObject) bsonifier.bsonify(events.newEvent());
+        // As MongoCollection.insertMany does before encoding the batch
+        codec.generateIdIfAbsentFromDocument(document);
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buffer), document, encoderContext);
+        return buffer.getSize();
+    }
+}
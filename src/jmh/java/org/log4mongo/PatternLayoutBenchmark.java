@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.log4mongo.contrib.HostInfoPatternLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the pattern layout appenders: formatting the JSON string, parsing it back into a
+ * document as layouts without a document template are, and formatting the document directly from
+ * the template of a MongoDbPatternLayout, with string or native dates. bsonifyStructured is the
+ * LoggingEventBsonifierImpl of MongoDbAppender for the same events.
+ * <p>
+ * All threads share one layout, as they share the layout of an appender. MultiThreaded runs the
+ * same benchmarks with 4 threads, e.g.
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="PatternLayoutBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class PatternLayoutBenchmark {
+
+    /** Three fields. */
+    static final String SMALL = "small";
+
+    /** Twelve fields, nested, with MDC values. */
+    static final String LARGE = "large";
+
+    /** The host fields of HostInfoPatternLayout. */
+    static final String HOST_INFO = "hostInfo";
+
+    private static final String SMALL_PATTERN = "{\"timestamp\":\"%d{ISO8601}\",\"level\":\"%p\","
+            + "\"message\":\"%m\"}";
+
+    private static final String LARGE_PATTERN = "{\"timestamp\":\"%d{ISO8601}\",\"level\":\"%p\","
+            + "\"thread\":\"%t\",\"message\":\"%m\",\"logger\":{\"name\":\"%c\","
+            + "\"short\":\"%c{1}\"},\"context\":{\"requestId\":\"%X{requestId}\","
+            + "\"context1\":\"%X{context1}\",\"context2\":\"%X{context2}\"},"
+            + "\"ndc\":\"%x\",\"relative\":\"%r\",\"application\":\"orders\",\"version\":2}";
+
+    private static final String HOST_INFO_PATTERN = "{\"timestamp\":\"%d{ISO8601}\","
+            + "\"level\":\"%p\",\"message\":\"%m\",\"host\":{\"name\":\"%H\","
+            + "\"process\":\"%V\",\"ip_address\":\"%I\"}}";
+
+    @Param({ SMALL, LARGE, HOST_INFO })
+    public String pattern;
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.ESCAPED, BenchmarkEvents.LONG_MESSAGE })
+    public String message;
+
+    private BenchmarkEvents events;
+
+    private MongoDbPatternLayout layout;
+
+    private String[] datePath;
+
+    private LoggingEventBsonifierImpl bsonifier;
+
+    @Setup
+    public void setUp() {
+        events = new BenchmarkEvents(message);
+        if (SMALL.equals(pattern)) {
+            layout = new MongoDbPatternLayout(SMALL_PATTERN);
+        } else if (LARGE.equals(pattern)) {
+            layout = new MongoDbPatternLayout(LARGE_PATTERN);
+        } else {
+            layout = new HostInfoPatternLayout();
+            layout.setConversionPattern(HOST_INFO_PATTERN);
+        }
+        datePath = MongoDbPatternLayoutDateAppender.getDatePath(layout.getConversionPattern());
+        bsonifier = new LoggingEventBsonifierImpl();
+    }
+
+    @Benchmark
+    public String format() {
+        return layout.format(events.newEvent());
+    }
+
+    /**
+     * The JSON round trip of MongoDbPatternLayoutAppender for layouts without a document template.
+     */
+    @Benchmark
+    public Object formatAndParse() {
+        return JSON.parse(layout.format(events.newEvent()));
+    }
+
+    /**
+     * The JSON round trip of MongoDbPatternLayoutDateAppender for layouts without a document
+     * template.
+     */
+    @Benchmark
+    public Object formatAndParseWithDate() {
+        LoggingEvent event = events.newEvent();
+        BSONObject bson = (BSONObject) JSON.parse(layout.format(event));
+        MongoDbPatternLayoutDateAppender.putDate(bson, datePath, event.getTimeStamp());
+        return bson;
+    }
+
+    /**
+     * MongoDbPatternLayoutAppender with a MongoDbPatternLayout.
+     */
+    @Benchmark
+    public DBObject formatBson() {
+        return layout.formatBson(events.newEvent());
+    }
+
+    /**
+     * MongoDbPatternLayoutDateAppender with a MongoDbPatternLayout.
+     */
+    @Benchmark
+    public DBObject formatBsonWithDate() {
+        return layout.formatBson(events.newEvent(), true);
+    }
+
+    @Benchmark
+    public BSONObject bsonifyStructured() {
+        return bsonifier.bsonify(events.newEvent());
+    }
+
+    /**
+     * The same benchmarks, with 4 threads sharing the layout.
+     */
+    @Threads(4)
+    public static class MultiThreaded extends PatternLayoutBenchmark {
+    }
+}
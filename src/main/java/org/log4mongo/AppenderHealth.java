@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.Priority;
+
+/**
+ * Immutable snapshot of the pressure on the write path of a MongoDbAppender, for application code
+ * that wants to shed optional logging itself before the appender starts blocking or dropping
+ * events.
+ *
+ * @see MongoDbAppender#getHealth()
+ */
+public final class AppenderHealth {
+
+    /**
+     * Overall pressure on the write path.
+     */
+    public enum Pressure {
+        /** Events are stored as fast as they are logged. */
+        NORMAL,
+        /**
+         * The queue is filling up, some events were lost recently or the threshold is raised.
+         * Optional logging should be reduced.
+         */
+        ELEVATED,
+        /**
+         * The queue is nearly full, many events were lost recently or inserts are failing.
+         * Logging should be limited to what is essential.
+         */
+        CRITICAL
+    }
+
+    static final double ELEVATED_QUEUE_FILL = 0.5;
+
+    static final double CRITICAL_QUEUE_FILL = 0.9;
+
+    static final double CRITICAL_DROP_RATE = 0.1;
+
+    private final long timestamp;
+
+    private final double queueFill;
+
+    private final boolean failing;
+
+    private final double dropRate;
+
+    private final double policyDropRate;
+
+    private final Priority configuredThreshold;
+
+    private final Priority effectiveThreshold;
+
+    private final Pressure pressure;
+
+    AppenderHealth(long timestamp, double queueFill, boolean failing, double dropRate,
+            double policyDropRate, Priority configuredThreshold, Priority effectiveThreshold) {
+        this.timestamp = timestamp;
+        this.queueFill = queueFill;
+        this.failing = failing;
+        this.dropRate = dropRate;
+        this.policyDropRate = policyDropRate;
+        this.configuredThreshold = configuredThreshold;
+        this.effectiveThreshold = effectiveThreshold;
+        if (failing || queueFill >= CRITICAL_QUEUE_FILL || dropRate >= CRITICAL_DROP_RATE) {
+            pressure = Pressure.CRITICAL;
+        } else if (queueFill >= ELEVATED_QUEUE_FILL || dropRate > 0
+                || effectiveThreshold != configuredThreshold) {
+            pressure = Pressure.ELEVATED;
+        } else {
+            pressure = Pressure.NORMAL;
+        }
+    }
+
+    /**
+     * @return The time of the snapshot, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The overall pressure on the write path
+     */
+    public Pressure getPressure() {
+        return pressure;
+    }
+
+    /**
+     * @return The number of queued events relative to the buffer size, or 0 if events are stored
+     *         on the logging thread
+     */
+    public double getQueueFill() {
+        return queueFill;
+    }
+
+    /**
+     * Reports what a circuit breaker on the inserts would trip on: true (open) if the appender is
+     * not initialized, or if the inserts of the last second all failed, until an insert succeeds
+     * again.
+     *
+     * @return true if events currently can't be stored
+     */
+    public boolean isFailing() {
+        return failing;
+    }
+
+    /**
+     * @return The fraction of the events passed to the appender over the last ten seconds that
+     *         were lost on the write path: dropped because the queue was full, or failed
+     */
+    public double getDropRate() {
+        return dropRate;
+    }
+
+    /**
+     * Events discarded by policy are not lost to the pressure on the write path, so this rate does
+     * not affect the pressure level.
+     *
+     * @return The fraction of the events passed to the appender over the last ten seconds that
+     *         were shed by threshold escalation or suppressed by rate limits
+     */
+    public double getPolicyDropRate() {
+        return policyDropRate;
+    }
+
+    /**
+     * @return The configured threshold, or the level it is raised to under pressure <i>(may be
+     *         null)</i>.
+     */
+    public Priority getEffectiveThreshold() {
+        return effectiveThreshold;
+    }
+
+    /**
+     * @param priority
+     *            The level of an event
+     * @return true if an event at that level would currently be stored
+     */
+    public boolean isEnabledFor(Priority priority) {
+        return effectiveThreshold == null || priority.isGreaterOrEqual(effectiveThreshold);
+    }
+
+    /**
+     * @param other
+     *            Another snapshot <i>(may be null)</i>.
+     * @return true if the pressure, failing state or effective threshold differ
+     */
+    boolean differsFrom(AppenderHealth other) {
+        return other == null || pressure != other.pressure || failing != other.failing
+                || effectiveThreshold != other.effectiveThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return pressure + " (queue fill " + Math.round(queueFill * 100) + "%, drop rate "
+                + Math.round(dropRate * 100) + "%, policy drop rate "
+                + Math.round(policyDropRate * 100) + "%, " + (failing ? "failing" : "writing")
+                + ", threshold " + effectiveThreshold + ")";
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+/**
+ * Interface implemented by application code that wants to be told when the pressure on the write
+ * path of a MongoDbAppender changes, e.g. to skip building expensive debug payloads before calling
+ * into Log4J.
+ *
+ * @see MongoDbAppender#addHealthListener(AppenderHealthListener)
+ */
+public interface AppenderHealthListener {
+
+    /**
+     * Called on the health monitor thread of the appender when the pressure level, the failing
+     * state or the effective threshold changes. Implementations must return quickly and must not
+     * log through the appender.
+     *
+     * @param previous
+     *            The health before the change
+     * @param current
+     *            The health after the change
+     */
+    void healthChanged(AppenderHealth previous, AppenderHealth current);
+
+}
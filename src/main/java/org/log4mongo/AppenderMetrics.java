@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+import org.log4mongo.HeavyHitterSketch.HeavyHitter;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-path metrics of a BsonAppender. Counters are LongAdders and distributions are
+ * LogLinearHistograms, so recording adds no contention between logging threads and writer
+ * threads.
+ */
+public final class AppenderMetrics implements AppenderMetricsMBean {
+
+    // Number of entries returned by the top loggers attributes
+    static final int TOP_N = 10;
+
+    // Rough heap size of a queued event snapshot, excluding the characters of its message
+    private static final int EVENT_OVERHEAD_BYTES = 256;
+
+    private final BsonAppender appender;
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder shed = new LongAdder();
+
+    private final LongAdder thresholdChanges = new LongAdder();
+
+    private final LongAdder sampledOut = new LongAdder();
+
+    private final LongAdder collapsed = new LongAdder();
+
+    private final LongAdder suppressed = new LongAdder();
+
+    private final LongAdder bytesQueued = new LongAdder();
+
+    private final LongAdder blockedNanos = new LongAdder();
+
+    private final LogLinearHistogram batchSizes = new LogLinearHistogram();
+
+    private final LogLinearHistogram insertNanos = new LogLinearHistogram();
+
+    private final LogLinearHistogram bsonifyNanos = new LogLinearHistogram();
+
+    AppenderMetrics(final BsonAppender appender) {
+        this.appender = appender;
+    }
+
+    /**
+     * Records an event passed to the appender.
+     */
+    public void eventAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * @param count
+     *            The number of events stored successfully
+     */
+    public void eventsWritten(int count) {
+        written.add(count);
+    }
+
+    /**
+     * @param count
+     *            The number of events that could not be BSONified or stored
+     */
+    public void eventsFailed(int count) {
+        failed.add(count);
+    }
+
+    /**
+     * @param count
+     *            The number of events discarded
+     */
+    public void eventsDropped(int count) {
+        dropped.add(count);
+    }
+
+    /**
+     * @param count
+     *            The number of events discarded because they were below the raised threshold
+     */
+    public void eventsShed(int count) {
+        shed.add(count);
+    }
+
+    /**
+     * Records a change of the effective threshold.
+     */
+    public void thresholdChanged() {
+        thresholdChanges.increment();
+    }
+
+    /**
+     * @param count
+     *            The number of events discarded by sampling
+     */
+    public void eventsSampledOut(int count) {
+        sampledOut.add(count);
+    }
+
+    /**
+     * @param count
+     *            The number of repeated events collapsed into burst summaries
+     */
+    public void eventsCollapsed(int count) {
+        collapsed.add(count);
+    }
+
+    /**
+     * @param count
+     *            The number of events suppressed by the rate limits
+     */
+    public void eventsSuppressed(int count) {
+        suppressed.add(count);
+    }
+
+    /**
+     * @param size
+     *            The number of events stored by an insert
+     * @param nanos
+     *            The round-trip time of the insert
+     */
+    public void insertCompleted(int size, long nanos) {
+        batchSizes.record(size);
+        insertNanos.record(nanos);
+    }
+
+    /**
+     * @param nanos
+     *            The time to BSONify an event
+     */
+    public void bsonified(long nanos) {
+        bsonifyNanos.record(nanos);
+    }
+
+    void queued(LoggingEvent snapshot) {
+        bytesQueued.add(estimateSize(snapshot));
+    }
+
+    void dequeued(LoggingEvent snapshot) {
+        bytesQueued.add(-estimateSize(snapshot));
+    }
+
+    void callerBlocked(long nanos) {
+        blockedNanos.add(nanos);
+    }
+
+    private static long estimateSize(LoggingEvent snapshot) {
+        String message = snapshot.getRenderedMessage();
+        return EVENT_OVERHEAD_BYTES + ((message == null) ? 0 : 2L * message.length());
+    }
+
+    /**
+     * @return The distribution of the number of events stored per insert
+     */
+    LogLinearHistogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * @return The distribution of insert round-trip times, in nanoseconds
+     */
+    LogLinearHistogram getInsertNanos() {
+        return insertNanos;
+    }
+
+    /**
+     * @return The distribution of the times to BSONify an event, in nanoseconds
+     */
+    LogLinearHistogram getBsonifyNanos() {
+        return bsonifyNanos;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server. If another MBean is already
+     * registered under the name of the appender, the identity of this instance is added to the
+     * name.
+     *
+     * @param type
+     *            The type key of the ObjectName, e.g. the simple name of the appender class
+     * @return The name the metrics were registered under, or null if registration failed
+     */
+    ObjectName register(String type) {
+        String name = ObjectName.quote((appender.getName() == null) ? "" : appender.getName());
+        return register(this, "org.log4mongo:type=" + type + ",name=" + name, appender.getName());
+    }
+
+    /**
+     * Registers an MBean of an appender with the platform MBean server. If another MBean is
+     * already registered under the name, the identity of the MBean is added to it.
+     *
+     * @param mbean
+     *            The MBean
+     * @param name
+     *            The ObjectName to register the MBean under
+     * @param appenderName
+     *            The name of the appender, for error messages
+     * @return The name the MBean was registered under, or null if registration failed
+     */
+    static ObjectName register(Object mbean, String name, String appenderName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                objectName = new ObjectName(name + ",instance="
+                        + Integer.toHexString(System.identityHashCode(mbean)));
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            LogLog.warn("Can't register MBean " + name + " of appender " + appenderName, e);
+            return null;
+        } catch (SecurityException e) {
+            LogLog.warn("Can't register MBean " + name + " of appender " + appenderName, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param objectName
+     *            A name returned by register <i>(may be null)</i>.
+     */
+    static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LogLog.debug("Can't unregister " + objectName, e);
+        }
+    }
+
+    /**
+     * @return A snapshot of the event counters
+     */
+    Counts getCounts() {
+        return new Counts(this);
+    }
+
+    public long getEventsAccepted() {
+        return accepted.sum();
+    }
+
+    public long getEventsWritten() {
+        return written.sum();
+    }
+
+    public long getEventsFailed() {
+        return failed.sum();
+    }
+
+    public long getEventsDropped() {
+        return dropped.sum();
+    }
+
+    public long getEventsShed() {
+        return shed.sum();
+    }
+
+    public long getThresholdChanges() {
+        return thresholdChanges.sum();
+    }
+
+    public String getEffectiveThreshold() {
+        return String.valueOf(appender.getEffectiveThreshold());
+    }
+
+    public long getEventsSampledOut() {
+        return sampledOut.sum();
+    }
+
+    public long getEventsCollapsed() {
+        return collapsed.sum();
+    }
+
+    public long getEventsSuppressed() {
+        return suppressed.sum();
+    }
+
+    public int getQueueDepth() {
+        return appender.getQueueDepth();
+    }
+
+    public long getBytesQueued() {
+        return Math.max(0, bytesQueued.sum());
+    }
+
+    public long getCallerBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum());
+    }
+
+    public double getBatchSizeMean() {
+        return batchSizes.getMean();
+    }
+
+    public long getBatchSizeP50() {
+        return batchSizes.getPercentile(50);
+    }
+
+    public long getBatchSizeP99() {
+        return batchSizes.getPercentile(99);
+    }
+
+    public long getBatchSizeMax() {
+        return batchSizes.getMax();
+    }
+
+    public long getInsertLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getPercentile(50));
+    }
+
+    public long getInsertLatencyP90Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getPercentile(90));
+    }
+
+    public long getInsertLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getPercentile(99));
+    }
+
+    public long getInsertLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getMax());
+    }
+
+    public long getBsonifyTimeP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(bsonifyNanos.getPercentile(50));
+    }
+
+    public long getBsonifyTimeP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(bsonifyNanos.getPercentile(99));
+    }
+
+    public long getBsonifyTimeMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(bsonifyNanos.getMax());
+    }
+
+    public String[] getTopLoggersByEvents() {
+        LoggerCostTracker tracker = appender.getCostTracker();
+        return (tracker == null) ? new String[0] : toStrings(tracker.topLoggersByEvents(TOP_N));
+    }
+
+    public String[] getTopLoggersByBytes() {
+        LoggerCostTracker tracker = appender.getCostTracker();
+        return (tracker == null) ? new String[0] : toStrings(tracker.topLoggersByBytes(TOP_N));
+    }
+
+    public String[] getTopMdcValuesByEvents() {
+        LoggerCostTracker tracker = appender.getCostTracker();
+        return (tracker == null) ? new String[0] : toStrings(tracker.topMdcValuesByEvents(TOP_N));
+    }
+
+    public String[] getTopMdcValuesByBytes() {
+        LoggerCostTracker tracker = appender.getCostTracker();
+        return (tracker == null) ? new String[0] : toStrings(tracker.topMdcValuesByBytes(TOP_N));
+    }
+
+    private static String[] toStrings(List<HeavyHitter> hitters) {
+        String[] strings = new String[hitters.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = hitters.get(i).toString();
+        }
+        return strings;
+    }
+
+    /**
+     * Immutable snapshot of the event counters of an appender, or of their increase over an
+     * interval. The counters are read one after the other, so a snapshot taken while events are
+     * logged is not atomic.
+     */
+    static final class Counts {
+
+        final long accepted;
+
+        final long written;
+
+        final long failed;
+
+        final long dropped;
+
+        final long shed;
+
+        final long sampledOut;
+
+        final long collapsed;
+
+        final long suppressed;
+
+        final long callerBlockedMillis;
+
+        private Counts(AppenderMetrics metrics) {
+            accepted = metrics.getEventsAccepted();
+            written = metrics.getEventsWritten();
+            failed = metrics.getEventsFailed();
+            dropped = metrics.getEventsDropped();
+            shed = metrics.getEventsShed();
+            sampledOut = metrics.getEventsSampledOut();
+            collapsed = metrics.getEventsCollapsed();
+            suppressed = metrics.getEventsSuppressed();
+            callerBlockedMillis = metrics.getCallerBlockedMillis();
+        }
+
+        private Counts(Counts current, Counts previous) {
+            accepted = current.accepted - previous.accepted;
+            written = current.written - previous.written;
+            failed = current.failed - previous.failed;
+            dropped = current.dropped - previous.dropped;
+            shed = current.shed - previous.shed;
+            sampledOut = current.sampledOut - previous.sampledOut;
+            collapsed = current.collapsed - previous.collapsed;
+            suppressed = current.suppressed - previous.suppressed;
+            callerBlockedMillis = current.callerBlockedMillis - previous.callerBlockedMillis;
+        }
+
+        /**
+         * @param previous
+         *            An earlier snapshot of the same counters <i>(may be null)</i>.
+         * @return The increase of the counters since the earlier snapshot, or this snapshot if
+         *         there is none
+         */
+        Counts since(Counts previous) {
+            return (previous == null) ? this : new Counts(this, previous);
+        }
+    }
+}
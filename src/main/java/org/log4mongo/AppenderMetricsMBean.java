@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+/**
+ * JMX management interface of the write-path metrics of a BsonAppender. MongoDbAppender registers
+ * its metrics as org.log4mongo:type=MongoDbAppender,name=&lt;appender name&gt;.
+ * <p>
+ * Counts and distributions are cumulative since the appender was created. Latencies are measured
+ * with System.nanoTime.
+ */
+public interface AppenderMetricsMBean {
+
+    /**
+     * @return The number of events passed to the appender
+     */
+    long getEventsAccepted();
+
+    /**
+     * @return The number of events stored successfully
+     */
+    long getEventsWritten();
+
+    /**
+     * @return The number of events that could not be BSONified or stored
+     */
+    long getEventsFailed();
+
+    /**
+     * @return The number of events discarded because the buffer was full or the appender closed
+     */
+    long getEventsDropped();
+
+    /**
+     * @return The number of events discarded because they were below the threshold raised under
+     *         pressure
+     */
+    long getEventsShed();
+
+    /**
+     * @return The number of times the threshold was raised or lowered under pressure
+     */
+    long getThresholdChanges();
+
+    /**
+     * @return The configured threshold, or the level it is raised to under pressure
+     */
+    String getEffectiveThreshold();
+
+    /**
+     * @return The number of events discarded by sampling
+     */
+    long getEventsSampledOut();
+
+    /**
+     * @return The number of repeated events collapsed into burst summaries
+     */
+    long getEventsCollapsed();
+
+    /**
+     * @return The number of events suppressed by the rate limits
+     */
+    long getEventsSuppressed();
+
+    /**
+     * @return The number of events queued for the writer threads
+     */
+    int getQueueDepth();
+
+    /**
+     * @return The estimated heap size of the queued events, in bytes
+     */
+    long getBytesQueued();
+
+    /**
+     * @return The total time logging threads waited for space in a full buffer, in milliseconds
+     */
+    long getCallerBlockedMillis();
+
+    /**
+     * @return The mean number of events stored per insert
+     */
+    double getBatchSizeMean();
+
+    /**
+     * @return The median number of events stored per insert
+     */
+    long getBatchSizeP50();
+
+    /**
+     * @return The 99th percentile of the number of events stored per insert
+     */
+    long getBatchSizeP99();
+
+    /**
+     * @return The largest number of events stored by one insert
+     */
+    long getBatchSizeMax();
+
+    /**
+     * @return The median insert round-trip time, in microseconds
+     */
+    long getInsertLatencyP50Micros();
+
+    /**
+     * @return The 90th percentile of the insert round-trip time, in microseconds
+     */
+    long getInsertLatencyP90Micros();
+
+    /**
+     * @return The 99th percentile of the insert round-trip time, in microseconds
+     */
+    long getInsertLatencyP99Micros();
+
+    /**
+     * @return The longest insert round-trip time, in microseconds
+     */
+    long getInsertLatencyMaxMicros();
+
+    /**
+     * @return The median time to BSONify an event, in microseconds
+     */
+    long getBsonifyTimeP50Micros();
+
+    /**
+     * @return The 99th percentile of the time to BSONify an event, in microseconds
+     */
+    long getBsonifyTimeP99Micros();
+
+    /**
+     * @return The longest time to BSONify an event, in microseconds
+     */
+    long getBsonifyTimeMaxMicros();
+
+    /**
+     * @return The loggers that stored the most events over the last five minutes, as
+     *         logger=events
+     */
+    String[] getTopLoggersByEvents();
+
+    /**
+     * @return The loggers that stored the most estimated BSON bytes over the last five minutes, as
+     *         logger=bytes
+     */
+    String[] getTopLoggersByBytes();
+
+    /**
+     * @return The values of the cost tracking MDC key that stored the most events over the last
+     *         five minutes, as value=events
+     */
+    String[] getTopMdcValuesByEvents();
+
+    /**
+     * @return The values of the cost tracking MDC key that stored the most estimated BSON bytes
+     *         over the last five minutes, as value=bytes
+     */
+    String[] getTopMdcValuesByBytes();
+
+}
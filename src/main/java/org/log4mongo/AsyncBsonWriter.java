@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background writer used by BsonAppender when a buffer size is configured. Application threads
+ * only enqueue event snapshots; BSONification and the write itself happen on the writer threads,
+ * in batches of up to batchSize events.
+ */
+final class AsyncBsonWriter {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final BsonAppender appender;
+
+    private final BlockingQueue<LoggingEvent> queue;
+
+    private final boolean blocking;
+
+    private final int batchSize;
+
+    private final Thread[] threads;
+
+    private volatile boolean running = true;
+
+    AsyncBsonWriter(final BsonAppender appender, int bufferSize, boolean blocking,
+            int writerThreads, int batchSize) {
+        this.appender = appender;
+        this.queue = new ArrayBlockingQueue<LoggingEvent>(bufferSize);
+        this.blocking = blocking;
+        this.batchSize = batchSize;
+        this.threads = new Thread[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    write();
+                }
+            }, "log4mongo-writer-" + appender.getName() + "-" + i);
+            threads[i].setDaemon(true);
+        }
+    }
+
+    void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands an event snapshot to the writer threads. If the buffer is full, waits for space when
+     * blocking, otherwise drops the event. Events are rejected once the writer is stopping.
+     *
+     * @param snapshot
+     *            The event snapshot <i>(must not be null)</i>.
+     * @return true if the event was queued, false if it was dropped
+     */
+    boolean enqueue(final LoggingEvent snapshot) {
+        if (running && queue.offer(snapshot)) {
+            return queued(snapshot);
+        }
+        if (!blocking) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            while (running) {
+                if (queue.offer(snapshot, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return queued(snapshot);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            appender.getMetrics().callerBlocked(System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    /**
+     * Accounts for a queued event, or takes it back if stop() may already have drained the queue,
+     * so the caller counts it as dropped instead of it being lost.
+     */
+    private boolean queued(final LoggingEvent snapshot) {
+        appender.getMetrics().queued(snapshot);
+        if (!running && queue.remove(snapshot)) {
+            appender.getMetrics().dequeued(snapshot);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true until stop() is called
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The number of queued events
+     */
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return The maximum number of queued events
+     */
+    int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * Stops accepting events and waits for the writer threads to drain the queue.
+     *
+     * @param timeoutMillis
+     *            The maximum time to wait for each writer thread
+     */
+    void stop(long timeoutMillis) {
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<LoggingEvent> discarded = new ArrayList<LoggingEvent>();
+        queue.drainTo(discarded);
+        int lost = discarded.size();
+        if (lost > 0) {
+            for (LoggingEvent event : discarded) {
+                appender.getMetrics().dequeued(event);
+            }
+            appender.getMetrics().eventsDropped(lost);
+            PipelineEvents.drop(appender.getName(), null, "closed", lost);
+            appender.getErrorHandler().error(
+                    "Discarded " + lost + " queued events while closing appender "
+                            + appender.getName(), null, ErrorCode.CLOSE_FAILURE);
+        }
+    }
+
+    private void write() {
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>(batchSize);
+        List<BSONObject> batch = new ArrayList<BSONObject>(batchSize);
+
+        while (true) {
+            LoggingEvent first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (running) {
+                    continue;
+                }
+                return;
+            }
+
+            Object flush = PipelineEvents.beginFlush();
+            events.add(first);
+            queue.drainTo(events, batchSize - 1);
+            int dequeued = events.size();
+            for (LoggingEvent event : events) {
+                appender.getMetrics().dequeued(event);
+                try {
+                    BSONObject bson = appender.bsonifyMeasured(event);
+                    if (bson != null) {
+                        batch.add(bson);
+                    }
+                } catch (RuntimeException e) {
+                    appender.getMetrics().eventsFailed(1);
+                    appender.getErrorHandler().error("Failed to BSONify logging event", e,
+                            ErrorCode.GENERIC_FAILURE);
+                }
+            }
+            events.clear();
+
+            if (!batch.isEmpty()) {
+                try {
+                    appender.append(batch);
+                } catch (RuntimeException e) {
+                    appender.getErrorHandler().error("Failed to write logging events", e,
+                            ErrorCode.WRITE_FAILURE);
+                }
+            }
+            PipelineEvents.flush(flush, appender.getName(), dequeued, batch.size());
+            batch.clear();
+        }
+    }
+}
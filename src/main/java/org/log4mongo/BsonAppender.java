@@ -18,13 +18,47 @@
 package org.log4mongo;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Category;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LoggingEvent;
 import org.bson.BSONObject;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Abstract Log4J Appender class that stores log events in the BSON format. Concrete implementation
  * classes must implement append(DBObject) to store the BSON representation of a LoggingEvent.
  * <p>
+ * By default, events are BSONified and stored on the thread that logs them. If the bufferSize
+ * property is greater than 0, the logging thread only takes a lightweight snapshot of the event
+ * (rendered message, MDC copy, NDC, level, timestamp, thread name and throwable, plus location info
+ * if the bsonifier needs it) and queues it. BSONification and storage then happen on background
+ * writer threads, in batches passed to append(List). Custom bsonifiers and layouts other than
+ * MongoDbPatternLayout are not assumed to be thread-safe, so they are called by one writer thread
+ * at a time.
+ * <p>
+ * Events below WARN can be sampled deterministically by the value of an MDC key, at rates per
+ * logger and level declared in the sampleRates property. The documents of sampled events record
+ * their sample rate in a sampleRate field.
+ * <p>
+ * If collapseWindow is greater than 0, bursts of repeated events are collapsed: the first
+ * occurrence is stored, followed by a summary event with a repeated sub-document holding the count
+ * of repeats, their first and last timestamps and a sample of their MDC values.
+ * <p>
+ * If thresholdEscalation is true, the effective threshold is raised above the configured one, from
+ * DEBUG to INFO to WARN, while the writer queue is nearly full or the JVM spends much of its time
+ * in garbage collection, and lowered again once the pressure has cleared. Every change is stored as
+ * a WARN event.
+ * <p>
+ * Token-bucket rate limits, declared in the rateLimits property, can suppress events per level,
+ * logger name prefix, logger or MDC value before they are snapshotted or BSONified. Suppressed
+ * events are counted, and stored periodically as one "N events suppressed" summary event per
+ * limit.
+ * <p>
  * An example BSON structure for a single log entry is as follows:
  * </p>
  * 
@@ -102,8 +136,59 @@ import org.bson.BSONObject;
  */
 public abstract class BsonAppender extends AppenderSkeleton {
 
+    private static final long WRITER_STOP_TIMEOUT_MILLIS = 10000;
+
     private LoggingEventBsonifier bsonifier = new LoggingEventBsonifierImpl();
 
+    private int bufferSize = 0;
+
+    private boolean blocking = true;
+
+    private int writerThreads = 1;
+
+    private int batchSize = 100;
+
+    private volatile AsyncBsonWriter writer = null;
+
+    // Set when several writer threads share a layout or bsonifier not known to be thread-safe
+    private volatile boolean serialBsonify = false;
+
+    private final Object bsonifyLock = new Object();
+
+    private final AppenderMetrics metrics = new AppenderMetrics(this);
+
+    private int costTrackingCapacity = 0;
+
+    private String costTrackingMdcKey = null;
+
+    private volatile LoggerCostTracker costTracker = null;
+
+    private boolean thresholdEscalation = false;
+
+    private double escalationQueueFill = ThresholdEscalator.DEFAULT_QUEUE_FILL;
+
+    private double escalationGcRatio = ThresholdEscalator.DEFAULT_GC_RATIO;
+
+    private long escalationCooldown = ThresholdEscalator.DEFAULT_COOLDOWN_MILLIS;
+
+    private volatile ThresholdEscalator escalator = null;
+
+    private String sampleRates = null;
+
+    private String sampleMdcKey = null;
+
+    private volatile EventSampler sampler = null;
+
+    private long collapseWindow = 0;
+
+    private volatile BurstCollapser collapser = null;
+
+    private String rateLimits = null;
+
+    private long rateLimitSummaryInterval = EventRateLimiter.DEFAULT_SUMMARY_INTERVAL_MILLIS;
+
+    private volatile EventRateLimiter rateLimiter = null;
+
     /**
      * @see org.apache.log4j.Appender#requiresLayout()
      */
@@ -111,15 +196,280 @@ public abstract class BsonAppender extends AppenderSkeleton {
         return (false);
     }
 
+    /**
+     * @return The configured threshold, or the level it is raised to under pressure if that is
+     *         higher <i>(may be null)</i>.
+     */
+    public Priority getEffectiveThreshold() {
+        ThresholdEscalator currentEscalator = escalator;
+        Level raised = (currentEscalator == null) ? null : currentEscalator.getLevel();
+        Priority configured = getThreshold();
+        return (raised == null || (configured != null && configured.isGreaterOrEqual(raised)))
+                ? configured : raised;
+    }
+
     /**
      * @see org.apache.log4j.AppenderSkeleton#append(org.apache.log4j.spi.LoggingEvent)
      */
     @Override
     protected void append(final LoggingEvent loggingEvent) {
-        BSONObject bson = bsonifier.bsonify(loggingEvent);
+        ThresholdEscalator currentEscalator = escalator;
+        if (currentEscalator != null && isShed(currentEscalator, loggingEvent.getLevel())) {
+            metrics.eventsShed(1);
+            return;
+        }
+        metrics.eventAccepted();
+        EventSampler currentSampler = sampler;
+        if (currentSampler != null && !currentSampler.sample(loggingEvent)) {
+            metrics.eventsSampledOut(1);
+            return;
+        }
+        BurstCollapser currentCollapser = collapser;
+        if (currentCollapser != null) {
+            boolean repeat = currentCollapser.collapse(loggingEvent);
+            long now = System.currentTimeMillis();
+            if (currentCollapser.isSummaryDue(now)) {
+                storeGenerated(currentCollapser.drainSummaries(now, false));
+            }
+            if (repeat) {
+                metrics.eventsCollapsed(1);
+                return;
+            }
+        }
+        EventRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            boolean acquired = limiter.tryAcquire(loggingEvent, System.nanoTime());
+            long now = System.currentTimeMillis();
+            if (limiter.isSummaryDue(now)) {
+                storeGenerated(limiter.drainSummaries(now));
+            }
+            if (!acquired) {
+                metrics.eventsSuppressed(1);
+                PipelineEvents.drop(getName(), loggingEvent.getLoggerName(), "rate limited", 1);
+                return;
+            }
+        }
+        store(loggingEvent);
+    }
+
+    /**
+     * Evaluates the pressure on the write path when due, and checks the level of an event against
+     * the raised threshold.
+     *
+     * @return true if the event is below the raised threshold
+     */
+    private boolean isShed(final ThresholdEscalator currentEscalator, final Priority level) {
+        long now = System.currentTimeMillis();
+        if (currentEscalator.isCheckDue(now)) {
+            LoggingEvent record = currentEscalator.evaluate(now, getQueueFill(), getThreshold());
+            if (record != null) {
+                metrics.thresholdChanged();
+                LogLog.warn("Appender " + getName() + ": " + record.getRenderedMessage());
+                storeGenerated(Collections.singletonList(record));
+            }
+        }
+        return currentEscalator.isBelow(level);
+    }
+
+    /**
+     * Queues an event for the writer threads, or BSONifies and stores it on the calling thread.
+     */
+    private void store(final LoggingEvent loggingEvent) {
+        AsyncBsonWriter currentWriter = writer;
+        if (currentWriter != null) {
+            Object handOff = PipelineEvents.beginHandOff();
+            // Summaries of collapsed events are created as snapshots
+            LoggingEvent snapshot = (loggingEvent instanceof BurstCollapser.Summary) ? loggingEvent
+                    : snapshot(loggingEvent);
+            boolean queued = currentWriter.enqueue(snapshot);
+            PipelineEvents.handOff(handOff, getName(), loggingEvent, queued, currentWriter);
+            if (!queued) {
+                metrics.eventsDropped(1);
+                PipelineEvents.drop(getName(), loggingEvent.getLoggerName(),
+                        (blocking || !currentWriter.isRunning()) ? "closed" : "buffer full", 1);
+            }
+            return;
+        }
+        BSONObject bson = bsonifyMeasured(loggingEvent);
         append(bson);
     }
 
+    /**
+     * Stores events created by the appender itself: summaries of collapsed or suppressed events
+     * and records of threshold changes.
+     */
+    private void storeGenerated(final List<LoggingEvent> events) {
+        for (LoggingEvent event : events) {
+            try {
+                store(event);
+            } catch (RuntimeException e) {
+                LogLog.warn("Failed to store " + event.getLoggerName() + " event of appender "
+                        + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Starts the background writer threads if bufferSize is greater than 0. Subclasses that
+     * override this method must call it once they are ready to store events.
+     *
+     * @see org.apache.log4j.AppenderSkeleton#activateOptions()
+     */
+    @Override
+    public void activateOptions() {
+        stopWriter();
+        sampler = EventSampler.parse(sampleRates, sampleMdcKey);
+        escalator = thresholdEscalation ? new ThresholdEscalator(escalationQueueFill,
+                escalationGcRatio, escalationCooldown) : null;
+        collapser = (collapseWindow > 0) ? new BurstCollapser(collapseWindow) : null;
+        rateLimiter = EventRateLimiter.parse(rateLimits, rateLimitSummaryInterval);
+        if (bufferSize > 0) {
+            int threads = writerThreads;
+            if (threads < 1) {
+                LogLog.warn("writerThreads of appender " + getName() + " is " + threads
+                        + ", using 1 writer thread");
+                threads = 1;
+            }
+            int batch = batchSize;
+            if (batch < 1) {
+                LogLog.warn("batchSize of appender " + getName() + " is " + batch
+                        + ", storing events one at a time");
+                batch = 1;
+            }
+            serialBsonify = threads > 1 && !isBsonifyThreadSafe();
+            if (serialBsonify) {
+                LogLog.debug("Appender " + getName() + " BSONifies events one at a time, as "
+                        + "its layout or bsonifier is not known to be thread-safe");
+            }
+            AsyncBsonWriter newWriter = new AsyncBsonWriter(this, bufferSize, blocking,
+                    threads, batch);
+            newWriter.start();
+            writer = newWriter;
+        }
+    }
+
+    /**
+     * Stores the summaries of the collapsed bursts and of the events suppressed by the rate
+     * limits, then stops the background writer threads, if running, after they have stored the
+     * queued events. Subclasses must call this method before releasing the resources used to store
+     * events.
+     */
+    protected void stopWriter() {
+        BurstCollapser currentCollapser = collapser;
+        if (currentCollapser != null) {
+            storeGenerated(currentCollapser.drainSummaries(System.currentTimeMillis(), true));
+        }
+        EventRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            storeGenerated(limiter.drainSummaries(System.currentTimeMillis()));
+        }
+        AsyncBsonWriter currentWriter = writer;
+        if (currentWriter != null) {
+            writer = null;
+            currentWriter.stop(WRITER_STOP_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Creates the BSON representation of a LoggingEvent. Runs on a writer thread if bufferSize is
+     * greater than 0.
+     *
+     * @param loggingEvent
+     *            The LoggingEvent, or a snapshot of it
+     * @return The BSON representation of the LoggingEvent <i>(may be null)</i>.
+     */
+    protected BSONObject bsonify(final LoggingEvent loggingEvent) {
+        return bsonifier.bsonify(loggingEvent);
+    }
+
+    /**
+     * Tells whether bsonify may be called by several writer threads at once. Before writer threads
+     * were introduced, bsonify was only called with the appender lock held, so layouts and
+     * bsonifiers other than the ones of log4mongo are assumed not to be thread-safe, and are
+     * called by one writer thread at a time.
+     *
+     * @return true if bsonify is thread-safe
+     */
+    protected boolean isBsonifyThreadSafe() {
+        return bsonifier.getClass() == LoggingEventBsonifierImpl.class;
+    }
+
+    /**
+     * Calls bsonify, records the time it took in the metrics and as a JFR event, adds the sample
+     * rate of a sampled event or the repeated sub-document of a burst summary, and accounts for
+     * the cost of the event per logger.
+     */
+    BSONObject bsonifyMeasured(final LoggingEvent loggingEvent) {
+        Object bsonified = PipelineEvents.beginBsonify();
+        long start = System.nanoTime();
+        BSONObject bson;
+        if (serialBsonify) {
+            synchronized (bsonifyLock) {
+                bson = bsonify(loggingEvent);
+            }
+        } else {
+            bson = bsonify(loggingEvent);
+        }
+        long nanos = System.nanoTime() - start;
+        EventSampler currentSampler = sampler;
+        if (currentSampler != null && bson != null && !EventRateLimiter.isSummary(loggingEvent)) {
+            // The rate is resolved again rather than carried by the queued snapshot
+            double rate = currentSampler.getRate(loggingEvent);
+            if (rate < 1) {
+                bson.put(EventSampler.SAMPLE_RATE_FIELD, rate);
+            }
+        }
+        if (bson != null && loggingEvent instanceof BurstCollapser.Summary) {
+            bson.put(BurstCollapser.REPEATED_FIELD,
+                    ((BurstCollapser.Summary) loggingEvent).getRepeated());
+        }
+        metrics.bsonified(nanos);
+        PipelineEvents.bsonify(bsonified, getName(), loggingEvent, bson);
+        LoggerCostTracker tracker = costTracker;
+        if (tracker != null) {
+            tracker.record(loggingEvent, bson);
+        }
+        return bson;
+    }
+
+    /**
+     * Takes an immutable snapshot of the data a writer thread needs from a LoggingEvent, so the
+     * message object and the rest of the original event are not kept alive while queued.
+     *
+     * @param loggingEvent
+     *            The LoggingEvent being logged <i>(must not be null)</i>.
+     * @return The snapshot
+     */
+    protected LoggingEvent snapshot(final LoggingEvent loggingEvent) {
+        Category logger = loggingEvent.getLogger();
+        if (logger == null) {
+            // Events received from remote sources carry only the logger name
+            logger = Logger.getLogger(loggingEvent.getLoggerName());
+        }
+        return new LoggingEvent(loggingEvent.getFQNOfLoggerClass(), logger,
+                loggingEvent.getTimeStamp(), loggingEvent.getLevel(),
+                loggingEvent.getRenderedMessage(), loggingEvent.getThreadName(),
+                loggingEvent.getThrowableInformation(), loggingEvent.getNDC(),
+                requiresLocation(loggingEvent) ? loggingEvent.getLocationInformation() : null,
+                loggingEvent.getProperties());
+    }
+
+    /**
+     * Location info can only be captured on the logging thread and is expensive, so a snapshot
+     * includes it only if it will be stored.
+     *
+     * @param loggingEvent
+     *            The LoggingEvent being logged <i>(must not be null)</i>.
+     * @return true if location info must be captured for the event
+     */
+    protected boolean requiresLocation(final LoggingEvent loggingEvent) {
+        if (bsonifier instanceof LoggingEventBsonifierImpl) {
+            return ((LoggingEventBsonifierImpl) bsonifier).getFieldProjection(loggingEvent)
+                    .includesLocation();
+        }
+        return true;
+    }
+
     /**
      * Method implemented by a concrete class to store the BSON object.
      *
@@ -128,6 +478,373 @@ public abstract class BsonAppender extends AppenderSkeleton {
      */
     protected abstract void append(BSONObject bson);
 
+    /**
+     * Stores a batch of BSON objects. Called by the writer threads if bufferSize is greater than
+     * 0. The default implementation stores each object with append(BSONObject); concrete classes
+     * may override it to store the batch in one operation. The list must not be retained after the
+     * call returns.
+     *
+     * @param batch
+     *            The BSON representations of Logging Events that will be stored
+     */
+    protected void append(List<BSONObject> batch) {
+        for (BSONObject bson : batch) {
+            append(bson);
+        }
+    }
+
+    /**
+     * @return The write-path metrics of this appender
+     */
+    public AppenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param exceptionTrackingCapacity
+     *            The number of exception fingerprints the default bsonifier monitors per minute,
+     *            or 0 to disable exception tracking. Default is 0.
+     * @see LoggingEventBsonifierImpl#setExceptionTrackingCapacity(int)
+     */
+    public void setExceptionTrackingCapacity(int exceptionTrackingCapacity) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setExceptionTrackingCapacity(exceptionTrackingCapacity);
+        }
+    }
+
+    /**
+     * @return The per-logger cost accounting, or null if it is disabled
+     */
+    LoggerCostTracker getCostTracker() {
+        return costTracker;
+    }
+
+    /**
+     * @return The number of loggers (and MDC values) monitored per minute by the cost accounting
+     */
+    public int getCostTrackingCapacity() {
+        return costTrackingCapacity;
+    }
+
+    /**
+     * Sets the size of the heavy-hitter sketches that account for the events and estimated bytes
+     * stored per logger over the last five minutes. The top loggers are exposed through JMX and
+     * the self-metrics documents. Any logger producing more than 1/capacity of the events (or
+     * bytes) of a minute is guaranteed to be monitored.
+     * <p>
+     * The accounting estimates the size of every document and updates sketches shared by all
+     * threads that BSONify events, so it is disabled by default.
+     *
+     * @param costTrackingCapacity
+     *            The number of loggers monitored per minute (e.g. 64), or 0 to disable the cost
+     *            accounting. Default is 0.
+     */
+    public void setCostTrackingCapacity(int costTrackingCapacity) {
+        assert costTrackingCapacity >= 0 : "costTrackingCapacity must not be negative";
+
+        this.costTrackingCapacity = costTrackingCapacity;
+        updateCostTracker();
+    }
+
+    /**
+     * @return The MDC key whose values are also accounted for <i>(may be null)</i>.
+     */
+    public String getCostTrackingMdcKey() {
+        return costTrackingMdcKey;
+    }
+
+    /**
+     * @param costTrackingMdcKey
+     *            MDC key (e.g., a tenant id) whose values are accounted for like logger names, or
+     *            null (the default) to account for loggers only
+     */
+    public void setCostTrackingMdcKey(String costTrackingMdcKey) {
+        this.costTrackingMdcKey = (costTrackingMdcKey == null
+                || costTrackingMdcKey.trim().length() == 0) ? null : costTrackingMdcKey.trim();
+        updateCostTracker();
+    }
+
+    private void updateCostTracker() {
+        costTracker = (costTrackingCapacity == 0) ? null : new LoggerCostTracker(
+                costTrackingCapacity, costTrackingMdcKey);
+    }
+
+    /**
+     * @return true if the threshold is raised while the write path is under pressure
+     */
+    public boolean getThresholdEscalation() {
+        return thresholdEscalation;
+    }
+
+    /**
+     * Enables raising the effective threshold above the configured one, from DEBUG to INFO to
+     * WARN, while the writer queue fill ratio is at least escalationQueueFill or the fraction of
+     * time spent in garbage collection is at least escalationGcRatio. The threshold is lowered a
+     * step once both have stayed below half these values for escalationCooldown milliseconds.
+     * Events below the raised threshold are discarded and counted as shed. Every change is logged
+     * through LogLog and stored as a WARN event. Takes effect when the options are activated.
+     *
+     * @param thresholdEscalation
+     *            true to raise the threshold under pressure, false (the default) otherwise
+     * @see ThresholdEscalator
+     */
+    public void setThresholdEscalation(boolean thresholdEscalation) {
+        this.thresholdEscalation = thresholdEscalation;
+    }
+
+    /**
+     * @return The writer queue fill ratio at which the threshold is raised
+     */
+    public double getEscalationQueueFill() {
+        return escalationQueueFill;
+    }
+
+    /**
+     * @param escalationQueueFill
+     *            The writer queue fill ratio at which the threshold is raised, between 0 and 1.
+     *            Default is 0.8.
+     */
+    public void setEscalationQueueFill(double escalationQueueFill) {
+        assert escalationQueueFill > 0 && escalationQueueFill <= 1
+                : "escalationQueueFill must be between 0 and 1";
+
+        this.escalationQueueFill = escalationQueueFill;
+    }
+
+    /**
+     * @return The fraction of time spent in garbage collection at which the threshold is raised
+     */
+    public double getEscalationGcRatio() {
+        return escalationGcRatio;
+    }
+
+    /**
+     * @param escalationGcRatio
+     *            The fraction of time spent in garbage collection at which the threshold is
+     *            raised, between 0 and 1. Default is 0.2.
+     */
+    public void setEscalationGcRatio(double escalationGcRatio) {
+        assert escalationGcRatio > 0 && escalationGcRatio <= 1
+                : "escalationGcRatio must be between 0 and 1";
+
+        this.escalationGcRatio = escalationGcRatio;
+    }
+
+    /**
+     * @return The time pressure must stay low before the threshold is lowered a step, in
+     *         milliseconds
+     */
+    public long getEscalationCooldown() {
+        return escalationCooldown;
+    }
+
+    /**
+     * @param escalationCooldown
+     *            The time pressure must stay low before the threshold is lowered a step, in
+     *            milliseconds <i>(must not be negative)</i>. Default is 30000.
+     */
+    public void setEscalationCooldown(long escalationCooldown) {
+        assert escalationCooldown >= 0 : "escalationCooldown must not be negative";
+
+        this.escalationCooldown = escalationCooldown;
+    }
+
+    /**
+     * @return The sample rates <i>(may be null)</i>.
+     */
+    public String getSampleRates() {
+        return sampleRates;
+    }
+
+    /**
+     * Sets the rates at which events below WARN are sampled before they are BSONified, as an
+     * ampersand delimited list of key=rate pairs. The rate is the fraction of events kept, between
+     * 0 and 1. The key is a logger name prefix with a level, a logger name prefix, a level name or
+     * * for the default rate, e.g. "DEBUG=0.01&amp;INFO=0.1&amp;com.acme.audit=1". The documents of
+     * sampled events record their rate in a sampleRate field, so counts can be extrapolated. Takes
+     * effect when the options are activated.
+     *
+     * @param sampleRates
+     *            The sample rates, or null (the default) to keep every event
+     * @see EventSampler
+     */
+    public void setSampleRates(String sampleRates) {
+        this.sampleRates = sampleRates;
+    }
+
+    /**
+     * @return The MDC key whose value decides which events are sampled <i>(may be null)</i>.
+     */
+    public String getSampleMdcKey() {
+        return sampleMdcKey;
+    }
+
+    /**
+     * @param sampleMdcKey
+     *            MDC key (e.g., a trace id) whose value decides which events are kept, so all the
+     *            events of a trace are kept or dropped together, or null (the default) to sample
+     *            events at random. Takes effect when the options are activated.
+     */
+    public void setSampleMdcKey(String sampleMdcKey) {
+        this.sampleMdcKey = (sampleMdcKey == null || sampleMdcKey.trim().length() == 0) ? null
+                : sampleMdcKey.trim();
+    }
+
+    /**
+     * @return The time during which repeats of an event are collapsed, in milliseconds, or 0 if
+     *         repeats are stored
+     */
+    public long getCollapseWindow() {
+        return collapseWindow;
+    }
+
+    /**
+     * Sets the time, from the first occurrence of an event, during which repeats of it (same
+     * logger, level, message ignoring digits, and exception fingerprint) are only counted. After
+     * the window, one summary event with the count, first and last timestamps and a sample of MDC
+     * values of the repeats is stored. Takes effect when the options are activated.
+     *
+     * @param collapseWindow
+     *            The window in milliseconds, or 0 (the default) to store every repeat
+     * @see BurstCollapser
+     */
+    public void setCollapseWindow(long collapseWindow) {
+        assert collapseWindow >= 0 : "collapseWindow must not be negative";
+
+        this.collapseWindow = collapseWindow;
+    }
+
+    /**
+     * @return The rate limits <i>(may be null)</i>.
+     */
+    public String getRateLimits() {
+        return rateLimits;
+    }
+
+    /**
+     * Sets the token-bucket rate limits applied before events are BSONified, as an ampersand
+     * delimited list of key=rate[/burst] pairs. The rate is in events per second and the burst
+     * defaults to the rate. The key is a level name, a logger name prefix, * for a bucket per
+     * logger, or mdc:key for a bucket per value of an MDC key, e.g.
+     * "DEBUG=1000&amp;com.acme.hot=50/200&amp;*=500&amp;mdc:tenant=200". Takes effect when the
+     * options are activated.
+     *
+     * @param rateLimits
+     *            The rate limits, or null (the default) for none
+     * @see EventRateLimiter
+     */
+    public void setRateLimits(String rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+
+    /**
+     * @return The interval between summaries of the events suppressed by the rate limits, in
+     *         milliseconds
+     */
+    public long getRateLimitSummaryInterval() {
+        return rateLimitSummaryInterval;
+    }
+
+    /**
+     * @param rateLimitSummaryInterval
+     *            The interval between summaries of the events suppressed by the rate limits, in
+     *            milliseconds <i>(must be greater than 0)</i>. Default is 60000. Summaries are
+     *            stored by the first event logged after the interval, and when the appender is
+     *            closed.
+     */
+    public void setRateLimitSummaryInterval(long rateLimitSummaryInterval) {
+        assert rateLimitSummaryInterval > 0 : "rateLimitSummaryInterval must be greater than 0";
+
+        this.rateLimitSummaryInterval = rateLimitSummaryInterval;
+    }
+
+    /**
+     * @return The number of queued events relative to the buffer size, or 0 if events are stored
+     *         on the logging thread
+     */
+    public double getQueueFill() {
+        AsyncBsonWriter currentWriter = writer;
+        return (currentWriter == null) ? 0 : (double) currentWriter.size()
+                / currentWriter.capacity();
+    }
+
+    /**
+     * @return The number of events queued for the writer threads
+     */
+    public int getQueueDepth() {
+        AsyncBsonWriter currentWriter = writer;
+        return (currentWriter == null) ? 0 : currentWriter.size();
+    }
+
+    /**
+     * @return The maximum number of events queued for the writer threads, or 0 if events are
+     *         stored on the logging thread
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize
+     *            The maximum number of events queued for the writer threads. 0 (the default)
+     *            stores events on the logging thread.
+     */
+    public void setBufferSize(int bufferSize) {
+        assert bufferSize >= 0 : "bufferSize must not be negative";
+
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return true if logging threads wait for space when the buffer is full
+     */
+    public boolean getBlocking() {
+        return blocking;
+    }
+
+    /**
+     * @param blocking
+     *            true (the default) if logging threads wait for space when the buffer is full,
+     *            false if events are dropped instead
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * @return The number of writer threads
+     */
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    /**
+     * @param writerThreads
+     *            The number of writer threads. With more than one thread, events may be stored out
+     *            of order. A value below 1 is replaced by 1, with a warning, when the options are
+     *            activated.
+     */
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * @return The maximum number of events a writer thread stores at once
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            The maximum number of events a writer thread stores at once. A value below 1 is
+     *            replaced by 1, with a warning, when the options are activated.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
     /**
      * @return Object used to Bsonify LoggingEvent objects
      */
@@ -143,4 +860,108 @@ public abstract class BsonAppender extends AppenderSkeleton {
         this.bsonifier = bsonifier;
     }
 
+    /**
+     * @return The field projection bindings of the default bsonifier <i>(may be null)</i>.
+     */
+    public String getFieldProjections() {
+        return (bsonifier instanceof LoggingEventBsonifierImpl) ? ((LoggingEventBsonifierImpl) bsonifier)
+                .getFieldProjections() : null;
+    }
+
+    /**
+     * @param fieldProjections
+     *            Field projection bindings for the default bsonifier <i>(may be null)</i>.
+     * @see LoggingEventBsonifierImpl#setFieldProjections(String)
+     */
+    public void setFieldProjections(String fieldProjections) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setFieldProjections(fieldProjections);
+        }
+    }
+
+    /**
+     * @return The promoted MDC keys of the default bsonifier <i>(may be null)</i>.
+     */
+    public String getPromotedMdcKeys() {
+        return (bsonifier instanceof LoggingEventBsonifierImpl) ? ((LoggingEventBsonifierImpl) bsonifier)
+                .getPromotedMdcKeys() : null;
+    }
+
+    /**
+     * @param promotedMdcKeys
+     *            MDC keys the default bsonifier hoists to typed top-level fields <i>(may be
+     *            null)</i>.
+     * @see LoggingEventBsonifierImpl#setPromotedMdcKeys(String)
+     */
+    public void setPromotedMdcKeys(String promotedMdcKeys) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setPromotedMdcKeys(promotedMdcKeys);
+        }
+    }
+
+    /**
+     * @param tokenField
+     *            Name of the message token array field written by the default bsonifier, or null
+     *            to disable it.
+     * @see LoggingEventBsonifierImpl#setTokenField(String)
+     */
+    public void setTokenField(String tokenField) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setTokenField(tokenField);
+        }
+    }
+
+    /**
+     * @param tokenDelimiter
+     *            Regular expression matching the text between message tokens <i>(may be
+     *            null)</i>.
+     * @see LoggingEventBsonifierImpl#setTokenDelimiter(String)
+     */
+    public void setTokenDelimiter(String tokenDelimiter) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setTokenDelimiter(tokenDelimiter);
+        }
+    }
+
+    /**
+     * @param tokenStopWords
+     *            Comma delimited list of words never stored as message tokens <i>(may be
+     *            null)</i>.
+     * @see LoggingEventBsonifierImpl#setTokenStopWords(String)
+     */
+    public void setTokenStopWords(String tokenStopWords) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setTokenStopWords(tokenStopWords);
+        }
+    }
+
+    /**
+     * @param maxTokens
+     *            Maximum number of message tokens stored per event.
+     * @see LoggingEventBsonifierImpl#setMaxTokens(int)
+     */
+    public void setMaxTokens(int maxTokens) {
+        LoggingEventBsonifierImpl impl = getDefaultBsonifier();
+        if (impl != null) {
+            impl.setMaxTokens(maxTokens);
+        }
+    }
+
+    /**
+     * @return The bsonifier if it is a LoggingEventBsonifierImpl, otherwise null
+     */
+    protected LoggingEventBsonifierImpl getDefaultBsonifier() {
+        if (bsonifier instanceof LoggingEventBsonifierImpl) {
+            return (LoggingEventBsonifierImpl) bsonifier;
+        }
+        LogLog.warn("Bsonifier options require a LoggingEventBsonifierImpl, ignoring for "
+                + bsonifier.getClass().getName());
+        return null;
+    }
+
 }
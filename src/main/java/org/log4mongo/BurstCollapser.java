@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses bursts of repeated events in a BsonAppender before they are BSONified.
+ * <p>
+ * Events are repeats of each other if they have the same logger, level, message template and
+ * exception fingerprint, where the template is the rendered message with runs of digits ignored
+ * and the fingerprint is that of ExceptionFrequencyTracker. The first occurrence of an event
+ * starts a burst and is stored as usual. Repeats within the window of the burst, measured from the
+ * first occurrence, are only counted. Once the window has passed, a summary event is stored with
+ * the logger, level and message of the first occurrence and a repeated sub-document holding the
+ * count of repeats, the timestamps of the first and last repeat, the exception fingerprint and a
+ * sample of their MDC values. The next occurrence starts a new burst.
+ * <p>
+ * Bursts are tracked in a fixed-size table indexed by the hash of their key; a burst whose slot
+ * is taken by another key ends early. Repeats only update the counters of their burst, except
+ * for the repeats at powers of two, whose MDC values are sampled, so the cost of a repeat stays
+ * low however long the burst.
+ */
+final class BurstCollapser {
+
+    static final String REPEATED_FIELD = "repeated";
+
+    // Number of distinct values sampled per MDC key
+    static final int MDC_SAMPLE_SIZE = 5;
+
+    private static final int SLOTS = 1024;
+
+    private final long windowMillis;
+
+    private final Burst[] slots = new Burst[SLOTS];
+
+    private final List<LoggingEvent> pending = new ArrayList<LoggingEvent>();
+
+    private long nextSweep;
+
+    /**
+     * @param windowMillis
+     *            The time, from the first occurrence, during which repeats are collapsed
+     */
+    BurstCollapser(long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.nextSweep = System.currentTimeMillis() + windowMillis;
+    }
+
+    /**
+     * Counts an event if it repeats an event of an ongoing burst, otherwise starts a burst with
+     * it. The summary of a burst ended by the event is kept for drainSummaries.
+     *
+     * @param loggingEvent
+     *            The event being logged <i>(must not be null)</i>.
+     * @return true if the event is a repeat and must not be stored
+     */
+    synchronized boolean collapse(final LoggingEvent loggingEvent) {
+        String loggerName = loggingEvent.getLoggerName();
+        if (loggerName == null) {
+            return false;
+        }
+        Level level = loggingEvent.getLevel();
+        ThrowableInformation throwableInfo = loggingEvent.getThrowableInformation();
+        String fingerprint = (throwableInfo == null) ? null : ExceptionFrequencyTracker
+                .fingerprint(throwableInfo);
+        String message = loggingEvent.getRenderedMessage();
+        long hash = hash(loggerName, level, message, fingerprint);
+        long timeStamp = loggingEvent.getTimeStamp();
+
+        int slot = (int) (hash ^ (hash >>> 32)) & (SLOTS - 1);
+        Burst burst = slots[slot];
+        if (burst != null && burst.hash == hash && burst.level == level
+                && burst.loggerName.equals(loggerName) && timeStamp - burst.start < windowMillis) {
+            burst.repeat(loggingEvent);
+            return true;
+        }
+        if (burst != null && burst.count > 0) {
+            pending.add(burst.toSummary());
+        }
+        slots[slot] = new Burst(hash, loggerName, level, message, fingerprint, timeStamp);
+        return false;
+    }
+
+    /**
+     * @param millis
+     *            The current time
+     * @return true if summaries are waiting to be stored or bursts may have ended
+     */
+    synchronized boolean isSummaryDue(final long millis) {
+        return !pending.isEmpty() || millis >= nextSweep;
+    }
+
+    /**
+     * Ends the bursts whose window has passed and returns the summaries of the ended bursts that
+     * had repeats.
+     *
+     * @param millis
+     *            The current time
+     * @param all
+     *            true to end every burst, e.g. when the appender closes
+     * @return The summary events <i>(may be empty)</i>.
+     */
+    synchronized List<LoggingEvent> drainSummaries(final long millis, final boolean all) {
+        if (all || millis >= nextSweep) {
+            for (int i = 0; i < SLOTS; i++) {
+                Burst burst = slots[i];
+                if (burst != null && (all || millis - burst.start >= windowMillis)) {
+                    if (burst.count > 0) {
+                        pending.add(burst.toSummary());
+                    }
+                    slots[i] = null;
+                }
+            }
+            nextSweep = millis + windowMillis;
+        }
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<LoggingEvent> summaries = new ArrayList<LoggingEvent>(pending);
+        pending.clear();
+        return summaries;
+    }
+
+    /**
+     * Hashes the key of an event with 64-bit FNV-1a, ignoring runs of digits in the message.
+     */
+    static long hash(final String loggerName, final Level level, final String message,
+            final String fingerprint) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, loggerName);
+        hash = (hash ^ ((level == null) ? 0 : level.toInt())) * 0x100000001b3L;
+        hash = hash(hash, fingerprint);
+        if (message != null) {
+            boolean digits = false;
+            for (int i = 0; i < message.length(); i++) {
+                char c = message.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    if (digits) {
+                        continue;
+                    }
+                    digits = true;
+                    c = '#';
+                } else {
+                    digits = false;
+                }
+                hash = (hash ^ c) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, final String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return (hash ^ 0xff) * 0x100000001b3L;
+    }
+
+    /**
+     * An ongoing burst of repeats of an event.
+     */
+    private static final class Burst {
+
+        final long hash;
+
+        final String loggerName;
+
+        final Level level;
+
+        final String message;
+
+        final String fingerprint;
+
+        final long start;
+
+        long count;
+
+        long firstRepeat;
+
+        long lastRepeat;
+
+        Map<String, List<String>> mdcSample;
+
+        Burst(long hash, String loggerName, Level level, String message, String fingerprint,
+                long start) {
+            this.hash = hash;
+            this.loggerName = loggerName;
+            this.level = level;
+            this.message = message;
+            this.fingerprint = fingerprint;
+            this.start = start;
+        }
+
+        void repeat(final LoggingEvent loggingEvent) {
+            long timeStamp = loggingEvent.getTimeStamp();
+            if (count++ == 0) {
+                firstRepeat = timeStamp;
+            }
+            lastRepeat = timeStamp;
+            if ((count & (count - 1)) == 0) {
+                sampleMdc(loggingEvent.getProperties());
+            }
+        }
+
+        private void sampleMdc(final Map<?, ?> properties) {
+            for (Map.Entry<?, ?> entry : properties.entrySet()) {
+                if (mdcSample == null) {
+                    mdcSample = new LinkedHashMap<String, List<String>>();
+                }
+                String key = entry.getKey().toString();
+                List<String> values = mdcSample.get(key);
+                if (values == null) {
+                    values = new ArrayList<String>(MDC_SAMPLE_SIZE);
+                    mdcSample.put(key, values);
+                }
+                String value = String.valueOf(entry.getValue());
+                if (values.size() < MDC_SAMPLE_SIZE && !values.contains(value)) {
+                    values.add(value);
+                }
+            }
+        }
+
+        Summary toSummary() {
+            BasicDBObject repeated = new BasicDBObject();
+            repeated.put("count", count);
+            repeated.put("first", new Date(firstRepeat));
+            repeated.put("last", new Date(lastRepeat));
+            if (fingerprint != null) {
+                repeated.put("exception", fingerprint);
+            }
+            if (mdcSample != null) {
+                BasicDBObject mdc = new BasicDBObject();
+                for (Map.Entry<String, List<String>> entry : mdcSample.entrySet()) {
+                    BasicDBList values = new BasicDBList();
+                    values.addAll(entry.getValue());
+                    mdc.put(entry.getKey().replace('.', '_'), values);
+                }
+                repeated.put("mdc", mdc);
+            }
+            return new Summary(Logger.getLogger(loggerName), lastRepeat, level, message,
+                    repeated);
+        }
+    }
+
+    /**
+     * The summary event of a burst. It is created as an immutable snapshot, and its repeated
+     * sub-document is added to the document BSONified from it.
+     */
+    static final class Summary extends LoggingEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DBObject repeated;
+
+        Summary(Logger logger, long timeStamp, Level level, String message, DBObject repeated) {
+            super(BurstCollapser.class.getName(), logger, timeStamp, level, message, Thread
+                    .currentThread().getName(), null, null, null, Collections.emptyMap());
+            this.repeated = repeated;
+        }
+
+        /**
+         * @return The repeated sub-document
+         */
+        DBObject getRepeated() {
+            return repeated;
+        }
+    }
+}
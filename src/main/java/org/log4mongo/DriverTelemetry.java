@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CommandListener registered on the MongoClient of a MongoDbAppender. Aggregates insert command
+ * latency, the time before an insert command is sent and the commands in flight into LongAdders and
+ * LogLinearHistograms.
+ * <p>
+ * The 3.4 driver can't register a ConnectionPoolListener through MongoClientOptions, so pool
+ * checkout waits and connections in use can't be measured. The pre-send latency is measured from
+ * the start of an insert on the appender thread to the start of its command (which the synchronous
+ * driver reports on the same thread), and so includes server selection, the connection checkout
+ * and the encoding of the documents. Connections are counted by the ids of the connections
+ * commands are sent on.
+ */
+public final class DriverTelemetry implements CommandListener, DriverTelemetryMBean {
+
+    private static final String INSERT_COMMAND = "insert";
+
+    // Connections unused for this long are forgotten when the table is full
+    private static final long CONNECTION_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final int MAX_TRACKED_CONNECTIONS = 256;
+
+    private final ThreadLocal<long[]> insertStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private final LongAdder insertsSucceeded = new LongAdder();
+
+    private final LongAdder commandsFailed = new LongAdder();
+
+    private final LogLinearHistogram insertNanos = new LogLinearHistogram();
+
+    private final LogLinearHistogram preSendNanos = new LogLinearHistogram();
+
+    private final Map<ConnectionId, Long> connections = new ConcurrentHashMap<ConnectionId, Long>();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAccumulator inFlightMax = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Marks the start of an insert on the current thread, before the driver selects a server.
+     */
+    void insertStarting() {
+        insertStart.get()[0] = System.nanoTime();
+    }
+
+    public void commandStarted(CommandStartedEvent event) {
+        long now = System.nanoTime();
+        if (INSERT_COMMAND.equals(event.getCommandName())) {
+            long[] start = insertStart.get();
+            if (start[0] != 0) {
+                preSendNanos.record(now - start[0]);
+                start[0] = 0;
+            }
+        }
+        inFlightMax.accumulate(inFlight.incrementAndGet());
+
+        ConnectionId id = event.getConnectionDescription().getConnectionId();
+        if (connections.put(id, now) == null) {
+            connectionsOpened.increment();
+            if (connections.size() > MAX_TRACKED_CONNECTIONS) {
+                forgetIdleConnections(now);
+            }
+        }
+    }
+
+    public void commandSucceeded(CommandSucceededEvent event) {
+        inFlight.decrementAndGet();
+        if (INSERT_COMMAND.equals(event.getCommandName())) {
+            insertsSucceeded.increment();
+            insertNanos.record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    public void commandFailed(CommandFailedEvent event) {
+        inFlight.decrementAndGet();
+        commandsFailed.increment();
+    }
+
+    private void forgetIdleConnections(long now) {
+        Iterator<Long> lastUsed = connections.values().iterator();
+        while (lastUsed.hasNext()) {
+            if (now - lastUsed.next() > CONNECTION_IDLE_NANOS) {
+                lastUsed.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The distribution of insert command round-trip times, in nanoseconds
+     */
+    LogLinearHistogram getInsertNanos() {
+        return insertNanos;
+    }
+
+    /**
+     * @return The distribution of the times before insert commands were sent, in nanoseconds
+     */
+    LogLinearHistogram getPreSendNanos() {
+        return preSendNanos;
+    }
+
+    public long getInsertCommandsSucceeded() {
+        return insertsSucceeded.sum();
+    }
+
+    public long getCommandsFailed() {
+        return commandsFailed.sum();
+    }
+
+    public long getInsertCommandLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getPercentile(50));
+    }
+
+    public long getInsertCommandLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getPercentile(99));
+    }
+
+    public long getInsertCommandLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(insertNanos.getMax());
+    }
+
+    public long getPreSendLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(preSendNanos.getPercentile(50));
+    }
+
+    public long getPreSendLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(preSendNanos.getPercentile(99));
+    }
+
+    public long getPreSendLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(preSendNanos.getMax());
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public int getCommandsInFlight() {
+        return Math.max(0, inFlight.get());
+    }
+
+    public int getCommandsInFlightMax() {
+        return (int) inFlightMax.get();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+/**
+ * JMX management interface of the MongoDB driver telemetry of a MongoDbAppender, registered as
+ * org.log4mongo:type=MongoDbAppender,name=&lt;appender name&gt;,component=Driver. Only the commands
+ * of the appender's own MongoClient are included.
+ */
+public interface DriverTelemetryMBean {
+
+    /**
+     * @return The number of insert commands that succeeded
+     */
+    long getInsertCommandsSucceeded();
+
+    /**
+     * @return The number of commands (of any kind) that failed
+     */
+    long getCommandsFailed();
+
+    /**
+     * @return The median server round-trip time of insert commands, in microseconds
+     */
+    long getInsertCommandLatencyP50Micros();
+
+    /**
+     * @return The 99th percentile of the server round-trip time of insert commands, in
+     *         microseconds
+     */
+    long getInsertCommandLatencyP99Micros();
+
+    /**
+     * @return The longest server round-trip time of an insert command, in microseconds
+     */
+    long getInsertCommandLatencyMaxMicros();
+
+    /**
+     * @return The median time from the start of an insert to its command being sent, in
+     *         microseconds. This includes server selection, the connection checkout and the
+     *         encoding of the documents.
+     */
+    long getPreSendLatencyP50Micros();
+
+    /**
+     * @return The 99th percentile of the time from the start of an insert to its command being
+     *         sent, in microseconds
+     */
+    long getPreSendLatencyP99Micros();
+
+    /**
+     * @return The longest time from the start of an insert to its command being sent, in
+     *         microseconds
+     */
+    long getPreSendLatencyMaxMicros();
+
+    /**
+     * @return The number of distinct connections commands were sent on
+     */
+    long getConnectionsOpened();
+
+    /**
+     * @return The number of commands sent and not yet completed
+     */
+    int getCommandsInFlight();
+
+    /**
+     * @return The largest number of commands in flight at once
+     */
+    int getCommandsInFlightMax();
+
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limits applied by a BsonAppender before events are BSONified.
+ * <p>
+ * Limits are declared as an ampersand delimited list of key=rate[/burst] pairs, where the rate is
+ * in events per second and the burst (defaults to the rate, and at least 1) is the size of the
+ * bucket. The key is one of
+ * <ul>
+ * <li>a level name (e.g., DEBUG), for one bucket shared by all events of the level,</li>
+ * <li>a logger name prefix (e.g., com.acme.hot), for one bucket shared by the logger with that
+ * name and its descendants in the Log4J hierarchy; of several prefixes the longest match wins,</li>
+ * <li>* for a bucket per logger, for the loggers no prefix matches,</li>
+ * <li>mdc:key (e.g., mdc:tenant) for a bucket per value of the MDC key. Events without the key
+ * are not limited. The bucket of a value that logged nothing for a summary interval is evicted,
+ * and values beyond 10000 at a time share a single bucket.</li>
+ * </ul>
+ * An event must get a token from each bucket that applies to it, in the order above. A bucket
+ * that has no token suppresses the event; tokens already taken from the buckets before it are not
+ * returned.
+ * <p>
+ * The buckets are kept as the time their next token becomes available, updated by
+ * compare-and-set, so the check takes no locks and allocates nothing once the buckets of a logger
+ * (or MDC value) exist. Suppressed events are counted per bucket and reported by summary events,
+ * one per bucket that suppressed events, which the appender stores like any other event.
+ */
+final class EventRateLimiter {
+
+    static final long DEFAULT_SUMMARY_INTERVAL_MILLIS = 60000;
+
+    // Number of distinct values of an MDC key with a bucket of their own at a time
+    static final int MAX_MDC_VALUES = 10000;
+
+    static final String RULE_PROPERTY = "rateLimit";
+
+    static final String SUPPRESSED_PROPERTY = "suppressed";
+
+    private static final String MDC_PREFIX = "mdc:";
+
+    // Placeholder cached for loggers without a logger bucket
+    private static final Bucket UNLIMITED = new Bucket("", null, null, new Limit(
+            Double.POSITIVE_INFINITY, 1), 0);
+
+    private final Map<Level, Bucket> levelBuckets;
+
+    private final Map<String, Bucket> prefixBuckets;
+
+    private final Limit loggerLimit;
+
+    private final List<MdcBuckets> mdcBuckets;
+
+    private final ConcurrentHashMap<String, Bucket> loggerBuckets =
+            new ConcurrentHashMap<String, Bucket>();
+
+    private final long summaryIntervalMillis;
+
+    private final AtomicLong nextSummary;
+
+    private volatile long lastSummary = System.currentTimeMillis();
+
+    private EventRateLimiter(Map<Level, Bucket> levelBuckets, Map<String, Bucket> prefixBuckets,
+            Limit loggerLimit, List<MdcBuckets> mdcBuckets, long summaryIntervalMillis) {
+        this.levelBuckets = levelBuckets;
+        this.prefixBuckets = prefixBuckets;
+        this.loggerLimit = loggerLimit;
+        this.mdcBuckets = mdcBuckets;
+        this.summaryIntervalMillis = summaryIntervalMillis;
+        this.nextSummary = new AtomicLong(System.currentTimeMillis() + summaryIntervalMillis);
+    }
+
+    /**
+     * Parses a limits declaration. Invalid limits are ignored with a warning.
+     *
+     * @param limits
+     *            Ampersand delimited list of key=rate[/burst] pairs <i>(may be null)</i>.
+     * @param summaryIntervalMillis
+     *            The interval between summaries of the suppressed events
+     * @return The limiter, or null if no limit is declared
+     */
+    static EventRateLimiter parse(final String limits, final long summaryIntervalMillis) {
+        if (limits == null || limits.trim().length() == 0) {
+            return null;
+        }
+
+        long nanos = System.nanoTime();
+        Map<Level, Bucket> levels = new HashMap<Level, Bucket>();
+        Map<String, Bucket> prefixes = new HashMap<String, Bucket>();
+        Limit loggerLimit = null;
+        List<MdcBuckets> mdc = new ArrayList<MdcBuckets>();
+
+        for (String declaration : limits.split(" *& *")) {
+            String[] pair = declaration.trim().split(" *= *", 2);
+            if (pair[0].length() == 0) {
+                continue;
+            }
+            Limit limit = (pair.length == 1) ? null : Limit.parse(pair[1]);
+            if (limit == null) {
+                LogLog.warn("Ignoring rate limit '" + declaration.trim()
+                        + "', expected key=rate[/burst]");
+                continue;
+            }
+
+            String key = pair[0];
+            String rule = key + "=" + limit;
+            Level level = Level.toLevel(key, null);
+            if ("*".equals(key)) {
+                loggerLimit = limit;
+            } else if (key.startsWith(MDC_PREFIX) && key.length() > MDC_PREFIX.length()) {
+                String mdcKey = key.substring(MDC_PREFIX.length());
+                mdc.add(new MdcBuckets(mdcKey, rule, limit, nanos));
+            } else if (level != null && key.equals(level.toString())) {
+                levels.put(level, new Bucket(rule, null, null, limit, nanos));
+            } else {
+                prefixes.put(key, new Bucket(rule, null, null, limit, nanos));
+            }
+        }
+
+        if (levels.isEmpty() && prefixes.isEmpty() && loggerLimit == null && mdc.isEmpty()) {
+            return null;
+        }
+        return new EventRateLimiter(levels, prefixes, loggerLimit, mdc, summaryIntervalMillis);
+    }
+
+    /**
+     * Takes a token from each bucket that applies to an event.
+     *
+     * @param loggingEvent
+     *            The event being logged <i>(must not be null)</i>.
+     * @param nanos
+     *            The current System.nanoTime
+     * @return true if the event may be stored, false if it was suppressed
+     */
+    boolean tryAcquire(final LoggingEvent loggingEvent, final long nanos) {
+        if (!levelBuckets.isEmpty()) {
+            Bucket bucket = levelBuckets.get(loggingEvent.getLevel());
+            if (bucket != null && !bucket.tryAcquire(loggingEvent, nanos)) {
+                return false;
+            }
+        }
+        if (!prefixBuckets.isEmpty() || loggerLimit != null) {
+            Bucket bucket = getLoggerBucket(loggingEvent.getLoggerName(), nanos);
+            if (bucket != UNLIMITED && !bucket.tryAcquire(loggingEvent, nanos)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < mdcBuckets.size(); i++) {
+            if (!mdcBuckets.get(i).tryAcquire(loggingEvent, nanos)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Bucket getLoggerBucket(final String loggerName, final long nanos) {
+        if (loggerName == null) {
+            return UNLIMITED;
+        }
+        Bucket bucket = loggerBuckets.get(loggerName);
+        if (bucket == null) {
+            bucket = resolvePrefix(loggerName);
+            if (bucket == null) {
+                bucket = (loggerLimit == null) ? UNLIMITED : new Bucket("*=" + loggerLimit, null,
+                        null, loggerLimit, nanos);
+            }
+            Bucket previous = loggerBuckets.putIfAbsent(loggerName, bucket);
+            if (previous != null) {
+                bucket = previous;
+            }
+        }
+        return bucket;
+    }
+
+    private Bucket resolvePrefix(final String loggerName) {
+        String name = loggerName;
+        while (true) {
+            Bucket bucket = prefixBuckets.get(name);
+            if (bucket != null) {
+                return bucket;
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                return null;
+            }
+            name = name.substring(0, dot);
+        }
+    }
+
+    /**
+     * @param loggingEvent
+     *            An event, or a snapshot of it <i>(must not be null)</i>.
+     * @return true if the event is a summary of suppressed events
+     */
+    static boolean isSummary(final LoggingEvent loggingEvent) {
+        return EventRateLimiter.class.getName().equals(loggingEvent.getFQNOfLoggerClass());
+    }
+
+    /**
+     * Claims the summary of the interval that ended, if any. Only one caller gets true for each
+     * interval.
+     *
+     * @param millis
+     *            The current time
+     * @return true if the caller must store the summaries
+     */
+    boolean isSummaryDue(final long millis) {
+        long next = nextSummary.get();
+        return millis >= next && nextSummary.compareAndSet(next, millis + summaryIntervalMillis);
+    }
+
+    /**
+     * Creates a summary event for each bucket that suppressed events since the previous call and
+     * resets its count. A summary has the logger and level of the last event the bucket
+     * suppressed, a message with the count, and the rule and count as properties. The summary of
+     * a bucket per MDC value also carries that value.
+     *
+     * @param millis
+     *            The current time
+     * @return The summary events <i>(may be empty)</i>.
+     */
+    List<LoggingEvent> drainSummaries(final long millis) {
+        return drainSummaries(millis, System.nanoTime());
+    }
+
+    /**
+     * Creates the summary events, then evicts the buckets per MDC value that are full again and
+     * took no token for a summary interval, so new values get a bucket of their own.
+     *
+     * @param millis
+     *            The current time
+     * @param nanos
+     *            The current value of System.nanoTime()
+     * @return The summary events <i>(may be empty)</i>.
+     */
+    List<LoggingEvent> drainSummaries(final long millis, final long nanos) {
+        // Logger name prefixes are cached for each of their loggers
+        Set<Bucket> buckets = new LinkedHashSet<Bucket>();
+        buckets.addAll(levelBuckets.values());
+        buckets.addAll(loggerBuckets.values());
+        for (MdcBuckets mdc : mdcBuckets) {
+            buckets.addAll(mdc.buckets.values());
+            buckets.add(mdc.overflow);
+        }
+
+        List<LoggingEvent> summaries = Collections.emptyList();
+        for (Bucket bucket : buckets) {
+            LoggingEvent summary = bucket.drainSummary(millis, lastSummary);
+            if (summary != null) {
+                if (summaries.isEmpty()) {
+                    summaries = new ArrayList<LoggingEvent>();
+                }
+                summaries.add(summary);
+            }
+        }
+        lastSummary = millis;
+
+        long idleSince = nanos - TimeUnit.MILLISECONDS.toNanos(summaryIntervalMillis);
+        for (MdcBuckets mdc : mdcBuckets) {
+            mdc.evictIdle(idleSince);
+        }
+        return summaries;
+    }
+
+
+    /**
+     * A rate in events per second and a burst size.
+     */
+    static final class Limit {
+
+        final double eventsPerSecond;
+
+        final int burst;
+
+        Limit(double eventsPerSecond, int burst) {
+            this.eventsPerSecond = eventsPerSecond;
+            this.burst = burst;
+        }
+
+        /**
+         * @param limit
+         *            rate[/burst]
+         * @return The limit, or null if it is invalid
+         */
+        static Limit parse(final String limit) {
+            String[] parts = limit.trim().split(" */ *", 2);
+            try {
+                double eventsPerSecond = Double.parseDouble(parts[0]);
+                int burst = (parts.length == 1) ? (int) Math.max(1, Math.min(eventsPerSecond,
+                        Integer.MAX_VALUE)) : Integer.parseInt(parts[1]);
+                if (!(eventsPerSecond > 0) || burst < 1) {
+                    return null;
+                }
+                return new Limit(eventsPerSecond, burst);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String rate = (eventsPerSecond == Math.rint(eventsPerSecond)) ? String
+                    .valueOf((long) eventsPerSecond) : String.valueOf(eventsPerSecond);
+            return rate + "/" + burst;
+        }
+    }
+
+    /**
+     * A token bucket, kept as the theoretical arrival time of the next event: an event conforms
+     * if that time is at most burst - 1 token intervals ahead of now, and pushes it one interval
+     * further. This is the same decision as refilling the bucket at the rate and taking a token,
+     * in a single long that a compare-and-set can update.
+     */
+    static final class Bucket {
+
+        final String rule;
+
+        final String mdcKey;
+
+        final String mdcValue;
+
+        private final long intervalNanos;
+
+        private final long toleranceNanos;
+
+        private final AtomicLong arrival;
+
+        private final AtomicLong suppressed = new AtomicLong();
+
+        private volatile String lastLoggerName;
+
+        private volatile Level lastLevel;
+
+        Bucket(String rule, String mdcKey, String mdcValue, Limit limit, long nanos) {
+            this.rule = rule;
+            this.mdcKey = mdcKey;
+            this.mdcValue = mdcValue;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / limit.eventsPerSecond);
+            this.toleranceNanos = intervalNanos * (limit.burst - 1);
+            this.arrival = new AtomicLong(nanos);
+        }
+
+        boolean tryAcquire(final LoggingEvent loggingEvent, final long nanos) {
+            while (true) {
+                long next = arrival.get();
+                long start = (next - nanos > 0) ? next : nanos;
+                if (start - nanos > toleranceNanos) {
+                    suppress(loggingEvent);
+                    return false;
+                }
+                if (arrival.compareAndSet(next, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @param nanos
+         *            A past value of System.nanoTime()
+         * @return true if the bucket took no token since then, is full again and has no
+         *         suppressed events left to summarize, so a new bucket would behave the same
+         */
+        boolean isIdleSince(final long nanos) {
+            return arrival.get() - nanos <= 0 && suppressed.get() == 0;
+        }
+
+        private void suppress(final LoggingEvent loggingEvent) {
+            lastLoggerName = loggingEvent.getLoggerName();
+            lastLevel = loggingEvent.getLevel();
+            suppressed.incrementAndGet();
+        }
+
+        LoggingEvent drainSummary(final long millis, final long since) {
+            long count = suppressed.getAndSet(0);
+            if (count == 0) {
+                return null;
+            }
+
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put(RULE_PROPERTY, rule);
+            properties.put(SUPPRESSED_PROPERTY, String.valueOf(count));
+            if (mdcKey != null) {
+                properties.put(mdcKey, mdcValue);
+            }
+            String loggerName = lastLoggerName;
+            Level level = lastLevel;
+            String message = count + " events suppressed by rate limit " + rule + " over "
+                    + TimeUnit.MILLISECONDS.toSeconds(Math.max(0, millis - since)) + " s";
+            return new LoggingEvent(EventRateLimiter.class.getName(),
+                    (loggerName == null) ? Logger.getRootLogger() : Logger.getLogger(loggerName),
+                    millis, (level == null) ? Level.WARN : level, message, Thread
+                            .currentThread().getName(), null, null, null, properties);
+        }
+    }
+
+    /**
+     * The buckets per value of an MDC key.
+     */
+    private static final class MdcBuckets {
+
+        final String key;
+
+        final String rule;
+
+        final Limit limit;
+
+        final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+        final Bucket overflow;
+
+        MdcBuckets(String key, String rule, Limit limit, long nanos) {
+            this.key = key;
+            this.rule = rule;
+            this.limit = limit;
+            this.overflow = new Bucket(rule, key, "*", limit, nanos);
+        }
+
+        boolean tryAcquire(final LoggingEvent loggingEvent, final long nanos) {
+            Object value = loggingEvent.getMDC(key);
+            if (value == null) {
+                return true;
+            }
+            String string = value.toString();
+            Bucket bucket = buckets.get(string);
+            if (bucket == null) {
+                if (buckets.size() >= MAX_MDC_VALUES) {
+                    bucket = overflow;
+                } else {
+                    bucket = new Bucket(rule, key, string, limit, nanos);
+                    Bucket previous = buckets.putIfAbsent(string, bucket);
+                    if (previous != null) {
+                        bucket = previous;
+                    }
+                }
+            }
+            return bucket.tryAcquire(loggingEvent, nanos);
+        }
+
+        /**
+         * Removes the buckets that are idle since a time. An event racing with the removal may
+         * still take a token from the removed bucket.
+         */
+        void evictIdle(final long nanos) {
+            for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+                if (entry.getValue().isIdleSince(nanos)) {
+                    buckets.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Priority;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Deterministic head sampling of the events below WARN, applied by a BsonAppender before events
+ * are BSONified.
+ * <p>
+ * Sample rates are declared as an ampersand delimited list of key=rate pairs, where the rate is
+ * the fraction of events kept, between 0 and 1. The key is a logger name prefix with a level
+ * (e.g., com.acme.hot:DEBUG), a logger name prefix (e.g., com.acme.hot), a level name (e.g.,
+ * INFO) or * for the default rate, in decreasing order of precedence. Of several logger name
+ * prefixes the longest match wins. Events that match no key, and events at WARN or above, are
+ * always kept.
+ * <p>
+ * An event is kept if the hash of the value of the sample MDC key (e.g., a trace id), mapped to
+ * [0, 1), is below its rate. All the events of a trace are therefore kept or dropped together,
+ * in every process using the same rates, and a trace kept at some rate is also kept at any higher
+ * rate. Events without the MDC key are sampled at random.
+ * <p>
+ * The rates of a logger name are resolved once and cached.
+ */
+final class EventSampler {
+
+    /**
+     * The field added to the documents of sampled events, holding their sample rate. Documents
+     * without it were stored at a rate of 1.
+     */
+    static final String SAMPLE_RATE_FIELD = "sampleRate";
+
+    private static final double KEEP = 1;
+
+    private final String mdcKey;
+
+    private final double defaultRate;
+
+    private final Map<Level, Double> levelRates;
+
+    private final Map<String, Double> prefixRates;
+
+    private final ConcurrentHashMap<String, double[]> loggerRates =
+            new ConcurrentHashMap<String, double[]>();
+
+    private EventSampler(String mdcKey, double defaultRate, Map<Level, Double> levelRates,
+            Map<String, Double> prefixRates) {
+        this.mdcKey = mdcKey;
+        this.defaultRate = defaultRate;
+        this.levelRates = levelRates;
+        this.prefixRates = prefixRates;
+    }
+
+    /**
+     * Parses a sample rates declaration. Invalid rates are ignored with a warning.
+     *
+     * @param rates
+     *            Ampersand delimited list of key=rate pairs <i>(may be null)</i>.
+     * @param mdcKey
+     *            The MDC key whose value decides which events are kept <i>(may be null)</i>.
+     * @return The sampler, or null if no rate below 1 is declared
+     */
+    static EventSampler parse(final String rates, final String mdcKey) {
+        if (rates == null || rates.trim().length() == 0) {
+            return null;
+        }
+
+        double defaultRate = KEEP;
+        Map<Level, Double> levels = new HashMap<Level, Double>();
+        Map<String, Double> prefixes = new HashMap<String, Double>();
+        boolean sampling = false;
+        for (String binding : rates.split(" *& *")) {
+            String[] pair = binding.trim().split(" *= *", 2);
+            if (pair[0].length() == 0) {
+                continue;
+            }
+            double rate;
+            try {
+                rate = (pair.length == 1) ? Double.NaN : Double.parseDouble(pair[1]);
+            } catch (NumberFormatException e) {
+                rate = Double.NaN;
+            }
+            if (!(rate >= 0 && rate <= 1)) {
+                LogLog.warn("Ignoring sample rate '" + binding.trim()
+                        + "', expected key=rate between 0 and 1");
+                continue;
+            }
+
+            String key = pair[0];
+            int colon = key.lastIndexOf(':');
+            if (colon >= 0) {
+                String levelName = key.substring(colon + 1);
+                Level level = Level.toLevel(levelName, null);
+                if (colon == 0 || level == null || !levelName.equals(level.toString())) {
+                    LogLog.warn("Ignoring sample rate '" + binding.trim()
+                            + "', expected logger:LEVEL=rate");
+                    continue;
+                }
+            }
+            Level level = Level.toLevel(key, null);
+            if ("*".equals(key)) {
+                defaultRate = rate;
+            } else if (level != null && key.equals(level.toString())) {
+                levels.put(level, rate);
+            } else {
+                prefixes.put(key, rate);
+            }
+            sampling |= rate < 1;
+        }
+
+        return sampling ? new EventSampler(mdcKey, defaultRate, levels, prefixes) : null;
+    }
+
+    /**
+     * @return The MDC key whose value decides which events are kept <i>(may be null)</i>.
+     */
+    String getMdcKey() {
+        return mdcKey;
+    }
+
+    /**
+     * @param loggingEvent
+     *            The event being logged <i>(must not be null)</i>.
+     * @return true if the event is kept
+     */
+    boolean sample(final LoggingEvent loggingEvent) {
+        double rate = getRate(loggingEvent);
+        if (rate >= 1) {
+            return true;
+        }
+        Object value = (mdcKey == null) ? null : loggingEvent.getMDC(mdcKey);
+        double position = (value == null) ? ThreadLocalRandom.current().nextDouble()
+                : position(value.toString());
+        return position < rate;
+    }
+
+    /**
+     * @param loggingEvent
+     *            The event <i>(must not be null)</i>.
+     * @return The fraction of the events of its logger and level that are kept
+     */
+    double getRate(final LoggingEvent loggingEvent) {
+        Level level = loggingEvent.getLevel();
+        String loggerName = loggingEvent.getLoggerName();
+        if (level == null || level.isGreaterOrEqual(Level.WARN) || loggerName == null) {
+            return KEEP;
+        }
+        double[] rates = loggerRates.get(loggerName);
+        if (rates == null) {
+            rates = new double[] { resolve(loggerName, Level.TRACE),
+                    resolve(loggerName, Level.DEBUG), resolve(loggerName, Level.INFO) };
+            loggerRates.putIfAbsent(loggerName, rates);
+        }
+        int band = level.toInt();
+        return rates[(band < Priority.DEBUG_INT) ? 0 : (band < Priority.INFO_INT) ? 1 : 2];
+    }
+
+    private double resolve(final String loggerName, final Level level) {
+        String name = loggerName;
+        while (true) {
+            Double rate = prefixRates.get(name + ":" + level);
+            if (rate == null) {
+                rate = prefixRates.get(name);
+            }
+            if (rate != null) {
+                return rate;
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                break;
+            }
+            name = name.substring(0, dot);
+        }
+        Double rate = levelRates.get(level);
+        return (rate == null) ? defaultRate : rate;
+    }
+
+    /**
+     * Maps a value to [0, 1) with a 64-bit FNV-1a hash followed by the MurmurHash3 finalizer, so
+     * similar trace ids are spread uniformly.
+     *
+     * @param value
+     *            The value of the sample MDC key
+     * @return The position of the value in [0, 1)
+     */
+    static double position(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+}
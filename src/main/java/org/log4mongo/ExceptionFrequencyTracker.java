@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.log4mongo.HeavyHitterSketch.HeavyHitter;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-memory frequency tracking of the exceptions logged, by fingerprint. A fingerprint is the
+ * exception class, the class and method of its top stack frames and the class of its root cause,
+ * so occurrences of the same failure match even if their messages and line numbers differ.
+ * Fingerprints are counted in a HeavyHitterSketch of one minute windows covering 15 minutes.
+ */
+public final class ExceptionFrequencyTracker implements ExceptionFrequencyTrackerMBean {
+
+    static final int TOP_N = 10;
+
+    private static final int FINGERPRINT_FRAMES = 3;
+
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int WINDOWS = 15;
+
+    private final HeavyHitterSketch sketch;
+
+    private final LongAdder logged = new LongAdder();
+
+    /**
+     * @param capacity
+     *            The number of fingerprints monitored per minute <i>(must be greater than 0)</i>.
+     */
+    ExceptionFrequencyTracker(int capacity) {
+        sketch = new HeavyHitterSketch(capacity, WINDOW_MILLIS, WINDOWS);
+    }
+
+    /**
+     * Counts the throwable of an event, if it has one.
+     *
+     * @param loggingEvent
+     *            The event being BSONified
+     */
+    void record(LoggingEvent loggingEvent) {
+        ThrowableInformation throwableInfo = loggingEvent.getThrowableInformation();
+        if (throwableInfo == null) {
+            return;
+        }
+        String fingerprint = fingerprint(throwableInfo);
+        if (fingerprint != null) {
+            logged.increment();
+            sketch.add(fingerprint, 1, loggingEvent.getTimeStamp());
+        }
+    }
+
+    /**
+     * @param throwableInfo
+     *            The throwable of an event
+     * @return The fingerprint of the throwable, or null if it has none
+     */
+    static String fingerprint(ThrowableInformation throwableInfo) {
+        Throwable throwable = throwableInfo.getThrowable();
+        StringBuilder sb = new StringBuilder(128);
+        if (throwable != null) {
+            sb.append(throwable.getClass().getName());
+            StackTraceElement[] frames = throwable.getStackTrace();
+            for (int i = 0; i < frames.length && i < FINGERPRINT_FRAMES; i++) {
+                sb.append(i == 0 ? " at " : " < ").append(frames[i].getClassName()).append('.')
+                        .append(frames[i].getMethodName());
+            }
+            Throwable root = throwable;
+            while (root.getCause() != null && root.getCause() != root) {
+                root = root.getCause();
+            }
+            if (root != throwable) {
+                sb.append(" caused by ").append(root.getClass().getName());
+            }
+            return sb.toString();
+        }
+
+        // Events received from remote sources only carry the string representation
+        String[] lines = throwableInfo.getThrowableStrRep();
+        if (lines == null || lines.length == 0) {
+            return null;
+        }
+        int colon = lines[0].indexOf(':');
+        sb.append((colon < 0) ? lines[0].trim() : lines[0].substring(0, colon).trim());
+        int frames = 0;
+        for (int i = 1; i < lines.length && frames < FINGERPRINT_FRAMES; i++) {
+            String line = lines[i].trim();
+            if (line.startsWith("at ")) {
+                int paren = line.indexOf('(');
+                sb.append(frames++ == 0 ? " at " : " < ").append(
+                        (paren < 0) ? line.substring(3) : line.substring(3, paren));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param n
+     *            The maximum number of fingerprints
+     * @param minutes
+     *            The number of minutes, including the current one
+     * @return The most frequent fingerprints over the last minutes
+     */
+    List<HeavyHitter> top(int n, int minutes) {
+        return sketch.top(n, System.currentTimeMillis(), minutes);
+    }
+
+    /**
+     * Creates a summary of the exceptions of the last complete minute, with their rates over the
+     * last 5 and 15 minutes.
+     *
+     * @param now
+     *            The current time, in milliseconds
+     * @return The summary, or null if no exception was logged in the last complete minute
+     */
+    DBObject createSummary(long now) {
+        long end = now - now % WINDOW_MILLIS;
+        List<HeavyHitter> lastMinute = sketch.top(TOP_N, end - 1, 1);
+        if (lastMinute.isEmpty()) {
+            return null;
+        }
+        Map<String, HeavyHitter> last5 = toMap(sketch.top(Integer.MAX_VALUE, end - 1, 5));
+        Map<String, HeavyHitter> last15 = toMap(sketch.top(Integer.MAX_VALUE, end - 1, 15));
+
+        BasicDBList exceptions = new BasicDBList();
+        for (HeavyHitter hitter : lastMinute) {
+            BasicDBObject exception = new BasicDBObject("fingerprint", hitter.key);
+            exception.put("count", hitter.weight);
+            exception.put("error", hitter.error);
+            exception.put("ratePerMinute5", rate(last5.get(hitter.key), 5));
+            exception.put("ratePerMinute15", rate(last15.get(hitter.key), 15));
+            exceptions.add(exception);
+        }
+        BasicDBObject summary = new BasicDBObject();
+        summary.put("timestamp", new Date(end - WINDOW_MILLIS));
+        summary.put("intervalMillis", WINDOW_MILLIS);
+        summary.put("exceptions", exceptions);
+        return summary;
+    }
+
+    private static Map<String, HeavyHitter> toMap(List<HeavyHitter> hitters) {
+        Map<String, HeavyHitter> map = new HashMap<String, HeavyHitter>();
+        for (HeavyHitter hitter : hitters) {
+            map.put(hitter.key, hitter);
+        }
+        return map;
+    }
+
+    private static double rate(HeavyHitter hitter, int minutes) {
+        return (hitter == null) ? 0 : (double) hitter.weight / minutes;
+    }
+
+    public long getExceptionsLogged() {
+        return logged.sum();
+    }
+
+    public String[] getTopExceptionsLastMinute() {
+        return toStrings(top(TOP_N, 1), 0);
+    }
+
+    public String[] getTopExceptionsLast5Minutes() {
+        return toStrings(top(TOP_N, 5), 5);
+    }
+
+    public String[] getTopExceptionsLast15Minutes() {
+        return toStrings(top(TOP_N, 15), 15);
+    }
+
+    private static String[] toStrings(List<HeavyHitter> hitters, int minutes) {
+        String[] strings = new String[hitters.size()];
+        for (int i = 0; i < strings.length; i++) {
+            HeavyHitter hitter = hitters.get(i);
+            strings[i] = (minutes == 0) ? hitter.toString() : hitter + " ("
+                    + String.format("%.1f", rate(hitter, minutes)) + "/min)";
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+/**
+ * JMX management interface of the exception frequency tracking of LoggingEventBsonifierImpl,
+ * registered by MongoDbAppender as org.log4mongo:type=MongoDbAppender,name=&lt;appender
+ * name&gt;,component=Exceptions.
+ */
+public interface ExceptionFrequencyTrackerMBean {
+
+    /**
+     * @return The number of events with a throwable seen by the bsonifier
+     */
+    long getExceptionsLogged();
+
+    /**
+     * @return The most frequent exception fingerprints in the current minute, as
+     *         fingerprint=count
+     */
+    String[] getTopExceptionsLastMinute();
+
+    /**
+     * @return The most frequent exception fingerprints over the last 5 minutes, as
+     *         fingerprint=count (rate per minute)
+     */
+    String[] getTopExceptionsLast5Minutes();
+
+    /**
+     * @return The most frequent exception fingerprints over the last 15 minutes, as
+     *         fingerprint=count (rate per minute)
+     */
+    String[] getTopExceptionsLast15Minutes();
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.client.MongoCollection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a summary of the most frequent exception fingerprints of the last complete minute, with
+ * their rates over 5 and 15 minutes, into a dedicated collection every minute. No document is
+ * written for a minute without exceptions.
+ */
+final class ExceptionSummaryReporter extends PeriodicReporter {
+
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ExceptionFrequencyTracker tracker;
+
+    private long lastMinute = -1;
+
+    ExceptionSummaryReporter(MongoDbAppender appender, MongoCollection<DBObject> collection,
+            ExceptionFrequencyTracker tracker) {
+        super(appender, collection, MINUTE_MILLIS, "exceptions");
+        this.tracker = tracker;
+    }
+
+    @Override
+    synchronized DBObject createDocument() {
+        long now = System.currentTimeMillis();
+        if (now / MINUTE_MILLIS == lastMinute) {
+            // The schedule drifted; this minute has been reported
+            return null;
+        }
+        lastMinute = now / MINUTE_MILLIS;
+        DBObject summary = tracker.createSummary(now);
+        if (summary != null) {
+            summary.put("appender", appender.getName());
+            summary.put("host", hostInfo);
+        }
+        return summary;
+    }
+
+    @Override
+    synchronized DBObject createFinalDocument() {
+        // The current minute is incomplete, and the previous one has been reported
+        return null;
+    }
+}
@@ -5,6 +5,7 @@ import com.mongodb.DBObject;
 import org.bson.BSONObject;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -29,8 +30,8 @@ public class ExtendedMongoDbAppender extends MongoDbAppender {
      */
     @Override
     public void activateOptions() {
-        super.activateOptions();
         initTopLevelProperties();
+        super.activateOptions();
     }
 
     /**
@@ -72,4 +73,18 @@ public class ExtendedMongoDbAppender extends MongoDbAppender {
             super.append(bson);
         }
     }
+
+    /**
+     * @param batch
+     *            The BSON objects to insert into a MongoDB database collection.
+     */
+    @Override
+    protected void append(List<BSONObject> batch) {
+        if (this.isInitialized() && constants != null) {
+            for (BSONObject bson : batch) {
+                bson.putAll(constants);
+            }
+        }
+        super.append(batch);
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Compiled field-projection profile used by LoggingEventBsonifierImpl. A profile determines which
+ * parts of a LoggingEvent are written to the BSON document, so the work for fields that are never
+ * queried (e.g., capturing location info or copying the MDC) is skipped entirely.
+ * <p>
+ * A profile is declared as a comma delimited list of field names:
+ * <ul>
+ * <li>timestamp</li>
+ * <li>level</li>
+ * <li>thread</li>
+ * <li>message</li>
+ * <li>loggerName - the fully qualified logger name only</li>
+ * <li>loggerNameParts - the logger name decomposed into package and className (implies
+ * loggerName)</li>
+ * <li>location - fileName, method, lineNumber and class of the logging call</li>
+ * <li>host - host name, IP address and process</li>
+ * <li>mdc - MDC properties</li>
+ * <li>throwables</li>
+ * <li>tokens - the message token array, if enabled</li>
+ * </ul>
+ * The special value "all" selects every field.
+ */
+public final class FieldProjection {
+
+    public static final String ALL_FIELDS = "all";
+
+    /**
+     * Profile that writes every field. This is the default when no profile is bound.
+     */
+    public static final FieldProjection ALL = new FieldProjection(true, true, true, true, true,
+            true, true, true, true, true, true);
+
+    final boolean timestamp;
+
+    final boolean level;
+
+    final boolean thread;
+
+    final boolean message;
+
+    final boolean loggerName;
+
+    final boolean loggerNameParts;
+
+    final boolean location;
+
+    final boolean host;
+
+    final boolean mdc;
+
+    final boolean throwables;
+
+    final boolean tokens;
+
+    private FieldProjection(boolean timestamp, boolean level, boolean thread, boolean message,
+            boolean loggerName, boolean loggerNameParts, boolean location, boolean host,
+            boolean mdc, boolean throwables, boolean tokens) {
+        this.timestamp = timestamp;
+        this.level = level;
+        this.thread = thread;
+        this.message = message;
+        this.loggerName = loggerName || loggerNameParts;
+        this.loggerNameParts = loggerNameParts;
+        this.location = location;
+        this.host = host;
+        this.mdc = mdc;
+        this.throwables = throwables;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Compiles a comma delimited list of field names into a profile. Unknown field names are
+     * reported and ignored.
+     *
+     * @param fields
+     *            Comma delimited list of field names, or "all" <i>(must not be null)</i>.
+     * @return The compiled profile
+     */
+    public static FieldProjection parse(final String fields) {
+        boolean timestamp = false, level = false, thread = false, message = false;
+        boolean loggerName = false, loggerNameParts = false, location = false, host = false;
+        boolean mdc = false, throwables = false, tokens = false;
+
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (field.length() == 0) {
+                continue;
+            }
+            if (ALL_FIELDS.equals(field)) {
+                return ALL;
+            } else if ("timestamp".equals(field)) {
+                timestamp = true;
+            } else if ("level".equals(field)) {
+                level = true;
+            } else if ("thread".equals(field)) {
+                thread = true;
+            } else if ("message".equals(field)) {
+                message = true;
+            } else if ("loggerName".equals(field)) {
+                loggerName = true;
+            } else if ("loggerNameParts".equals(field)) {
+                loggerNameParts = true;
+            } else if ("location".equals(field)) {
+                location = true;
+            } else if ("host".equals(field)) {
+                host = true;
+            } else if ("mdc".equals(field)) {
+                mdc = true;
+            } else if ("throwables".equals(field)) {
+                throwables = true;
+            } else if ("tokens".equals(field)) {
+                tokens = true;
+            } else {
+                LogLog.warn("Ignoring unknown field '" + field + "' in field projection");
+            }
+        }
+
+        return new FieldProjection(timestamp, level, thread, message, loggerName,
+                loggerNameParts, location, host, mdc, throwables, tokens);
+    }
+
+    /**
+     * @return true if the profile needs the location of the logging call, which is expensive to
+     *         capture
+     */
+    public boolean includesLocation() {
+        return location;
+    }
+
+    /**
+     * @return true if the profile needs the MDC properties of the event
+     */
+    public boolean includesMdc() {
+        return mdc;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binds FieldProjection profiles to log levels and logger name prefixes.
+ * <p>
+ * Bindings are declared as an ampersand delimited list of key=fields pairs, where the key is a
+ * level name (e.g., ERROR), a logger name prefix (e.g., com.acme.hot) or * for the default
+ * profile. A level binding takes precedence over a logger name binding, so that e.g. ERROR=all
+ * still captures everything for loggers bound to a lean profile. Of several logger name prefixes
+ * the longest match wins. A prefix matches the logger with the same name and its descendants in
+ * the Log4J hierarchy.
+ * <p>
+ * The profile for a logger name is resolved once and cached.
+ */
+final class FieldProjectionBindings {
+
+    static final FieldProjectionBindings NONE = new FieldProjectionBindings(
+            FieldProjection.ALL, Collections.<Level, FieldProjection> emptyMap(),
+            Collections.<String, FieldProjection> emptyMap());
+
+    private final FieldProjection defaultProjection;
+
+    private final Map<Level, FieldProjection> levelProjections;
+
+    private final Map<String, FieldProjection> prefixProjections;
+
+    private final ConcurrentHashMap<String, FieldProjection> loggerProjections =
+            new ConcurrentHashMap<String, FieldProjection>();
+
+    private FieldProjectionBindings(FieldProjection defaultProjection,
+            Map<Level, FieldProjection> levelProjections,
+            Map<String, FieldProjection> prefixProjections) {
+        this.defaultProjection = defaultProjection;
+        this.levelProjections = levelProjections;
+        this.prefixProjections = prefixProjections;
+    }
+
+    /**
+     * Parses and compiles a bindings declaration. Identical field lists share a single compiled
+     * FieldProjection.
+     *
+     * @param bindings
+     *            Ampersand delimited list of key=fields pairs <i>(may be null)</i>.
+     * @return The compiled bindings
+     */
+    static FieldProjectionBindings parse(final String bindings) {
+        if (bindings == null || bindings.trim().length() == 0) {
+            return NONE;
+        }
+
+        Map<String, FieldProjection> compiled = new HashMap<String, FieldProjection>();
+        FieldProjection defaultProjection = FieldProjection.ALL;
+        Map<Level, FieldProjection> levels = new HashMap<Level, FieldProjection>();
+        Map<String, FieldProjection> prefixes = new HashMap<String, FieldProjection>();
+
+        for (String binding : bindings.split(" *& *")) {
+            String[] pair = binding.trim().split(" *= *", 2);
+            if (pair[0].length() == 0) {
+                continue;
+            }
+            String fields = (pair.length == 1) ? "" : pair[1];
+            FieldProjection projection = compiled.get(fields);
+            if (projection == null) {
+                projection = FieldProjection.parse(fields);
+                compiled.put(fields, projection);
+            }
+
+            String key = pair[0];
+            Level level = Level.toLevel(key, null);
+            if ("*".equals(key)) {
+                defaultProjection = projection;
+            } else if (level != null && key.equals(level.toString())) {
+                levels.put(level, projection);
+            } else {
+                prefixes.put(key, projection);
+            }
+        }
+
+        return new FieldProjectionBindings(defaultProjection, levels, prefixes);
+    }
+
+    /**
+     * @param loggingEvent
+     *            The event about to be BSONified <i>(must not be null)</i>.
+     * @return The profile bound to the event's level or logger name, or the default profile
+     */
+    FieldProjection resolve(final LoggingEvent loggingEvent) {
+        if (!levelProjections.isEmpty()) {
+            FieldProjection projection = levelProjections.get(loggingEvent.getLevel());
+            if (projection != null) {
+                return projection;
+            }
+        }
+        if (prefixProjections.isEmpty()) {
+            return defaultProjection;
+        }
+
+        String loggerName = loggingEvent.getLoggerName();
+        if (loggerName == null) {
+            return defaultProjection;
+        }
+        FieldProjection projection = loggerProjections.get(loggerName);
+        if (projection == null) {
+            projection = resolvePrefix(loggerName);
+            loggerProjections.putIfAbsent(loggerName, projection);
+        }
+        return projection;
+    }
+
+    private FieldProjection resolvePrefix(final String loggerName) {
+        String name = loggerName;
+        while (true) {
+            FieldProjection projection = prefixProjections.get(name);
+            if (projection != null) {
+                return projection;
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                return defaultProjection;
+            }
+            name = name.substring(0, dot);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+
+/**
+ * The JFR event types of the appender pipeline. Only referenced through PipelineEvents, so this
+ * class is never loaded on runtimes without JFR.
+ */
+final class FlightRecorderEvents {
+
+    private FlightRecorderEvents() {
+    }
+
+    static Object beginBsonify() {
+        return begin(new BsonifyEvent());
+    }
+
+    static void bsonify(Object begun, String appender, LoggingEvent event, BSONObject bson) {
+        BsonifyEvent e = (BsonifyEvent) begun;
+        e.end();
+        if (e.shouldCommit()) {
+            e.appender = appender;
+            e.logger = event.getLoggerName();
+            e.level = String.valueOf(event.getLevel());
+            e.fields = (bson == null) ? 0 : bson.keySet().size();
+            e.commit();
+        }
+    }
+
+    static Object beginHandOff() {
+        return begin(new HandOffEvent());
+    }
+
+    static void handOff(Object begun, String appender, LoggingEvent event, boolean queued,
+            AsyncBsonWriter writer) {
+        HandOffEvent e = (HandOffEvent) begun;
+        e.end();
+        if (e.shouldCommit()) {
+            e.appender = appender;
+            e.logger = event.getLoggerName();
+            e.queued = queued;
+            // Takes the lock of the queue
+            e.queueDepth = writer.size();
+            e.commit();
+        }
+    }
+
+    static Object beginFlush() {
+        return begin(new FlushEvent());
+    }
+
+    static void flush(Object begun, String appender, int events, int documents) {
+        FlushEvent e = (FlushEvent) begun;
+        e.end();
+        if (e.shouldCommit()) {
+            e.appender = appender;
+            e.events = events;
+            e.documents = documents;
+            e.commit();
+        }
+    }
+
+    static Object beginInsert() {
+        return begin(new InsertEvent());
+    }
+
+    static void insert(Object begun, String appender, int documents, int failures) {
+        InsertEvent e = (InsertEvent) begun;
+        e.end();
+        if (e.shouldCommit()) {
+            e.appender = appender;
+            e.documents = documents;
+            e.failures = failures;
+            e.commit();
+        }
+    }
+
+    static void drop(String appender, String loggerName, String reason, int count) {
+        DropEvent e = new DropEvent();
+        if (e.isEnabled()) {
+            e.appender = appender;
+            e.logger = loggerName;
+            e.reason = reason;
+            e.count = count;
+            e.commit();
+        }
+    }
+
+    /**
+     * @return The event, begun, or null if no recording is enabled for it
+     */
+    private static Event begin(Event e) {
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    @Name("org.log4mongo.Bsonify")
+    @Label("Bsonify")
+    @Category({ "log4mongo", "Appender" })
+    @Description("Conversion of a logging event into a BSON document")
+    @StackTrace(false)
+    static final class BsonifyEvent extends Event {
+
+        @Label("Appender")
+        String appender;
+
+        @Label("Logger")
+        String logger;
+
+        @Label("Level")
+        String level;
+
+        @Label("Top-level Fields")
+        int fields;
+    }
+
+    @Name("org.log4mongo.HandOff")
+    @Label("Queue Hand-off")
+    @Category({ "log4mongo", "Appender" })
+    @Description("Snapshot and queueing of a logging event for the writer threads, including "
+            + "time blocked")
+    @StackTrace(false)
+    static final class HandOffEvent extends Event {
+
+        @Label("Appender")
+        String appender;
+
+        @Label("Logger")
+        String logger;
+
+        @Label("Queued")
+        @Description("false if the event was dropped")
+        boolean queued;
+
+        @Label("Queue Depth")
+        int queueDepth;
+    }
+
+    @Name("org.log4mongo.Flush")
+    @Label("Batch Flush")
+    @Category({ "log4mongo", "Appender" })
+    @Description("Batch of queued events BSONified and stored by a writer thread")
+    @StackTrace(false)
+    static final class FlushEvent extends Event {
+
+        @Label("Appender")
+        String appender;
+
+        @Label("Events")
+        int events;
+
+        @Label("Documents")
+        int documents;
+    }
+
+    @Name("org.log4mongo.Insert")
+    @Label("Insert")
+    @Category({ "log4mongo", "MongoDB" })
+    @Description("Insert round-trip to MongoDB")
+    @StackTrace(false)
+    static final class InsertEvent extends Event {
+
+        @Label("Appender")
+        String appender;
+
+        @Label("Documents")
+        int documents;
+
+        @Label("Failures")
+        int failures;
+    }
+
+    @Name("org.log4mongo.Drop")
+    @Label("Drop")
+    @Category({ "log4mongo", "Appender" })
+    @Description("Logging events discarded by an appender")
+    @StackTrace(false)
+    static final class DropEvent extends Event {
+
+        @Label("Appender")
+        String appender;
+
+        @Label("Logger")
+        String logger;
+
+        @Label("Reason")
+        String reason;
+
+        @Label("Count")
+        int count;
+    }
+}
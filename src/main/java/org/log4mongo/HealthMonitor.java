@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.helpers.LogLog;
+import org.log4mongo.AppenderMetrics.Counts;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the metrics of a MongoDbAppender every second, on a low priority daemon thread, to
+ * derive its AppenderHealth, and notifies the listeners when the health changes. Each sample
+ * publishes a snapshot, so getHealth() is a volatile read.
+ */
+final class HealthMonitor {
+
+    static final long INTERVAL_MILLIS = 1000;
+
+    // Number of intervals the drop rates are computed over
+    static final int WINDOW = 10;
+
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final MongoDbAppender appender;
+
+    private final List<AppenderHealthListener> listeners =
+            new CopyOnWriteArrayList<AppenderHealthListener>();
+
+    // Counter samples of the last WINDOW + 1 intervals
+    private final Counts[] samples = new Counts[WINDOW + 1];
+
+    private int samplesTaken = 0;
+
+    private boolean failing = false;
+
+    private AppenderHealth lastHealth = null;
+
+    // Not initialized until the options are activated
+    private volatile AppenderHealth health = new AppenderHealth(System.currentTimeMillis(), 0,
+            true, 0, 0, null, null);
+
+    private ScheduledExecutorService executor = null;
+
+    HealthMonitor(MongoDbAppender appender) {
+        this.appender = appender;
+    }
+
+    void addListener(AppenderHealthListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(AppenderHealthListener listener) {
+        listeners.remove(listener);
+    }
+
+    void start() {
+        ScheduledExecutorService newExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "log4mongo-health-"
+                                + appender.getName());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        ScheduledExecutorService previous;
+        synchronized (this) {
+            previous = executor;
+            executor = newExecutor;
+            health = createHealth();
+        }
+        // The previous ticks may need the monitor, so they are awaited without holding it
+        shutdown(previous);
+        newExecutor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        ScheduledExecutorService current;
+        synchronized (this) {
+            current = executor;
+            executor = null;
+        }
+        shutdown(current);
+    }
+
+    private static void shutdown(ScheduledExecutorService current) {
+        if (current != null) {
+            current.shutdown();
+            try {
+                current.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Samples the metrics, updates the failing state, publishes the health and notifies the
+     * listeners if it changed.
+     */
+    void tick() {
+        AppenderHealth previous;
+        AppenderHealth current;
+        synchronized (this) {
+            Counts sample = appender.getMetrics().getCounts();
+            if (samplesTaken > 0) {
+                Counts interval = sample.since(samples[(samplesTaken - 1) % samples.length]);
+                if (interval.written > 0) {
+                    failing = false;
+                } else if (interval.failed > 0) {
+                    failing = true;
+                }
+            }
+            samples[samplesTaken++ % samples.length] = sample;
+            current = createHealth();
+            health = current;
+            previous = lastHealth;
+            if (!current.differsFrom(previous)) {
+                return;
+            }
+            lastHealth = current;
+        }
+        if (previous == null) {
+            return;
+        }
+        for (AppenderHealthListener listener : listeners) {
+            try {
+                listener.healthChanged(previous, current);
+            } catch (RuntimeException e) {
+                LogLog.warn("Health listener of appender " + appender.getName() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return The health published by the last sample, at most one interval old
+     */
+    AppenderHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * The drop rates are relative to the events passed to the appender above its configured
+     * threshold. append sheds the events below a raised threshold before it counts them as
+     * accepted, so each of them is counted once, either as accepted or as shed.
+     *
+     * @return The current health, with the drop rates over the sampled intervals
+     */
+    private AppenderHealth createHealth() {
+        double dropRate = 0;
+        double policyDropRate = 0;
+        if (samplesTaken > 1) {
+            Counts window = samples[(samplesTaken - 1) % samples.length].since(
+                    samples[(samplesTaken > WINDOW) ? samplesTaken % samples.length : 0]);
+            long passed = window.accepted + window.shed;
+            if (passed > 0) {
+                dropRate = Math.min(1, (double) (window.dropped + window.failed) / passed);
+                policyDropRate = Math.min(1, (double) (window.shed + window.suppressed) / passed);
+            }
+        }
+        return new AppenderHealth(System.currentTimeMillis(), appender.getQueueFill(), failing
+                || !appender.isInitialized(), dropRate, policyDropRate, appender.getThreshold(),
+                appender.getEffectiveThreshold());
+    }
+}
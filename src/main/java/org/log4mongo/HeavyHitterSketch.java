@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded heavy-hitter sketch using the Space-Saving algorithm over a ring of time windows. Each
+ * window monitors at most capacity keys; when a new key arrives in a full window, it replaces the
+ * key with the smallest count and inherits that count as its maximum error. Memory therefore stays
+ * fixed no matter how many distinct keys are seen, and any key whose weight exceeds 1/capacity of
+ * the total weight of a window is guaranteed to be monitored.
+ * <p>
+ * Weights are added to the window holding their timestamp. The top keys are merged over the
+ * windows covering the last windows * windowMillis milliseconds.
+ */
+final class HeavyHitterSketch {
+
+    private final int capacity;
+
+    private final long windowMillis;
+
+    private final Window[] windows;
+
+    /**
+     * @param capacity
+     *            The number of keys monitored per window <i>(must be greater than 0)</i>.
+     * @param windowMillis
+     *            The length of each window
+     * @param windows
+     *            The number of windows kept
+     */
+    HeavyHitterSketch(int capacity, long windowMillis, int windows) {
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        this.windows = new Window[windows];
+        for (int i = 0; i < windows; i++) {
+            this.windows[i] = new Window(capacity);
+        }
+    }
+
+    /**
+     * @return The span of time covered by the sketch, in milliseconds
+     */
+    long getSpanMillis() {
+        return windowMillis * windows.length;
+    }
+
+    /**
+     * @param key
+     *            The key <i>(must not be null)</i>.
+     * @param weight
+     *            The weight to add to the key
+     * @param timestamp
+     *            The time of the weight, in milliseconds
+     */
+    synchronized void add(String key, long weight, long timestamp) {
+        long index = timestamp / windowMillis;
+        Window window = windows[(int) (index % windows.length)];
+        if (window.index != index) {
+            if (window.index > index) {
+                // Late arrival for a window that has been recycled; count it in the newest one
+                window = newestWindow();
+            } else {
+                window.reset(index);
+            }
+        }
+        window.add(key, weight);
+    }
+
+    /**
+     * Returns the keys with the largest total weight over the windows still in range at the given
+     * time.
+     *
+     * @param n
+     *            The maximum number of keys returned
+     * @param now
+     *            The current time, in milliseconds
+     * @return The keys, by decreasing weight
+     */
+    synchronized List<HeavyHitter> top(int n, long now) {
+        return top(n, now, windows.length);
+    }
+
+    /**
+     * Returns the keys with the largest total weight over the most recent windows at the given
+     * time.
+     *
+     * @param n
+     *            The maximum number of keys returned
+     * @param now
+     *            The current time, in milliseconds
+     * @param span
+     *            The number of windows merged, including the current one
+     * @return The keys, by decreasing weight
+     */
+    synchronized List<HeavyHitter> top(int n, long now, int span) {
+        long oldest = now / windowMillis - Math.min(span, windows.length) + 1;
+        Map<String, HeavyHitter> merged = new HashMap<String, HeavyHitter>();
+        long missingError = 0;
+        for (Window window : windows) {
+            if (window.index < oldest || window.index > now / windowMillis || window.size == 0) {
+                continue;
+            }
+            for (int i = 0; i < window.size; i++) {
+                HeavyHitter counter = merged.get(window.keys[i]);
+                if (counter == null) {
+                    // The key may have been counted, up to the minimum, in windows merged before
+                    counter = new HeavyHitter(window.keys[i], 0, missingError);
+                    merged.put(counter.key, counter);
+                }
+                counter.weight += window.weights[i];
+                counter.error += window.errors[i];
+            }
+            long min = (window.size < capacity) ? 0 : window.weights[window.min()];
+            missingError += min;
+        }
+        List<HeavyHitter> top = new ArrayList<HeavyHitter>(merged.values());
+        Collections.sort(top, new Comparator<HeavyHitter>() {
+            public int compare(HeavyHitter a, HeavyHitter b) {
+                return Long.compare(b.weight, a.weight);
+            }
+        });
+        return (top.size() > n) ? new ArrayList<HeavyHitter>(top.subList(0, n)) : top;
+    }
+
+    private Window newestWindow() {
+        Window newest = windows[0];
+        for (Window window : windows) {
+            if (window.index > newest.index) {
+                newest = window;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * A key and its estimated weight, which overestimates the true weight by at most error.
+     */
+    static final class HeavyHitter {
+
+        final String key;
+
+        long weight;
+
+        long error;
+
+        HeavyHitter(String key, long weight, long error) {
+            this.key = key;
+            this.weight = weight;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return (error == 0) ? key + "=" + weight : key + "=" + weight + " (+/-" + error + ")";
+        }
+    }
+
+    /**
+     * Space-Saving counters of a single window, in parallel arrays.
+     */
+    private static final class Window {
+
+        long index = -1;
+
+        int size = 0;
+
+        final String[] keys;
+
+        final long[] weights;
+
+        final long[] errors;
+
+        final Map<String, Integer> slots;
+
+        Window(int capacity) {
+            keys = new String[capacity];
+            weights = new long[capacity];
+            errors = new long[capacity];
+            slots = new HashMap<String, Integer>(capacity * 2);
+        }
+
+        void reset(long newIndex) {
+            index = newIndex;
+            size = 0;
+            slots.clear();
+        }
+
+        void add(String key, long weight) {
+            Integer slot = slots.get(key);
+            if (slot != null) {
+                weights[slot] += weight;
+            } else if (size < keys.length) {
+                keys[size] = key;
+                weights[size] = weight;
+                errors[size] = 0;
+                slots.put(key, size++);
+            } else {
+                int min = min();
+                slots.remove(keys[min]);
+                keys[min] = key;
+                errors[min] = weights[min];
+                weights[min] += weight;
+                slots.put(key, min);
+            }
+        }
+
+        int min() {
+            int min = 0;
+            for (int i = 1; i < size; i++) {
+                if (weights[i] < weights[min]) {
+                    min = i;
+                }
+            }
+            return min;
+        }
+    }
+}
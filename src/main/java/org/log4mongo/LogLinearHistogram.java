@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative long values (e.g., nanoseconds or batch sizes) with
+ * log-linear buckets: each power of two is split into 8 linear sub-buckets, so percentiles are
+ * accurate to within 12.5%. Every bucket is a LongAdder, so recording a value doesn't contend with
+ * other threads.
+ */
+final class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values up to 2^48 (about 3 days in nanoseconds) have their own buckets
+    private static final int MAX_EXPONENT = 48;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LogLinearHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value
+     *            The value to record. Negative values are recorded as 0.
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketOf(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    long getCount() {
+        long count = 0;
+        for (LongAdder c : counts) {
+            count += c.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The sum of the recorded values
+     */
+    long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The largest recorded value, or 0 if none was recorded
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if none was recorded
+     */
+    double getMean() {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @return A copy of the bucket counts, e.g. to compute percentiles over an interval with
+     *         getPercentile(long[], double)
+     */
+    long[] getCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param percentile
+     *            The percentile, between 0 and 100
+     * @return The upper bound of the bucket holding the percentile, or 0 if no value was recorded
+     */
+    long getPercentile(double percentile) {
+        return Math.min(getPercentile(getCounts(), percentile), getMax());
+    }
+
+    /**
+     * @param counts
+     *            Bucket counts returned by getCounts (or the difference of two of them)
+     * @param percentile
+     *            The percentile, between 0 and 100
+     * @return The upper bound of the bucket holding the percentile, or 0 if the counts are empty
+     */
+    static long getPercentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(counts.length - 1);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
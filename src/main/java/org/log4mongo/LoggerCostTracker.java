@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.log4mongo.HeavyHitterSketch.HeavyHitter;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts for the events and estimated BSON bytes stored per logger name and, optionally, per
+ * value of an MDC key, in HeavyHitterSketches covering the last five minutes. Memory is fixed by
+ * the capacity, regardless of how many loggers exist.
+ */
+final class LoggerCostTracker {
+
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int WINDOWS = 5;
+
+    private final String mdcKey;
+
+    private final HeavyHitterSketch eventsByLogger;
+
+    private final HeavyHitterSketch bytesByLogger;
+
+    private final HeavyHitterSketch eventsByMdc;
+
+    private final HeavyHitterSketch bytesByMdc;
+
+    /**
+     * @param capacity
+     *            The number of keys monitored per sketch window <i>(must be greater than 0)</i>.
+     * @param mdcKey
+     *            MDC key whose values are also accounted for <i>(may be null)</i>.
+     */
+    LoggerCostTracker(int capacity, String mdcKey) {
+        this.mdcKey = mdcKey;
+        eventsByLogger = new HeavyHitterSketch(capacity, WINDOW_MILLIS, WINDOWS);
+        bytesByLogger = new HeavyHitterSketch(capacity, WINDOW_MILLIS, WINDOWS);
+        eventsByMdc = (mdcKey == null) ? null : new HeavyHitterSketch(capacity, WINDOW_MILLIS,
+                WINDOWS);
+        bytesByMdc = (mdcKey == null) ? null : new HeavyHitterSketch(capacity, WINDOW_MILLIS,
+                WINDOWS);
+    }
+
+    /**
+     * @param event
+     *            The event that was BSONified
+     * @param bson
+     *            Its BSON representation <i>(may be null)</i>.
+     */
+    void record(LoggingEvent event, BSONObject bson) {
+        if (bson == null) {
+            return;
+        }
+        long timestamp = event.getTimeStamp();
+        long bytes = estimateSize(bson);
+        String logger = String.valueOf(event.getLoggerName());
+        eventsByLogger.add(logger, 1, timestamp);
+        bytesByLogger.add(logger, bytes, timestamp);
+        if (mdcKey != null) {
+            String value = String.valueOf(event.getMDC(mdcKey));
+            eventsByMdc.add(value, 1, timestamp);
+            bytesByMdc.add(value, bytes, timestamp);
+        }
+    }
+
+    String getMdcKey() {
+        return mdcKey;
+    }
+
+    List<HeavyHitter> topLoggersByEvents(int n) {
+        return eventsByLogger.top(n, System.currentTimeMillis());
+    }
+
+    List<HeavyHitter> topLoggersByBytes(int n) {
+        return bytesByLogger.top(n, System.currentTimeMillis());
+    }
+
+    List<HeavyHitter> topMdcValuesByEvents(int n) {
+        return (eventsByMdc == null) ? Collections.<HeavyHitter> emptyList()
+                : eventsByMdc.top(n, System.currentTimeMillis());
+    }
+
+    List<HeavyHitter> topMdcValuesByBytes(int n) {
+        return (bytesByMdc == null) ? Collections.<HeavyHitter> emptyList()
+                : bytesByMdc.top(n, System.currentTimeMillis());
+    }
+
+    /**
+     * Estimates the encoded size of a BSON value from its structure, without encoding it. Strings
+     * are assumed to be mostly ASCII.
+     *
+     * @param value
+     *            The value
+     * @return The estimated size in bytes
+     */
+    static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return 5 + ((String) value).length();
+        } else if (value instanceof BSONObject) {
+            BSONObject document = (BSONObject) value;
+            long size = 5;
+            for (String key : document.keySet()) {
+                size += 2 + key.length() + estimateSize(document.get(key));
+            }
+            return size;
+        } else if (value instanceof Integer || value instanceof Float || value instanceof Short
+                || value instanceof Byte) {
+            return 4;
+        } else if (value instanceof Long || value instanceof Double || value instanceof Date) {
+            return 8;
+        } else if (value == null) {
+            return 0;
+        } else if (value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof ObjectId) {
+            return 12;
+        } else if (value instanceof Binary) {
+            return 5 + ((Binary) value).length();
+        } else if (value instanceof Iterable) {
+            long size = 5;
+            int index = 0;
+            for (Object element : (Iterable<?>) value) {
+                size += 2 + Integer.toString(index++).length() + estimateSize(element);
+            }
+            return size;
+        }
+        return 16;
+    }
+}
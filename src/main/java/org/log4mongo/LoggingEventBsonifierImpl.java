@@ -29,10 +29,17 @@ import org.bson.BSONObject;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Default implementation class for creating a BSON representation of a Log4J LoggingEvent.
@@ -40,6 +47,8 @@ import java.util.Map;
 public class LoggingEventBsonifierImpl implements LoggingEventBsonifier {
 
     // Main log event elements
+    private static final String KEY_ID = "_id";
+
     private static final String KEY_TIMESTAMP = "timestamp";
 
     private static final String KEY_LEVEL = "level";
@@ -85,20 +94,62 @@ public class LoggingEventBsonifierImpl implements LoggingEventBsonifier {
     // MDC Properties
     private static final String KEY_MDC_PROPERTIES = "properties";
 
+    /**
+     * Top-level fields written by the bsonifier and BsonAppender, which promoted MDC keys must not
+     * replace. The message token field is checked separately, since its name is configurable.
+     */
+    static final Set<String> TOP_LEVEL_FIELDS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList(KEY_ID, KEY_TIMESTAMP, KEY_LEVEL, KEY_THREAD, KEY_MESSAGE,
+                    KEY_LOGGER_NAME, KEY_FILE_NAME, KEY_METHOD, KEY_LINE_NUMBER, KEY_CLASS,
+                    KEY_THROWABLES, KEY_HOST, KEY_MDC_PROPERTIES, EventSampler.SAMPLE_RATE_FIELD,
+                    BurstCollapser.REPEATED_FIELD)));
+
     private final DBObject hostInfo = new BasicDBObject();
 
+    private volatile FieldProjectionBindings projections = FieldProjectionBindings.NONE;
+
+    private String fieldProjections;
+
+    private volatile PromotedMdcKeys promotedKeys = PromotedMdcKeys.NONE;
+
+    private String promotedMdcKeys;
+
+    private volatile MessageTokenizer tokenizer = null;
+
+    private String tokenField = null;
+
+    private String tokenDelimiter = null;
+
+    private String tokenStopWords = null;
+
+    private int maxTokens = MessageTokenizer.DEFAULT_MAX_TOKENS;
+
+    private int exceptionTrackingCapacity = 0;
+
+    private volatile ExceptionFrequencyTracker exceptionTracker = null;
+
     public LoggingEventBsonifierImpl() {
         setupNetworkInfo();
     }
 
     private void setupNetworkInfo() {
-        hostInfo.put(KEY_PROCESS, ManagementFactory.getRuntimeMXBean().getName());
+        hostInfo.putAll(createHostInfo());
+    }
+
+    /**
+     * @return A new document with the process name, host name and IP address of this JVM, as
+     *         stored in the host field of each event
+     */
+    static DBObject createHostInfo() {
+        DBObject info = new BasicDBObject();
+        info.put(KEY_PROCESS, ManagementFactory.getRuntimeMXBean().getName());
         try {
-            hostInfo.put(KEY_HOSTNAME, InetAddress.getLocalHost().getHostName());
-            hostInfo.put(KEY_IP, InetAddress.getLocalHost().getHostAddress());
+            info.put(KEY_HOSTNAME, InetAddress.getLocalHost().getHostName());
+            info.put(KEY_IP, InetAddress.getLocalHost().getHostAddress());
         } catch (UnknownHostException e) {
             LogLog.warn(e.getMessage());
         }
+        return info;
     }
 
     /**
@@ -113,25 +164,289 @@ public class LoggingEventBsonifierImpl implements LoggingEventBsonifier {
         DBObject result = null;
 
         if (loggingEvent != null) {
+            FieldProjection projection = projections.resolve(loggingEvent);
             result = new BasicDBObject();
 
-            result.put(KEY_TIMESTAMP, new Date(loggingEvent.getTimeStamp()));
-            nullSafePut(result, KEY_LEVEL, loggingEvent.getLevel().toString());
-            nullSafePut(result, KEY_THREAD, loggingEvent.getThreadName());
-            nullSafePut(result, KEY_MESSAGE, loggingEvent.getRenderedMessage());
-            nullSafePut(result, KEY_LOGGER_NAME, bsonifyClassName(loggingEvent.getLoggerName()));
+            if (projection.timestamp) {
+                result.put(KEY_TIMESTAMP, new Date(loggingEvent.getTimeStamp()));
+            }
+            if (projection.level) {
+                nullSafePut(result, KEY_LEVEL, loggingEvent.getLevel().toString());
+            }
+            if (projection.thread) {
+                nullSafePut(result, KEY_THREAD, loggingEvent.getThreadName());
+            }
+            if (projection.message) {
+                nullSafePut(result, KEY_MESSAGE, loggingEvent.getRenderedMessage());
+            }
+            if (projection.loggerNameParts) {
+                nullSafePut(result, KEY_LOGGER_NAME,
+                        bsonifyClassName(loggingEvent.getLoggerName()));
+            } else if (projection.loggerName) {
+                nullSafePut(result, KEY_LOGGER_NAME,
+                        bsonifyFullyQualifiedClassName(loggingEvent.getLoggerName()));
+            }
+
+            if (projection.mdc) {
+                addMDCInformation(result, loggingEvent.getProperties());
+            } else {
+                addPromotedMDCInformation(result, loggingEvent);
+            }
+            if (projection.location) {
+                addLocationInformation(result, loggingEvent.getLocationInformation());
+            }
+            if (projection.throwables) {
+                addThrowableInformation(result, loggingEvent.getThrowableInformation());
+            }
+            if (projection.host) {
+                addHostnameInformation(result);
+            }
+            if (projection.tokens) {
+                addTokenInformation(result, loggingEvent);
+            }
 
-            addMDCInformation(result, loggingEvent.getProperties());
-            addLocationInformation(result, loggingEvent.getLocationInformation());
-            addThrowableInformation(result, loggingEvent.getThrowableInformation());
-            addHostnameInformation(result);
+            ExceptionFrequencyTracker tracker = exceptionTracker;
+            if (tracker != null) {
+                tracker.record(loggingEvent);
+            }
         }
 
         return (result);
     }
 
     /**
-     * Adds MDC Properties to the DBObject.
+     * @param loggingEvent
+     *            The event about to be BSONified <i>(must not be null)</i>.
+     * @return The field projection profile that applies to the event
+     */
+    public FieldProjection getFieldProjection(final LoggingEvent loggingEvent) {
+        return projections.resolve(loggingEvent);
+    }
+
+    /**
+     * @return The field projection bindings <i>(may be null)</i>.
+     */
+    public String getFieldProjections() {
+        return fieldProjections;
+    }
+
+    /**
+     * Binds field projection profiles to log levels and logger name prefixes, e.g.
+     * "com.acme.hot=timestamp,level,loggerName,message &amp; ERROR=all". Each distinct field list
+     * is compiled once into a FieldProjection. Events not matched by any binding get every field.
+     *
+     * @param fieldProjections
+     *            Ampersand delimited list of key=fields pairs <i>(may be null)</i>.
+     * @see FieldProjection
+     */
+    public void setFieldProjections(final String fieldProjections) {
+        this.fieldProjections = fieldProjections;
+        this.projections = FieldProjectionBindings.parse(fieldProjections);
+    }
+
+    /**
+     * @return The promoted MDC keys <i>(may be null)</i>.
+     */
+    public String getPromotedMdcKeys() {
+        return promotedMdcKeys;
+    }
+
+    /**
+     * Hoists MDC keys from the properties sub-document to typed top-level fields, e.g.
+     * "traceId=objectId &amp; tenant=string &amp; userId=long". Supported types are objectId,
+     * uuid, long, date and string. Promoted keys are written even if a field projection excludes
+     * the MDC.
+     *
+     * @param promotedMdcKeys
+     *            Ampersand delimited list of key=type pairs <i>(may be null)</i>.
+     * @see PromotedMdcKeys
+     */
+    public void setPromotedMdcKeys(final String promotedMdcKeys) {
+        this.promotedMdcKeys = promotedMdcKeys;
+        updatePromotedKeys();
+    }
+
+    private void updatePromotedKeys() {
+        Set<String> reserved = TOP_LEVEL_FIELDS;
+        if (tokenField != null) {
+            reserved = new HashSet<String>(TOP_LEVEL_FIELDS);
+            reserved.add(tokenField);
+        }
+        this.promotedKeys = PromotedMdcKeys.parse(promotedMdcKeys, reserved);
+    }
+
+    /**
+     * @return The number of exception fingerprints monitored per minute, or 0 if exception
+     *         tracking is disabled
+     */
+    public int getExceptionTrackingCapacity() {
+        return exceptionTrackingCapacity;
+    }
+
+    /**
+     * Sets the size of the sketch counting the exceptions logged by fingerprint (exception class,
+     * top stack frames and root cause class) over the last 15 minutes. Exception tracking is
+     * opt-in: when enabled, each exception logged is fingerprinted and counted under the lock of
+     * the sketch.
+     *
+     * @param exceptionTrackingCapacity
+     *            The number of fingerprints monitored per minute (e.g., 32), or 0 to disable
+     *            exception tracking. Default is 0.
+     */
+    public void setExceptionTrackingCapacity(final int exceptionTrackingCapacity) {
+        assert exceptionTrackingCapacity >= 0 : "exceptionTrackingCapacity must not be negative";
+
+        this.exceptionTrackingCapacity = exceptionTrackingCapacity;
+        exceptionTracker = (exceptionTrackingCapacity == 0) ? null
+                : new ExceptionFrequencyTracker(exceptionTrackingCapacity);
+    }
+
+    /**
+     * @return The exception frequency tracking, or null if it is disabled
+     */
+    public ExceptionFrequencyTracker getExceptionTracker() {
+        return exceptionTracker;
+    }
+
+    /**
+     * @return The name of the message token array field <i>(may be null)</i>.
+     */
+    public String getTokenField() {
+        return tokenField;
+    }
+
+    /**
+     * Enables the message token array. The field holds the lower cased, deduplicated tokens of the
+     * message and the messages of all throwables, for use with a multikey index.
+     *
+     * @param tokenField
+     *            The name of the token array field, or null to disable it. Must not be the name of
+     *            another top-level field.
+     */
+    public void setTokenField(final String tokenField) {
+        String name = (tokenField != null && tokenField.trim().length() > 0) ? tokenField.trim()
+                : null;
+        if (name != null && TOP_LEVEL_FIELDS.contains(name)) {
+            LogLog.warn("The message tokens can't be stored in the '" + name + "' field");
+            name = null;
+        }
+        this.tokenField = name;
+        updateTokenizer();
+        if (promotedMdcKeys != null) {
+            updatePromotedKeys();
+        }
+    }
+
+    /**
+     * @return The token delimiter regular expression <i>(may be null)</i>.
+     */
+    public String getTokenDelimiter() {
+        return tokenDelimiter;
+    }
+
+    /**
+     * @param tokenDelimiter
+     *            Regular expression matching the text between tokens, or null to split on every
+     *            character that is not a letter or digit.
+     */
+    public void setTokenDelimiter(final String tokenDelimiter) {
+        this.tokenDelimiter = tokenDelimiter;
+        updateTokenizer();
+    }
+
+    /**
+     * @return Comma delimited list of stop words <i>(may be null)</i>.
+     */
+    public String getTokenStopWords() {
+        return tokenStopWords;
+    }
+
+    /**
+     * @param tokenStopWords
+     *            Comma delimited list of words that are never stored as tokens, or null for a
+     *            default list of common English words.
+     */
+    public void setTokenStopWords(final String tokenStopWords) {
+        this.tokenStopWords = tokenStopWords;
+        updateTokenizer();
+    }
+
+    /**
+     * @return The maximum number of tokens stored per event
+     */
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /**
+     * @param maxTokens
+     *            The maximum number of tokens stored per event <i>(must be greater than 0)</i>.
+     */
+    public void setMaxTokens(final int maxTokens) {
+        assert maxTokens > 0 : "maxTokens must be greater than 0";
+
+        this.maxTokens = maxTokens;
+        updateTokenizer();
+    }
+
+    private void updateTokenizer() {
+        if (tokenField == null) {
+            tokenizer = null;
+            return;
+        }
+
+        Pattern delimiter = null;
+        if (tokenDelimiter != null && tokenDelimiter.length() > 0) {
+            try {
+                delimiter = Pattern.compile(tokenDelimiter);
+            } catch (PatternSyntaxException e) {
+                LogLog.warn("Invalid token delimiter, using default: " + e.getMessage());
+            }
+        }
+        Set<String> stopWords = new HashSet<String>();
+        if (tokenStopWords == null) {
+            stopWords.addAll(MessageTokenizer.DEFAULT_STOP_WORDS);
+        } else {
+            for (String word : tokenStopWords.split(",")) {
+                stopWords.add(word.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        tokenizer = new MessageTokenizer(delimiter, stopWords, maxTokens);
+    }
+
+    /**
+     * Adds the message token array to the DBObject, if enabled.
+     *
+     * @param bson
+     *            The root DBObject
+     * @param loggingEvent
+     *            The LoggingEvent to tokenize
+     */
+    protected void addTokenInformation(DBObject bson, final LoggingEvent loggingEvent) {
+        MessageTokenizer currentTokenizer = tokenizer;
+        if (currentTokenizer == null) {
+            return;
+        }
+
+        List<String> texts = new ArrayList<String>(2);
+        texts.add(loggingEvent.getRenderedMessage());
+        ThrowableInformation throwableInfo = loggingEvent.getThrowableInformation();
+        if (throwableInfo != null) {
+            Throwable throwable = throwableInfo.getThrowable();
+            while (throwable != null) {
+                texts.add(throwable.getMessage());
+                throwable = throwable.getCause();
+            }
+        }
+
+        List<Object> tokens = currentTokenizer.tokenize(texts);
+        if (!tokens.isEmpty()) {
+            bson.put(tokenField, tokens);
+        }
+    }
+
+    /**
+     * Adds MDC Properties to the DBObject. Promoted MDC keys are added as top-level fields.
      *
      * @param bson
      *            The root DBObject
@@ -141,15 +456,47 @@ public class LoggingEventBsonifierImpl implements LoggingEventBsonifier {
     protected void addMDCInformation(DBObject bson, final Map<Object, Object> props) {
         if (props != null && props.size() > 0) {
 
+            PromotedMdcKeys promoted = promotedKeys;
             BasicDBObject mdcProperties = new BasicDBObject();
             String key;
             // Copy MDC properties into document
             for (Map.Entry<Object, Object> entry : props.entrySet()) {
-                key = (entry.getKey().toString().contains(".")) ? entry.getKey().toString()
-                        .replaceAll("\\.", "_") : entry.getKey().toString();
+                key = entry.getKey().toString();
+                PromotedMdcKeys.Field field = promoted.get(key);
+                if (field != null && field.promote(bson, entry.getValue())) {
+                    continue;
+                }
+                key = (key.contains(".")) ? key.replaceAll("\\.", "_") : key;
                 nullSafePut(mdcProperties, key, entry.getValue().toString());
             }
-            bson.put(KEY_MDC_PROPERTIES, mdcProperties);
+            if (mdcProperties.size() > 0) {
+                bson.put(KEY_MDC_PROPERTIES, mdcProperties);
+            }
+        }
+    }
+
+    /**
+     * Adds only the promoted MDC keys to the DBObject, as top-level fields. The values are read
+     * from the properties of the event, since getMDC falls back to the MDC of the current thread,
+     * which is not the logging thread for the snapshots BSONified by the writer threads. Values that
+     * can't be parsed are not stored, and a warning is logged once per key.
+     *
+     * @param bson
+     *            The root DBObject
+     * @param loggingEvent
+     *            The LoggingEvent holding the MDC
+     */
+    protected void addPromotedMDCInformation(DBObject bson, final LoggingEvent loggingEvent) {
+        PromotedMdcKeys promoted = promotedKeys;
+        if (promoted.isEmpty()) {
+            return;
+        }
+        Map<?, ?> properties = loggingEvent.getProperties();
+        for (PromotedMdcKeys.Field field : promoted.fields()) {
+            Object value = properties.get(field.mdcKey);
+            if (value != null && !field.promote(bson, value)) {
+                field.warnDiscarded(value);
+            }
         }
     }
 
@@ -315,6 +662,24 @@ public class LoggingEventBsonifierImpl implements LoggingEventBsonifier {
         return (result);
     }
 
+    /**
+     * BSONifies the given class name without decomposing it into package and class name.
+     *
+     * @param className
+     *            The class name to BSONify <i>(may be null)</i>.
+     *
+     * @return The BSONified equivalent of the class name <i>(may be null)</i>.
+     */
+    protected DBObject bsonifyFullyQualifiedClassName(final String className) {
+        DBObject result = null;
+
+        if (className != null && className.trim().length() > 0) {
+            result = new BasicDBObject(KEY_FQCN, className);
+        }
+
+        return (result);
+    }
+
     /**
      * Adds the given value to the given key, except if it's null (in which case this method does
      * nothing).
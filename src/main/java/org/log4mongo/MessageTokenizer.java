@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts a normalized, deduplicated token array from log messages, so keyword searches can use a
+ * multikey index instead of a regex scan over the message field.
+ * <p>
+ * Tokens are lower cased. Tokens shorter than 2 or longer than 64 characters and stop words are
+ * skipped, and at most maxTokens tokens are kept, in order of first appearance. By default text is
+ * split on every character that is not a letter or digit; a custom delimiter regular expression
+ * may be given instead.
+ */
+final class MessageTokenizer {
+
+    static final List<String> DEFAULT_STOP_WORDS = Collections.unmodifiableList(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it",
+            "of", "on", "or", "that", "the", "to", "was", "with"));
+
+    static final int DEFAULT_MAX_TOKENS = 32;
+
+    private static final int MIN_TOKEN_LENGTH = 2;
+
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    private final Pattern delimiter;
+
+    private final Set<String> stopWords;
+
+    private final int maxTokens;
+
+    MessageTokenizer(Pattern delimiter, Set<String> stopWords, int maxTokens) {
+        this.delimiter = delimiter;
+        this.stopWords = stopWords;
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * Tokenizes the given texts into a single token array.
+     *
+     * @param texts
+     *            The texts to tokenize <i>(elements may be null)</i>.
+     * @return The token array <i>(may be empty)</i>.
+     */
+    List<Object> tokenize(final List<String> texts) {
+        List<Object> tokens = new BasicDBList();
+        Set<String> seen = new HashSet<String>();
+
+        for (String text : texts) {
+            if (text == null || tokens.size() >= maxTokens) {
+                continue;
+            }
+            if (delimiter != null) {
+                for (String token : delimiter.split(text)) {
+                    if (!addToken(tokens, seen, token)) {
+                        break;
+                    }
+                }
+            } else {
+                int start = -1;
+                for (int i = 0; i <= text.length(); i++) {
+                    boolean tokenChar = i < text.length()
+                            && Character.isLetterOrDigit(text.charAt(i));
+                    if (tokenChar && start < 0) {
+                        start = i;
+                    } else if (!tokenChar && start >= 0) {
+                        int length = i - start;
+                        if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH
+                                && !addToken(tokens, seen, text.substring(start, i))) {
+                            break;
+                        }
+                        start = -1;
+                    }
+                }
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return false once the token array is full
+     */
+    private boolean addToken(List<Object> tokens, Set<String> seen, String token) {
+        if (token.length() >= MIN_TOKEN_LENGTH && token.length() <= MAX_TOKEN_LENGTH) {
+            String normalized = token.toLowerCase(Locale.ROOT);
+            if (!stopWords.contains(normalized) && seen.add(normalized)) {
+                tokens.add(normalized);
+            }
+        }
+        return tokens.size() < maxTokens;
+    }
+}
@@ -20,10 +20,14 @@ package org.log4mongo;
 import com.mongodb.*;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.ErrorCode;
 import org.bson.BSONObject;
 import org.bson.Document;
 
+import javax.management.ObjectName;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -36,6 +40,18 @@ import java.util.List;
  * The appender does <u>not</u> create any indexes on the data that's stored - it is assumed that if
  * query performance is required, those would be created externally (e.g., in the MongoDB shell or
  * other external application).
+ * <p>
+ * When the options are activated, the write-path metrics of the appender are registered as a JMX
+ * MBean named org.log4mongo:type=MongoDbAppender,name=&lt;appender name&gt;, and the telemetry of
+ * the appender's own MongoClient (insert command latency, pre-send latency, commands in flight)
+ * under the same name with component=Driver. If metricsCollectionName is set, the same metrics are
+ * also written as a document into that collection every metricsInterval milliseconds. If enabled
+ * with exceptionTrackingCapacity, the exception frequency tracking of the default bsonifier is
+ * registered with component=Exceptions, and its top fingerprints are written every minute into
+ * exceptionSummaryCollectionName, if set.
+ * <p>
+ * Application code can ask for the pressure on the write path with getHealth(), or subscribe to
+ * its changes with addHealthListener(), to shed optional logging itself.
  *
  * @author Peter Monks (pmonks@gmail.com)
  * @see <a href="http://logging.apache.org/log4j/1.2/apidocs/org/apache/log4j/Appender.html">Log4J
@@ -52,6 +68,8 @@ public class MongoDbAppender extends BsonAppender {
 
     private final static String DEFAULT_MONGO_DB_COLLECTION_NAME = "logevents";
 
+    private final static long DEFAULT_METRICS_INTERVAL_MILLIS = 10000;
+
     private WriteConcern concern;
 
     private String hostname = DEFAULT_MONGO_DB_HOSTNAME;
@@ -74,6 +92,26 @@ public class MongoDbAppender extends BsonAppender {
 
     private boolean initialized = false;
 
+    private ObjectName metricsName = null;
+
+    private final DriverTelemetry driverTelemetry = new DriverTelemetry();
+
+    private ObjectName driverTelemetryName = null;
+
+    private String metricsCollectionName = null;
+
+    private long metricsInterval = DEFAULT_METRICS_INTERVAL_MILLIS;
+
+    private SelfMetricsReporter metricsReporter = null;
+
+    private ObjectName exceptionsName = null;
+
+    private String exceptionSummaryCollectionName = null;
+
+    private ExceptionSummaryReporter exceptionReporter = null;
+
+    private final HealthMonitor healthMonitor = new HealthMonitor(this);
+
     /**
      * @see org.apache.log4j.Appender#requiresLayout()
      */
@@ -107,6 +145,37 @@ public class MongoDbAppender extends BsonAppender {
             setCollection(database.getCollection(collectionName));
 
             initialized = true;
+
+            ExceptionFrequencyTracker exceptionTracker = getExceptionTracker();
+            if (metricsCollectionName != null && metricsCollectionName.trim().length() > 0) {
+                metricsReporter = new SelfMetricsReporter(this, database.getCollection(
+                        metricsCollectionName, DBObject.class), metricsInterval);
+                metricsReporter.start();
+            }
+            if (exceptionSummaryCollectionName != null
+                    && exceptionSummaryCollectionName.trim().length() > 0) {
+                if (exceptionTracker != null) {
+                    exceptionReporter = new ExceptionSummaryReporter(this, database.getCollection(
+                            exceptionSummaryCollectionName, DBObject.class), exceptionTracker);
+                    exceptionReporter.start();
+                } else {
+                    LogLog.warn("Appender " + getName() + " writes no exception summaries: set"
+                            + " exceptionTrackingCapacity to track exceptions");
+                }
+            }
+
+            metricsName = getMetrics().register(MongoDbAppender.class.getSimpleName());
+            if (metricsName != null) {
+                driverTelemetryName = AppenderMetrics.register(driverTelemetry, metricsName
+                        + ",component=Driver", getName());
+                if (exceptionTracker != null) {
+                    exceptionsName = AppenderMetrics.register(exceptionTracker, metricsName
+                            + ",component=Exceptions", getName());
+                }
+            }
+
+            super.activateOptions();
+            healthMonitor.start();
         } catch (Exception e) {
             errorHandler.error("Unexpected exception while initialising MongoDbAppender.", e,
                     ErrorCode.GENERIC_FAILURE);
@@ -125,10 +194,10 @@ public class MongoDbAppender extends BsonAppender {
      */
     protected MongoClient getMongo(List<ServerAddress> addresses) {
         if (addresses.size() < 2) {
-            return new MongoClient(addresses.get(0));
+            return new MongoClient(addresses.get(0), getMongoClientOptions());
         } else {
             // Replica set
-            return new MongoClient(addresses);
+            return new MongoClient(addresses, getMongoClientOptions());
         }
     }
 
@@ -138,13 +207,67 @@ public class MongoDbAppender extends BsonAppender {
         }
 
         if (addresses.size() < 2) {
-            return new MongoClient(addresses.get(0), credentials);
+            return new MongoClient(addresses.get(0), credentials, getMongoClientOptions());
         } else {
             // Replica set
-            return new MongoClient(addresses, credentials);
+            return new MongoClient(addresses, credentials, getMongoClientOptions());
         }
     }
 
+    /**
+     * Returns the options of the MongoClient created by the appender. The default options register
+     * the driver telemetry listener and identify the client as log4mongo, so its connections can
+     * be told apart from the application's own clients on the server. Subclasses overriding this
+     * method should start from super.getMongoClientOptions() to keep the telemetry.
+     *
+     * @return The client options
+     */
+    protected MongoClientOptions getMongoClientOptions() {
+        return MongoClientOptions.builder().applicationName("log4mongo")
+                .description("log4mongo appender " + getName())
+                .addCommandListener(driverTelemetry).build();
+    }
+
+    /**
+     * @return The telemetry collected from the commands of the appender's MongoClient
+     */
+    public DriverTelemetry getDriverTelemetry() {
+        return driverTelemetry;
+    }
+
+    /**
+     * Returns the current pressure on the write path: the queue fill ratio, whether inserts are
+     * failing, the fraction of events lost over the last ten seconds and the effective threshold,
+     * summarized as a pressure level. The snapshot is taken every second, so this is cheap enough
+     * to call before building an expensive message.
+     *
+     * @return A snapshot of the health of the appender
+     */
+    public AppenderHealth getHealth() {
+        return healthMonitor.getHealth();
+    }
+
+    /**
+     * Subscribes to changes of the pressure level, failing state or effective threshold, which are
+     * checked every second while the appender is active.
+     *
+     * @param listener
+     *            The listener <i>(must not be null)</i>.
+     */
+    public void addHealthListener(AppenderHealthListener listener) {
+        assert listener != null : "listener must not be null";
+
+        healthMonitor.addListener(listener);
+    }
+
+    /**
+     * @param listener
+     *            A listener added with addHealthListener
+     */
+    public void removeHealthListener(AppenderHealthListener listener) {
+        healthMonitor.removeListener(listener);
+    }
+
     /**
      * Note: this method is primarily intended for use by the unit tests.
      *
@@ -161,6 +284,22 @@ public class MongoDbAppender extends BsonAppender {
      * @see org.apache.log4j.Appender#close()
      */
     public void close() {
+        healthMonitor.stop();
+        stopWriter();
+        if (metricsReporter != null) {
+            metricsReporter.stop();
+            metricsReporter = null;
+        }
+        if (exceptionReporter != null) {
+            exceptionReporter.stop();
+            exceptionReporter = null;
+        }
+        AppenderMetrics.unregister(metricsName);
+        AppenderMetrics.unregister(driverTelemetryName);
+        AppenderMetrics.unregister(exceptionsName);
+        metricsName = null;
+        driverTelemetryName = null;
+        exceptionsName = null;
         if (mongo != null) {
             collection = null;
             mongo.close();
@@ -265,6 +404,68 @@ public class MongoDbAppender extends BsonAppender {
         this.password = password;
     }
 
+    /**
+     * @return The collection the appender writes its own metrics to <i>(may be null)</i>.
+     */
+    public String getMetricsCollectionName() {
+        return metricsCollectionName;
+    }
+
+    /**
+     * @param metricsCollectionName
+     *            The collection the appender writes a metrics document to every metricsInterval
+     *            milliseconds, in the same database as the events, or null (the default) to
+     *            disable these documents.
+     */
+    public void setMetricsCollectionName(final String metricsCollectionName) {
+        this.metricsCollectionName = metricsCollectionName;
+    }
+
+    /**
+     * @return The interval between metrics documents, in milliseconds
+     */
+    public long getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    /**
+     * @param metricsInterval
+     *            The interval between metrics documents, in milliseconds <i>(must be greater than
+     *            0)</i>. Default is 10000.
+     */
+    public void setMetricsInterval(final long metricsInterval) {
+        assert metricsInterval > 0 : "metricsInterval must be greater than 0";
+
+        this.metricsInterval = metricsInterval;
+    }
+
+    /**
+     * @return The collection exception summaries are written to <i>(may be null)</i>.
+     */
+    public String getExceptionSummaryCollectionName() {
+        return exceptionSummaryCollectionName;
+    }
+
+    /**
+     * @param exceptionSummaryCollectionName
+     *            The collection the most frequent exception fingerprints of the last minute are
+     *            written to every minute, in the same database as the events, or null (the
+     *            default) to disable these documents.
+     */
+    public void setExceptionSummaryCollectionName(final String exceptionSummaryCollectionName) {
+        this.exceptionSummaryCollectionName = exceptionSummaryCollectionName;
+    }
+
+    /**
+     * @return The exception frequency tracking of the default bsonifier, or null if it is disabled
+     *         or a custom bsonifier is used
+     */
+    private ExceptionFrequencyTracker getExceptionTracker() {
+        LoggingEventBsonifier bsonifier = getBsonifier();
+        return (bsonifier instanceof LoggingEventBsonifierImpl) ? ((LoggingEventBsonifierImpl) bsonifier)
+                .getExceptionTracker() : null;
+    }
+
     /**
      * @return the writeConcern setting for Mongo.
      */
@@ -295,13 +496,80 @@ public class MongoDbAppender extends BsonAppender {
      */
     @Override
     public void append(BSONObject bson) {
-        if (initialized && bson != null) {
-            try {
+        if (bson == null) {
+            return;
+        }
+        if (!initialized) {
+            getMetrics().eventsFailed(1);
+            return;
+        }
+        Object insert = PipelineEvents.beginInsert();
+        long start = System.nanoTime();
+        int failures = 1;
+        driverTelemetry.insertStarting();
+        try {
+            if (bson instanceof DBObject) {
+                // Encoded directly by the DBObject codec, without copying into a Document
+                getDBObjectCollection().insertOne((DBObject) bson);
+            } else {
                 getCollection().insertOne(new Document(bson.toMap()));
-            } catch (MongoException e) {
-                errorHandler.error("Failed to insert document to MongoDB", e,
-                        ErrorCode.WRITE_FAILURE);
             }
+            failures = 0;
+            getMetrics().eventsWritten(1);
+        } catch (MongoException e) {
+            getMetrics().eventsFailed(1);
+            errorHandler.error("Failed to insert document to MongoDB", e,
+                    ErrorCode.WRITE_FAILURE);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            getMetrics().insertCompleted(1, nanos);
+            PipelineEvents.insert(insert, getName(), 1, failures);
+        }
+    }
+
+    /**
+     * Inserts a batch of BSON objects with a single unordered insertMany.
+     *
+     * @param batch
+     *            The BSON objects to insert into a MongoDB database collection.
+     */
+    @Override
+    protected void append(List<BSONObject> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!initialized) {
+            getMetrics().eventsFailed(batch.size());
+            return;
+        }
+        List<DBObject> documents = new ArrayList<DBObject>(batch.size());
+        for (BSONObject bson : batch) {
+            documents.add((bson instanceof DBObject) ? (DBObject) bson : new BasicDBObject(
+                    bson.toMap()));
+        }
+        Object insert = PipelineEvents.beginInsert();
+        long start = System.nanoTime();
+        int failures = documents.size();
+        driverTelemetry.insertStarting();
+        try {
+            getDBObjectCollection().insertMany(documents,
+                    new InsertManyOptions().ordered(false));
+            failures = 0;
+            getMetrics().eventsWritten(documents.size());
+        } catch (MongoBulkWriteException e) {
+            failures = e.getWriteErrors().size();
+            getMetrics().eventsWritten(documents.size() - failures);
+            getMetrics().eventsFailed(failures);
+            errorHandler.error("Failed to insert documents to MongoDB", e,
+                    ErrorCode.WRITE_FAILURE);
+        } catch (MongoException e) {
+            getMetrics().eventsFailed(documents.size());
+            errorHandler.error("Failed to insert documents to MongoDB", e,
+                    ErrorCode.WRITE_FAILURE);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            getMetrics().insertCompleted(documents.size(), nanos);
+            PipelineEvents.insert(insert, getName(), documents.size(), failures);
         }
     }
 
@@ -326,6 +594,16 @@ public class MongoDbAppender extends BsonAppender {
         return collection.withWriteConcern(concern);
     }
 
+    /**
+     * @return The MongoDB collection to which events are logged, for DBObject documents.
+     */
+    @SuppressWarnings(value = "unchecked")
+    private MongoCollection<DBObject> getDBObjectCollection() {
+        // The collection is raw for compatibility with subclasses, but withDocumentClass returns
+        // a collection of the given document class whatever its original type
+        return getCollection().withDocumentClass(DBObject.class);
+    }
+
     /**
      * Returns a List of ServerAddress objects for each host specified in the hostname property.
      * Returns an empty list if configuration is detected to be invalid, e.g.:
@@ -17,29 +17,57 @@
 
 package org.log4mongo;
 
+import com.mongodb.DBObject;
 import org.apache.log4j.PatternLayout;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.helpers.PatternConverter;
 import org.apache.log4j.helpers.PatternParser;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * PatternLayout that must be used or extended when logging with MongoDbPatternLayoutAppender.
  * <p>
  * Much of the PatternLayout functionality needed to be re-implemented, because double quotes and \
  * need to be escaped in the formatted String. The formatted String will later be parsed as a JSON
  * document, so quotes in the values must be escaped.
+ * <p>
+ * If the conversion pattern is a JSON document, it is also compiled into a template of that
+ * document when it is set. MongoDbPatternLayoutAppender uses the template through formatBson, which
+ * stores the output of each converter directly as a BSON value, without generating or parsing any
+ * JSON text. Patterns using MongoDB extended JSON, such as {"$date": ...} or {"$oid": ...}, are not
+ * compiled, and are formatted and parsed as JSON as before.
+ * <p>
+ * By default every value of the document is a string, as it would be after parsing the formatted
+ * JSON. If TypedValues is set to true, values consisting of a single %d, %L, %r or %X converter
+ * (without padding) are stored as a Date, a 32 bit integer, a 64 bit integer and a sub-document of
+ * all MDC properties respectively, as are values of custom TypedPatternConverters.
+ * <p>
+ * Formatting is not synchronized: each call borrows converters, a compiled template and working
+ * buffers from a small pool of the layout, created from the current conversion pattern when none
+ * is free, so several threads (e.g., the writer threads of an asynchronous appender) can format
+ * concurrently. A layout called under the appender lock keeps a single set, whatever the number
+ * of logging threads, and the pool is released with the layout. Literal converters are
+ * identified once, when the pattern is parsed.
  *
  * @author Robert Stewart (robert@wombatnation.com)
  */
 public class MongoDbPatternLayout extends PatternLayout {
 
-    private StringBuffer buf = new StringBuffer(BUF_SIZE);
-
-    private StringBuilder builder = new StringBuilder(BUF_SIZE);
+    private static final int CONTEXT_SLOTS = 8;
 
     private String conversionPattern;
 
-    private PatternConverter headConverter;
+    private volatile Pattern pattern;
+
+    // Free formatting contexts; more threads than slots format with contexts created per call
+    private final AtomicReferenceArray<FormatContext> contexts =
+            new AtomicReferenceArray<FormatContext>(CONTEXT_SLOTS);
+
+    private boolean typedValues = false;
 
     public MongoDbPatternLayout() {
         this(DEFAULT_CONVERSION_PATTERN);
@@ -47,14 +75,28 @@ public class MongoDbPatternLayout extends PatternLayout {
 
     public MongoDbPatternLayout(String pattern) {
         this.conversionPattern = pattern;
-        headConverter = createPatternParser(
-                (pattern == null) ? DEFAULT_CONVERSION_PATTERN : pattern).parse();
+        this.pattern = new Pattern((pattern == null) ? DEFAULT_CONVERSION_PATTERN : pattern,
+                compileTemplate(pattern));
     }
 
     @Override
     public void setConversionPattern(String conversionPattern) {
         this.conversionPattern = conversionPattern;
-        headConverter = createPatternParser(conversionPattern).parse();
+        this.pattern = new Pattern(conversionPattern, compileTemplate(conversionPattern));
+    }
+
+    private PatternBsonTemplate compileTemplate(String pattern) {
+        if (pattern == null || !pattern.trim().startsWith("{")) {
+            // Not meant to be a JSON document, e.g. the default conversion pattern
+            return null;
+        }
+        try {
+            return PatternBsonTemplate.compile(pattern, this);
+        } catch (IllegalArgumentException e) {
+            LogLog.warn("Can't compile conversion pattern into a document template: "
+                    + e.getMessage());
+            return null;
+        }
     }
 
     @Override
@@ -62,6 +104,24 @@ public class MongoDbPatternLayout extends PatternLayout {
         return conversionPattern;
     }
 
+    /**
+     * @return true if values are stored with their native BSON types by formatBson
+     */
+    public boolean isTypedValues() {
+        return typedValues;
+    }
+
+    /**
+     * Sets whether formatBson stores values with their native BSON types (e.g., a Date for %d)
+     * instead of strings. Default is false.
+     *
+     * @param typedValues
+     *            true to store native types
+     */
+    public void setTypedValues(boolean typedValues) {
+        this.typedValues = typedValues;
+    }
+
     @Override
     public PatternParser createPatternParser(String pattern) {
         PatternParser parser;
@@ -83,45 +143,198 @@ public class MongoDbPatternLayout extends PatternLayout {
      */
     @Override
     public String format(LoggingEvent event) {
-        // Reset working StringBuilder
-        if (builder.capacity() > MAX_CAPACITY) {
-            builder = new StringBuilder(BUF_SIZE);
-        } else {
-            builder.setLength(0);
+        FormatContext context = borrowContext();
+        try {
+            return format(event, context);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    private String format(LoggingEvent event, FormatContext context) {
+        StringBuilder builder = context.resetBuilder();
+        PatternConverter[] converters = context.converters;
+        for (int i = 0; i < converters.length; i++) {
+            StringBuffer buf = context.resetBuf();
+            converters[i].format(buf, event);
+
+            // Escape double quotes and \ in String generated by converters
+            // other than a LiteralPatternConverter.
+            if (context.literal[i]) {
+                builder.append(buf);
+            } else {
+                int pos = 0;
+                int length = buf.length();
+                for (int j = 0; j < length; j++) {
+                    char c = buf.charAt(j);
+                    if (c == '\"' || c == '\\') {
+                        builder.append(buf, pos, j).append('\\').append(c);
+                        pos = j + 1;
+                    }
+                }
+                builder.append(buf, pos, length);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Produces the document specified by the conversion pattern. The output of each converter is
+     * stored directly as a value of the document, so no JSON text is generated or parsed.
+     *
+     * @param event
+     *            The LoggingEvent to format
+     * @return The document, or null if the conversion pattern is not a valid JSON document
+     */
+    public DBObject formatBson(LoggingEvent event) {
+        return formatBson(event, false);
+    }
+
+    /**
+     * Produces the document specified by the conversion pattern.
+     *
+     * @param event
+     *            The LoggingEvent to format
+     * @param nativeDates
+     *            true to store %d values as Dates even if TypedValues is not set
+     * @return The document, or null if the conversion pattern is not a valid JSON document
+     */
+    public DBObject formatBson(LoggingEvent event, boolean nativeDates) {
+        if (pattern.template == null) {
+            return null;
+        }
+        int typing = typedValues ? PatternBsonTemplate.TYPED_ALL
+                : nativeDates ? PatternBsonTemplate.TYPED_DATES : PatternBsonTemplate.TYPED_NONE;
+        FormatContext context = borrowContext();
+        try {
+            return context.template.render(event, context.resetBsonBuf(), typing);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     * @return true if the conversion pattern uses converters that need the location info of an
+     *         event, or converters this layout doesn't know
+     */
+    public boolean isLocationRequired() {
+        PatternBsonTemplate template = pattern.template;
+        return template == null || template.isLocationRequired();
+    }
+
+    /**
+     * Returns true for a LiteralPatternConverter. Can't use "instance of" because class is private.
+     */
+    static boolean isLiteral(PatternConverter c) {
+        return c.getClass().getSimpleName().equals("LiteralPatternConverter");
+    }
+
+    /**
+     * @return Formatting state for the current conversion pattern, owned by the caller until it is
+     *         released
+     */
+    private FormatContext borrowContext() {
+        Pattern current = pattern;
+        for (int i = 0; i < CONTEXT_SLOTS; i++) {
+            FormatContext context = contexts.getAndSet(i, null);
+            if (context != null && context.pattern == current) {
+                return context;
+            }
+        }
+        return new FormatContext(current);
+    }
+
+    /**
+     * Returns formatting state to the pool, unless the conversion pattern has changed or the pool
+     * is full.
+     */
+    private void releaseContext(FormatContext context) {
+        if (context.pattern != pattern) {
+            return;
+        }
+        for (int i = 0; i < CONTEXT_SLOTS; i++) {
+            if (contexts.compareAndSet(i, null, context)) {
+                return;
+            }
         }
+    }
+
+    /**
+     * A conversion pattern and the template shared by all threads, which is only used for
+     * validation and to tell whether location info is required. The converters are not thread
+     * safe (e.g., the date converter formats into a shared Date), so they are never used by two
+     * threads at once.
+     */
+    private static final class Pattern {
+
+        final String value;
 
-        PatternConverter c = headConverter;
+        final PatternBsonTemplate template;
+
+        Pattern(String value, PatternBsonTemplate template) {
+            this.value = value;
+            this.template = template;
+        }
+    }
 
-        while (c != null) {
+    /**
+     * Converters, template and working buffers, used by one thread at a time.
+     */
+    private final class FormatContext {
+
+        final Pattern pattern;
+
+        final PatternConverter[] converters;
+
+        final boolean[] literal;
+
+        final PatternBsonTemplate template;
+
+        private StringBuffer buf = new StringBuffer(BUF_SIZE);
+
+        private StringBuilder builder = new StringBuilder(BUF_SIZE);
+
+        private StringBuffer bsonBuf = new StringBuffer(BUF_SIZE);
+
+        FormatContext(Pattern pattern) {
+            this.pattern = pattern;
+            List<PatternConverter> chain = new ArrayList<PatternConverter>();
+            for (PatternConverter c = createPatternParser(pattern.value).parse(); c != null;
+                    c = c.next) {
+                chain.add(c);
+            }
+            this.converters = chain.toArray(new PatternConverter[chain.size()]);
+            this.literal = new boolean[converters.length];
+            for (int i = 0; i < converters.length; i++) {
+                literal[i] = isLiteral(converters[i]);
+            }
+            this.template = (pattern.template == null) ? null : PatternBsonTemplate.compile(
+                    pattern.value, MongoDbPatternLayout.this);
+        }
+
+        StringBuffer resetBuf() {
             if (buf.capacity() > MAX_CAPACITY) {
                 buf = new StringBuffer(BUF_SIZE);
             } else {
                 buf.setLength(0);
             }
-            c.format(buf, event);
+            return buf;
+        }
 
-            // Escape double quotes and \ in String generated by converters
-            // other than a LiteralPatternConverter. Can't use "instance of"
-            // because class is private.
-            if (c.getClass().getSimpleName().equals("LiteralPatternConverter")) {
-                builder.append(buf);
+        StringBuilder resetBuilder() {
+            if (builder.capacity() > MAX_CAPACITY) {
+                builder = new StringBuilder(BUF_SIZE);
             } else {
-                char[] chars = buf.toString().toCharArray();
-                int pos = 0;
-                for (int i = 0; i < chars.length; i++) {
-                    if (chars[i] == '\"') {
-                        builder.append(chars, pos, i - pos).append("\\\"");
-                        pos = i + 1;
-                    } else if (chars[i] == '\\') {
-                        builder.append(chars, pos, i - pos).append("\\\\");
-                        pos = i + 1;
-                    }
-                }
-                builder.append(chars, pos, chars.length - pos);
+                builder.setLength(0);
             }
+            return builder;
+        }
 
-            c = c.next;
+        StringBuffer resetBsonBuf() {
+            if (bsonBuf.capacity() > MAX_CAPACITY) {
+                bsonBuf = new StringBuffer(BUF_SIZE);
+            }
+            return bsonBuf;
         }
-        return builder.toString();
     }
 }
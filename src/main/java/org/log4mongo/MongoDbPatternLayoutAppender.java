@@ -18,11 +18,9 @@
 package org.log4mongo;
 
 import com.mongodb.DBObject;
-import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
-import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
-import org.bson.Document;
+import org.bson.BSONObject;
 
 /**
  * A Log4J Appender that uses a PatternLayout to write log events into a MongoDB database.
@@ -52,37 +50,71 @@ public class MongoDbPatternLayoutAppender extends MongoDbAppender {
     }
 
     /**
-     * Inserts a BSON representation of a LoggingEvent into a MongoDB collection. A PatternLayout is
-     * used to format a JSON document containing data available in the LoggingEvent and, optionally,
-     * additional data returned by custom PatternConverters.
+     * Creates a BSON representation of a LoggingEvent. A PatternLayout is used to format a document
+     * containing data available in the LoggingEvent and, optionally, additional data returned by
+     * custom PatternConverters.
      * <p>
-     * The format of the JSON document is specified in the .layout.ConversionPattern property.
+     * The format of the JSON document is specified in the .layout.ConversionPattern property. A
+     * MongoDbPatternLayout stores the output of each converter directly in the document. Other
+     * layouts format a JSON string, which is parsed into the document.
      *
      * @param loggingEvent
      *            The LoggingEvent that will be formatted and stored in MongoDB
+     * @return The document, or null if nothing was formatted or the appender is not initialized
      */
     @Override
-    protected void append(final LoggingEvent loggingEvent) {
-        if (isInitialized()) {
-            DBObject bson = null;
-            String json = layout.format(loggingEvent);
-
-            if (json.length() > 0) {
-                Object obj = JSON.parse(json);
-                if (obj instanceof DBObject) {
-                    bson = (DBObject) obj;
-                }
+    protected BSONObject bsonify(final LoggingEvent loggingEvent) {
+        if (!isInitialized()) {
+            // The document could not be stored anyway
+            return null;
+        }
+        if (layout instanceof MongoDbPatternLayout) {
+            DBObject bson = ((MongoDbPatternLayout) layout).formatBson(loggingEvent,
+                    isNativeDates());
+            if (bson != null) {
+                return bson;
             }
+        }
 
-            if (bson != null) {
-                try {
-                    getCollection().insertOne(new Document(bson.toMap()));
-                } catch (MongoException e) {
-                    errorHandler.error("Failed to insert document to MongoDB", e,
-                            ErrorCode.WRITE_FAILURE);
-                }
+        String json = layout.format(loggingEvent);
+        if (json.length() > 0) {
+            Object obj = JSON.parse(json);
+            if (obj instanceof DBObject) {
+                return (DBObject) obj;
             }
         }
+        return null;
+    }
+
+    /**
+     * MongoDbPatternLayout formats with thread-confined converters. Other layouts, such as the
+     * PatternLayout of Log4J, format into shared buffers, so they are called by one writer thread at
+     * a time.
+     *
+     * @see org.log4mongo.BsonAppender#isBsonifyThreadSafe()
+     */
+    @Override
+    protected boolean isBsonifyThreadSafe() {
+        return layout instanceof MongoDbPatternLayout;
+    }
+
+    /**
+     * @return true if %d values are stored as Dates even if the TypedValues option of the layout is
+     *         not set
+     */
+    protected boolean isNativeDates() {
+        return false;
+    }
+
+    /**
+     * @see org.log4mongo.BsonAppender#requiresLocation(org.apache.log4j.spi.LoggingEvent)
+     */
+    @Override
+    protected boolean requiresLocation(final LoggingEvent loggingEvent) {
+        if (layout instanceof MongoDbPatternLayout) {
+            return ((MongoDbPatternLayout) layout).isLocationRequired();
+        }
+        return true;
     }
 
 }
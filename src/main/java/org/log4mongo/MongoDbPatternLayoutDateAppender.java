@@ -1,15 +1,15 @@
 package org.log4mongo;
 
-import com.mongodb.DBObject;
-import com.mongodb.MongoException;
-import com.mongodb.util.JSON;
-
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
-import org.apache.log4j.Layout;
-import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LoggingEvent;
-import org.bson.Document;
+import org.bson.BSONObject;
+
+import com.mongodb.util.JSON;
 
 /**
  * A Log4J Appender that uses a PatternLayout to write log events into a MongoDB database.
@@ -17,6 +17,10 @@ import org.bson.Document;
  * MongoDbPatternLayoutDateAppender will save pattern layout 'timestamp'(%d) in the mongodb as a
  * Date type instead of String.
  * <p>
+ * The position of the date is resolved once: a MongoDbPatternLayout stores it natively through
+ * its document template, and for other layouts the (possibly nested) key holding %d is looked up
+ * when the options are activated.
+ * <p>
  * The conversion pattern specifies the format of a JSON document. The document can contain
  * sub-documents and the elements can be strings or arrays.
  * <p>
@@ -30,72 +34,106 @@ import org.bson.Document;
  * reporting application).
  *
  */
-public class MongoDbPatternLayoutDateAppender extends MongoDbAppender {
+public class MongoDbPatternLayoutDateAppender extends MongoDbPatternLayoutAppender {
+
+    private String[] datePath;
+
+    /**
+     * Resolves the path of the date value in the conversion pattern once, for layouts that are not
+     * compiled into a document template.
+     *
+     * @see org.log4mongo.MongoDbAppender#activateOptions()
+     */
+    @Override
+    public void activateOptions() {
+        if (layout instanceof PatternLayout) {
+            datePath = getDatePath(((PatternLayout) layout).getConversionPattern());
+        }
+        super.activateOptions();
+    }
 
     @Override
-    public boolean requiresLayout() {
-        return (true);
+    protected boolean isNativeDates() {
+        return true;
     }
 
     /**
-     * Inserts a BSON representation of a LoggingEvent into a MongoDB collection. A PatternLayout is
-     * used to format a JSON document containing data available in the LoggingEvent and, optionally,
-     * additional data returned by custom PatternConverters. Here timestamp is stored as a Date in mongodb.
+     * Creates a BSON representation of a LoggingEvent. A PatternLayout is used to format a document
+     * containing data available in the LoggingEvent and, optionally, additional data returned by
+     * custom PatternConverters. Here timestamp is stored as a Date in mongodb.
      * <p>
      * The format of the JSON document is specified in the .layout.ConversionPattern property.
      *
      * @param loggingEvent
      *            The LoggingEvent that will be formatted and stored in MongoDB
+     * @return The document, or null if nothing was formatted
      */
     @Override
-    protected void append(final LoggingEvent loggingEvent) {
-        if (isInitialized()) {
-            DBObject bson = null;
-            String json = layout.format(loggingEvent);
-
-            if (json.length() > 0) {
-                Object obj = JSON.parse(json);
-                if (obj instanceof DBObject) {
-                    bson = (DBObject) obj;
-                    String dateKey = getDateKeyFromPatternLayout(layout);
-                    if (dateKey != null) {
-                        //saving time stamp as a date instead of string
-                        bson.put(dateKey, new Date(loggingEvent.getTimeStamp()));
-                    }
-                }
-            }
+    protected BSONObject bsonify(final LoggingEvent loggingEvent) {
+        BSONObject bson = super.bsonify(loggingEvent);
+        if (bson != null && datePath != null) {
+            putDate(bson, datePath, loggingEvent.getTimeStamp());
+        }
+        return bson;
+    }
 
-            if (bson != null) {
-                try {
-                    getCollection().insertOne(new Document(bson.toMap()));
-                } catch (MongoException e) {
-                    errorHandler.error("Failed to insert document to MongoDB", e,
-                            ErrorCode.WRITE_FAILURE);
-                }
-            }
+    /**
+     * Replaces the date formatted as a string by a layout without a document template.
+     *
+     * @param bson
+     *            The parsed document
+     * @param datePath
+     *            The keys leading to the date value
+     * @param timeStamp
+     *            The time of the event
+     */
+    static void putDate(final BSONObject bson, final String[] datePath, final long timeStamp) {
+        BSONObject parent = bson;
+        for (int i = 0; i < datePath.length - 1 && parent != null; i++) {
+            Object child = parent.get(datePath[i]);
+            parent = (child instanceof BSONObject) ? (BSONObject) child : null;
+        }
+        String key = datePath[datePath.length - 1];
+        if (parent != null && !(parent.get(key) instanceof Date)) {
+            parent.put(key, new Date(timeStamp));
         }
     }
 
     /**
-     * this method returns the key of the date which is mentioned in layout pattern
-     * @param layout
-     * @return key of Date (%d)
+     * Finds the path of the (possibly nested) value containing %d in a JSON conversion pattern.
+     *
+     * @param conversionPattern
+     *            The conversion pattern
+     * @return The keys leading to the date value, or null if there is none
      */
-    private String getDateKeyFromPatternLayout(Layout layout) {
-        String dateKey = null;
-        String conversionPattern = ((MongoDbPatternLayout)layout).getConversionPattern();
-        String[] splitPattern = conversionPattern.split(",");
-        for (String pattern : splitPattern) {
-            if (pattern.contains("%d")) {
-                dateKey = pattern.split(":")[0];
-            }
+    static String[] getDatePath(final String conversionPattern) {
+        if (conversionPattern == null || conversionPattern.indexOf("%d") < 0) {
+            return null;
+        }
+        Object pattern;
+        try {
+            pattern = JSON.parse(conversionPattern);
+        } catch (RuntimeException e) {
+            LogLog.warn("Can't find the date in conversion pattern: " + e.getMessage());
+            return null;
         }
-        // here we are removing double quotes '"' and opening curly braces '{' from the Key
-        if (dateKey != null) {
-            dateKey = dateKey.replaceAll("\"|\"$", "");
-            dateKey = dateKey.replaceAll("\\{", "");
+        List<String> path = new ArrayList<String>();
+        return (pattern instanceof BSONObject && findDate((BSONObject) pattern, path)) ? path
+                .toArray(new String[path.size()]) : null;
+    }
+
+    private static boolean findDate(final BSONObject document, final List<String> path) {
+        for (String key : document.keySet()) {
+            Object value = document.get(key);
+            path.add(key);
+            if ((value instanceof String && ((String) value).contains("%d"))
+                    || (value instanceof BSONObject && !(value instanceof List)
+                            && findDate((BSONObject) value, path))) {
+                return true;
+            }
+            path.remove(path.size() - 1);
         }
-        return dateKey;
+        return false;
     }
 
 }
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.PatternConverter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MongoDbPatternLayout conversion pattern compiled into the structure of the document it
+ * describes. Each string value of the JSON pattern becomes a slot holding its own chain of
+ * PatternConverters, whose output is stored directly as the value, so no JSON text is generated
+ * or parsed when an event is logged. Keys and values without converters are constants.
+ * <p>
+ * The pattern syntax is the one accepted by com.mongodb.util.JSON: strings may be single or double
+ * quoted, keys may be unquoted, and numbers, true, false and null are stored as constants. Patterns
+ * holding MongoDB extended JSON (keys starting with $, e.g. {"$date": "%d{ISO8601}"}) are not
+ * compiled, since only com.mongodb.util.JSON interprets them.
+ * <p>
+ * A value that consists of a single converter without padding or surrounding text can also be
+ * stored with a native BSON type instead of a string. The type of each such slot is resolved at
+ * compile time:
+ * <ul>
+ * <li>%d - Date</li>
+ * <li>%L - 32 bit integer</li>
+ * <li>%r - 64 bit integer</li>
+ * <li>%X without a key - sub-document of all MDC properties</li>
+ * <li>TypedPatternConverter - the value returned by the converter</li>
+ * </ul>
+ */
+final class PatternBsonTemplate {
+
+    /**
+     * Every value is stored as a string.
+     */
+    static final int TYPED_NONE = 0;
+
+    /**
+     * Only %d values are stored natively, as Dates.
+     */
+    static final int TYPED_DATES = 1;
+
+    /**
+     * Every value with a native type is stored natively.
+     */
+    static final int TYPED_ALL = 2;
+
+    private final Node root;
+
+    private final boolean locationRequired;
+
+    private PatternBsonTemplate(Node root, boolean locationRequired) {
+        this.root = root;
+        this.locationRequired = locationRequired;
+    }
+
+    /**
+     * Compiles a conversion pattern.
+     *
+     * @param pattern
+     *            The conversion pattern <i>(may be null)</i>.
+     * @param layout
+     *            The layout whose PatternParser creates the converters for each slot
+     * @return The compiled template, or null if the pattern holds extended JSON
+     * @throws IllegalArgumentException
+     *             if the pattern is not a JSON document
+     */
+    static PatternBsonTemplate compile(final String pattern, final MongoDbPatternLayout layout) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("Conversion pattern is not a JSON document");
+        }
+        Compiler compiler = new Compiler(pattern, layout);
+        compiler.skipWhitespace();
+        if (compiler.peek() != '{') {
+            throw new IllegalArgumentException("Conversion pattern is not a JSON document");
+        }
+        Node root = compiler.parseValue();
+        compiler.skipWhitespace();
+        if (compiler.pos < pattern.length()) {
+            throw compiler.error("Unexpected text after the document");
+        }
+        if (compiler.extendedJson) {
+            return null;
+        }
+        return new PatternBsonTemplate(root, compiler.locationRequired);
+    }
+
+    /**
+     * Renders the document for an event.
+     *
+     * @param event
+     *            The LoggingEvent to format
+     * @param buf
+     *            Working buffer for the converters
+     * @param typing
+     *            TYPED_NONE, TYPED_DATES or TYPED_ALL
+     * @return The document
+     */
+    BasicDBObject render(final LoggingEvent event, final StringBuffer buf, final int typing) {
+        return (BasicDBObject) root.render(event, buf, typing);
+    }
+
+    /**
+     * @return true if any converter needs the location info of the event
+     */
+    boolean isLocationRequired() {
+        return locationRequired;
+    }
+
+    // Values of PatternParser's package private converter type constants
+    private static final int LINE_LOCATION_CONVERTER = 1003;
+
+    private static final int RELATIVE_TIME_CONVERTER = 2000;
+
+    private static final TypedPatternConverter DATE = new TypedPatternConverter() {
+        public Object convertToValue(LoggingEvent event) {
+            return new Date(event.getTimeStamp());
+        }
+    };
+
+    private static final TypedPatternConverter LINE_NUMBER = new TypedPatternConverter() {
+        public Object convertToValue(LoggingEvent event) {
+            String lineNumber = event.getLocationInformation().getLineNumber();
+            try {
+                return Integer.valueOf(lineNumber);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final TypedPatternConverter RELATIVE_TIME = new TypedPatternConverter() {
+        public Object convertToValue(LoggingEvent event) {
+            return event.getTimeStamp() - LoggingEvent.getStartTime();
+        }
+    };
+
+    private static final TypedPatternConverter MDC = new TypedPatternConverter() {
+        public Object convertToValue(LoggingEvent event) {
+            BasicDBObject properties = new BasicDBObject();
+            for (Object entry : event.getProperties().entrySet()) {
+                Map.Entry<?, ?> property = (Map.Entry<?, ?>) entry;
+                properties.put(property.getKey().toString().replace('.', '_'),
+                        String.valueOf(property.getValue()));
+            }
+            return properties;
+        }
+    };
+
+    private abstract static class Node {
+        abstract Object render(LoggingEvent event, StringBuffer buf, int typing);
+    }
+
+    private static final class DocumentNode extends Node {
+
+        private final String[] keys;
+
+        private final Node[] values;
+
+        DocumentNode(List<String> keys, List<Node> values) {
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.values = values.toArray(new Node[values.size()]);
+        }
+
+        @Override
+        Object render(LoggingEvent event, StringBuffer buf, int typing) {
+            BasicDBObject document = new BasicDBObject();
+            for (int i = 0; i < keys.length; i++) {
+                document.put(keys[i], values[i].render(event, buf, typing));
+            }
+            return document;
+        }
+    }
+
+    private static final class ArrayNode extends Node {
+
+        private final Node[] values;
+
+        ArrayNode(List<Node> values) {
+            this.values = values.toArray(new Node[values.size()]);
+        }
+
+        @Override
+        Object render(LoggingEvent event, StringBuffer buf, int typing) {
+            BasicDBList list = new BasicDBList();
+            for (Node value : values) {
+                list.add(value.render(event, buf, typing));
+            }
+            return list;
+        }
+    }
+
+    private static final class ConstantNode extends Node {
+
+        private final Object value;
+
+        ConstantNode(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object render(LoggingEvent event, StringBuffer buf, int typing) {
+            return value;
+        }
+    }
+
+    private static final class ConverterNode extends Node {
+
+        private final PatternConverter head;
+
+        private final TypedPatternConverter typed;
+
+        private final int minTyping;
+
+        ConverterNode(PatternConverter head, TypedPatternConverter typed, int minTyping) {
+            this.head = head;
+            this.typed = typed;
+            this.minTyping = minTyping;
+        }
+
+        @Override
+        Object render(LoggingEvent event, StringBuffer buf, int typing) {
+            if (typed != null && typing >= minTyping) {
+                return typed.convertToValue(event);
+            }
+            buf.setLength(0);
+            for (PatternConverter c = head; c != null; c = c.next) {
+                c.format(buf, event);
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Recursive descent parser for the JSON conversion pattern.
+     */
+    private static final class Compiler {
+
+        private final String pattern;
+
+        private final MongoDbPatternLayout layout;
+
+        private int pos = 0;
+
+        private boolean locationRequired = false;
+
+        private boolean extendedJson = false;
+
+        Compiler(String pattern, MongoDbPatternLayout layout) {
+            this.pattern = pattern;
+            this.layout = layout;
+        }
+
+        Node parseValue() {
+            skipWhitespace();
+            char c = peek();
+            if (c == '{') {
+                return parseDocument();
+            } else if (c == '[') {
+                return parseArray();
+            } else if (c == '"' || c == '\'') {
+                return toSlot(parseString());
+            }
+            return new ConstantNode(parseLiteral());
+        }
+
+        private Node parseDocument() {
+            expect('{');
+            List<String> keys = new ArrayList<String>();
+            List<Node> values = new ArrayList<Node>();
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return new DocumentNode(keys, values);
+            }
+            while (true) {
+                skipWhitespace();
+                char c = peek();
+                String key = (c == '"' || c == '\'') ? parseString() : parseUnquotedKey();
+                extendedJson |= key.startsWith("$");
+                keys.add(key);
+                skipWhitespace();
+                expect(':');
+                values.add(parseValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return new DocumentNode(keys, values);
+                }
+            }
+        }
+
+        private Node parseArray() {
+            expect('[');
+            List<Node> values = new ArrayList<Node>();
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return new ArrayNode(values);
+            }
+            while (true) {
+                values.add(parseValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return new ArrayNode(values);
+                }
+            }
+        }
+
+        private String parseString() {
+            char quote = pattern.charAt(pos++);
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (pos >= pattern.length()) {
+                    throw error("Unterminated string");
+                }
+                char c = pattern.charAt(pos++);
+                if (c == quote) {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= pattern.length()) {
+                    throw error("Unterminated string");
+                }
+                c = pattern.charAt(pos++);
+                switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > pattern.length()) {
+                        throw error("Invalid unicode escape");
+                    }
+                    sb.append((char) Integer.parseInt(pattern.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(c);
+                }
+            }
+        }
+
+        private String parseUnquotedKey() {
+            int start = pos;
+            while (pos < pattern.length()) {
+                char c = pattern.charAt(pos);
+                if (c == ':' || Character.isWhitespace(c)) {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw error("Expected a key");
+            }
+            return pattern.substring(start, pos);
+        }
+
+        private Object parseLiteral() {
+            int start = pos;
+            while (pos < pattern.length()) {
+                char c = pattern.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    break;
+                }
+                pos++;
+            }
+            String literal = pattern.substring(start, pos);
+            if ("true".equals(literal)) {
+                return Boolean.TRUE;
+            } else if ("false".equals(literal)) {
+                return Boolean.FALSE;
+            } else if ("null".equals(literal)) {
+                return null;
+            }
+            try {
+                if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0
+                        || literal.indexOf('E') >= 0) {
+                    return Double.valueOf(literal);
+                }
+                long value = Long.parseLong(literal);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                throw error("Unexpected value '" + literal + "'");
+            }
+        }
+
+        /**
+         * Compiles the content of a string value into a constant or a converter slot.
+         */
+        private Node toSlot(String content) {
+            if (content.length() == 0) {
+                return new ConstantNode(content);
+            }
+            PatternConverter head = layout.createPatternParser(content).parse();
+            boolean literal = true;
+            for (PatternConverter c = head; c != null; c = c.next) {
+                String name = c.getClass().getName();
+                if (!MongoDbPatternLayout.isLiteral(c)) {
+                    literal = false;
+                }
+                if (name.endsWith("$LocationPatternConverter")
+                        || name.endsWith("$ClassNamePatternConverter")
+                        || !(name.startsWith("org.apache.log4j.") || name
+                                .startsWith("org.log4mongo."))) {
+                    locationRequired = true;
+                }
+            }
+            if (literal) {
+                StringBuffer buf = new StringBuffer();
+                for (PatternConverter c = head; c != null; c = c.next) {
+                    c.format(buf, null);
+                }
+                return new ConstantNode(buf.toString());
+            }
+            if (head.next == null) {
+                return toTypedSlot(head);
+            }
+            return new ConverterNode(head, null, TYPED_NONE);
+        }
+
+        /**
+         * Resolves the native type of a slot holding a single converter. The Log4J converter
+         * classes are private, so they are told apart by name and by their package private fields,
+         * once, here.
+         */
+        private Node toTypedSlot(final PatternConverter c) {
+            if (c instanceof TypedPatternConverter) {
+                return new ConverterNode(c, (TypedPatternConverter) c, TYPED_ALL);
+            }
+            if (!c.getClass().getName().startsWith("org.apache.log4j.helpers.PatternParser$")
+                    || !Integer.valueOf(-1).equals(getField(c, PatternConverter.class, "min"))
+                    || !Integer.valueOf(Integer.MAX_VALUE).equals(
+                            getField(c, PatternConverter.class, "max"))) {
+                // Unknown or padded/truncated converter
+                return new ConverterNode(c, null, TYPED_NONE);
+            }
+
+            String name = c.getClass().getSimpleName();
+            Object type = getField(c, c.getClass(), "type");
+            if ("DatePatternConverter".equals(name)) {
+                return new ConverterNode(c, DATE, TYPED_DATES);
+            } else if ("LocationPatternConverter".equals(name)
+                    && Integer.valueOf(LINE_LOCATION_CONVERTER).equals(type)) {
+                return new ConverterNode(c, LINE_NUMBER, TYPED_ALL);
+            } else if ("BasicPatternConverter".equals(name)
+                    && Integer.valueOf(RELATIVE_TIME_CONVERTER).equals(type)) {
+                return new ConverterNode(c, RELATIVE_TIME, TYPED_ALL);
+            } else if ("MDCPatternConverter".equals(name)
+                    && getField(c, c.getClass(), "key") == null) {
+                return new ConverterNode(c, MDC, TYPED_ALL);
+            }
+            return new ConverterNode(c, null, TYPED_NONE);
+        }
+
+        private static Object getField(Object target, Class<?> declaringClass, String name) {
+            try {
+                Field field = declaringClass.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (Exception e) {
+                LogLog.debug("Can't resolve type of " + target.getClass().getName(), e);
+                return Boolean.FALSE;
+            }
+        }
+
+        void skipWhitespace() {
+            while (pos < pattern.length() && Character.isWhitespace(pattern.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        char peek() {
+            if (pos >= pattern.length()) {
+                throw error("Unexpected end of pattern");
+            }
+            return pattern.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos
+                    + " of conversion pattern");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import org.apache.log4j.helpers.LogLog;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class of the reporters that periodically write a document about a MongoDbAppender into a
+ * dedicated collection, through the appender's own MongoClient, on a single low priority daemon
+ * thread. Each document is tagged with the same host info as the logged events.
+ */
+abstract class PeriodicReporter {
+
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    protected final MongoDbAppender appender;
+
+    protected final DBObject hostInfo = LoggingEventBsonifierImpl.createHostInfo();
+
+    private final MongoCollection<DBObject> collection;
+
+    private final long intervalMillis;
+
+    private final String description;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param appender
+     *            The appender reported on
+     * @param collection
+     *            The collection the documents are written to
+     * @param intervalMillis
+     *            The interval between documents
+     * @param description
+     *            What is reported, used in thread names and error messages
+     */
+    PeriodicReporter(final MongoDbAppender appender, MongoCollection<DBObject> collection,
+            long intervalMillis, final String description) {
+        this.appender = appender;
+        this.collection = collection;
+        this.intervalMillis = intervalMillis;
+        this.description = description;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "log4mongo-" + description + "-"
+                        + appender.getName());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    void start() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic reports and writes a final one if the reporter creates one for the last,
+     * partial, interval.
+     */
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DBObject document = createFinalDocument();
+        if (document != null) {
+            write(document);
+        }
+    }
+
+    synchronized void report() {
+        try {
+            DBObject document = createDocument();
+            if (document != null) {
+                write(document);
+            }
+        } catch (RuntimeException e) {
+            LogLog.warn("Failed to create " + description + " of appender " + appender.getName(),
+                    e);
+        }
+    }
+
+    private void write(DBObject document) {
+        try {
+            collection.insertOne(document);
+        } catch (MongoException e) {
+            LogLog.warn("Failed to write " + description + " of appender " + appender.getName(),
+                    e);
+        }
+    }
+
+    /**
+     * @return The document for the interval since the previous call, or null to skip it
+     */
+    abstract DBObject createDocument();
+
+    /**
+     * @return The document written when the reporter stops, or null for none. Defaults to
+     *         createDocument.
+     */
+    synchronized DBObject createFinalDocument() {
+        return createDocument();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+
+/**
+ * Emits Java Flight Recorder events for each stage of the appender pipeline: bsonify, queue
+ * hand-off, batch flush, insert and drop. A timed stage begins its event before it starts and
+ * commits it when it completes, so the event carries the duration of the stage and recordings
+ * can apply duration thresholds to it. The begin methods return an opaque handle, null when no
+ * recording is enabled for the event, to pass to the method committing it.
+ * <p>
+ * The JFR event classes are only loaded if the jdk.jfr module is present (Java 11+, or Java 8 from
+ * update 262), so the appenders still run on older runtimes. When no recording is enabled for an
+ * event, creating it is the only cost, which the JIT usually eliminates, and the fields of the
+ * event are not computed. Setting the system property log4mongo.jfr to false disables the events.
+ */
+final class PipelineEvents {
+
+    /**
+     * true if JFR is available on this runtime and not disabled
+     */
+    static final boolean ENABLED = isAvailable();
+
+    private PipelineEvents() {
+    }
+
+    private static boolean isAvailable() {
+        if ("false".equalsIgnoreCase(System.getProperty("log4mongo.jfr"))) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    static Object beginBsonify() {
+        return ENABLED ? FlightRecorderEvents.beginBsonify() : null;
+    }
+
+    static void bsonify(Object begun, String appender, LoggingEvent event, BSONObject bson) {
+        if (begun != null) {
+            FlightRecorderEvents.bsonify(begun, appender, event, bson);
+        }
+    }
+
+    static Object beginHandOff() {
+        return ENABLED ? FlightRecorderEvents.beginHandOff() : null;
+    }
+
+    /**
+     * @param writer
+     *            The writer the event was queued for, whose queue depth is only read if the event
+     *            is recorded
+     */
+    static void handOff(Object begun, String appender, LoggingEvent event, boolean queued,
+            AsyncBsonWriter writer) {
+        if (begun != null) {
+            FlightRecorderEvents.handOff(begun, appender, event, queued, writer);
+        }
+    }
+
+    static Object beginFlush() {
+        return ENABLED ? FlightRecorderEvents.beginFlush() : null;
+    }
+
+    static void flush(Object begun, String appender, int events, int documents) {
+        if (begun != null) {
+            FlightRecorderEvents.flush(begun, appender, events, documents);
+        }
+    }
+
+    static Object beginInsert() {
+        return ENABLED ? FlightRecorderEvents.beginInsert() : null;
+    }
+
+    static void insert(Object begun, String appender, int documents, int failures) {
+        if (begun != null) {
+            FlightRecorderEvents.insert(begun, appender, documents, failures);
+        }
+    }
+
+    static void drop(String appender, String loggerName, String reason, int count) {
+        if (ENABLED) {
+            FlightRecorderEvents.drop(appender, loggerName, reason, count);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import org.apache.log4j.helpers.LogLog;
+import org.bson.BsonBinarySubType;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * MDC keys that are hoisted from the properties sub-document to typed top-level fields, so they
+ * can be indexed with short paths and stored in their native BSON type.
+ * <p>
+ * Keys are declared as an ampersand delimited list of key=type pairs, e.g.
+ * "traceId=objectId &amp; tenant=string &amp; userId=long". Supported types are:
+ * <ul>
+ * <li>objectId - a 24 character hex string stored as an ObjectId</li>
+ * <li>uuid - a UUID string stored as binary subtype 4</li>
+ * <li>long - stored as a 64 bit integer</li>
+ * <li>date - milliseconds since the epoch or an ISO-8601 date-time, stored as a Date</li>
+ * <li>string</li>
+ * </ul>
+ * A value that can't be parsed into the declared type is left in the properties sub-document, or
+ * discarded with a warning if a field projection excludes it.
+ */
+final class PromotedMdcKeys {
+
+    static final PromotedMdcKeys NONE = new PromotedMdcKeys(
+            Collections.<String, Field> emptyMap());
+
+    enum Type {
+        OBJECT_ID, UUID, LONG, DATE, STRING
+    }
+
+    private final Map<String, Field> fields;
+
+    private PromotedMdcKeys(Map<String, Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Parses a promoted keys declaration.
+     *
+     * @param promotedKeys
+     *            Ampersand delimited list of key=type pairs <i>(may be null)</i>.
+     * @param reservedNames
+     *            Top-level field names the promoted keys must not replace
+     * @return The promoted keys
+     */
+    static PromotedMdcKeys parse(final String promotedKeys, final Collection<String> reservedNames) {
+        if (promotedKeys == null || promotedKeys.trim().length() == 0) {
+            return NONE;
+        }
+
+        Map<String, Field> fields = new LinkedHashMap<String, Field>();
+        for (String keyType : promotedKeys.split(" *& *")) {
+            String[] pair = keyType.trim().split(" *= *", 2);
+            if (pair[0].length() == 0) {
+                continue;
+            }
+            String name = pair[0].replace('.', '_');
+            if (reservedNames.contains(name)) {
+                LogLog.warn("MDC key '" + pair[0] + "' can't be promoted over the '" + name
+                        + "' field");
+                continue;
+            }
+            Type type = toType((pair.length == 1) ? "string" : pair[1]);
+            if (type != null) {
+                fields.put(pair[0], new Field(pair[0], name, type));
+            }
+        }
+        return new PromotedMdcKeys(Collections.unmodifiableMap(fields));
+    }
+
+    private static Type toType(String type) {
+        if ("objectId".equalsIgnoreCase(type)) {
+            return Type.OBJECT_ID;
+        } else if ("uuid".equalsIgnoreCase(type)) {
+            return Type.UUID;
+        } else if ("long".equalsIgnoreCase(type)) {
+            return Type.LONG;
+        } else if ("date".equalsIgnoreCase(type)) {
+            return Type.DATE;
+        } else if ("string".equalsIgnoreCase(type)) {
+            return Type.STRING;
+        }
+        LogLog.warn("Unknown type '" + type + "' for promoted MDC key");
+        return null;
+    }
+
+    boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    Collection<Field> fields() {
+        return fields.values();
+    }
+
+    /**
+     * @param mdcKey
+     *            The MDC key
+     * @return The promoted field for the MDC key, or null if the key is not promoted
+     */
+    Field get(final String mdcKey) {
+        return fields.isEmpty() ? null : fields.get(mdcKey);
+    }
+
+    /**
+     * A single promoted MDC key. Parsed values are kept in a small direct-mapped cache, since the
+     * same value (e.g., a trace id) is usually logged many times in a row. Cache entries are
+     * immutable, so racing threads at worst parse a value twice.
+     */
+    static final class Field {
+
+        private static final int CACHE_SIZE = 256;
+
+        private static final Object INVALID = new Object();
+
+        final String mdcKey;
+
+        final String name;
+
+        final Type type;
+
+        private final CacheEntry[] cache = new CacheEntry[CACHE_SIZE];
+
+        private volatile boolean discardWarned = false;
+
+        Field(String mdcKey, String name, Type type) {
+            this.mdcKey = mdcKey;
+            this.name = name;
+            this.type = type;
+        }
+
+        /**
+         * Puts the typed value in the given BSON object.
+         *
+         * @param bson
+         *            The root BSON object <i>(must not be null)</i>.
+         * @param value
+         *            The raw MDC value <i>(may be null)</i>.
+         * @return true if the value was promoted, false if it could not be parsed
+         */
+        boolean promote(DBObject bson, final Object value) {
+            if (value == null) {
+                return false;
+            }
+            Object typed = toTypedValue(value.toString());
+            if (typed == INVALID) {
+                return false;
+            }
+            bson.put(name, (type == Type.DATE) ? new Date((Long) typed) : typed);
+            return true;
+        }
+
+        /**
+         * Warns, once per key, that a value that could not be parsed was not stored because the
+         * field projection excludes the properties sub-document.
+         *
+         * @param value
+         *            The raw MDC value
+         */
+        void warnDiscarded(final Object value) {
+            if (!discardWarned) {
+                discardWarned = true;
+                LogLog.warn("MDC value '" + value + "' of promoted key '" + mdcKey
+                        + "' is not a valid " + type + " and was not stored. Further invalid "
+                        + "values of this key are discarded silently.");
+            }
+        }
+
+        private Object toTypedValue(final String raw) {
+            if (type == Type.STRING) {
+                return raw;
+            }
+            int slot = (raw.hashCode() & 0x7fffffff) % CACHE_SIZE;
+            CacheEntry entry = cache[slot];
+            if (entry != null && entry.raw.equals(raw)) {
+                return entry.typed;
+            }
+            Object typed = parse(raw);
+            cache[slot] = new CacheEntry(raw, typed);
+            return typed;
+        }
+
+        private Object parse(final String raw) {
+            try {
+                switch (type) {
+                case OBJECT_ID:
+                    return new ObjectId(raw);
+                case UUID:
+                    return new Binary(BsonBinarySubType.UUID_STANDARD, toBytes(java.util.UUID
+                            .fromString(raw)));
+                case LONG:
+                    return Long.valueOf(raw.trim());
+                case DATE:
+                    return parseDate(raw.trim());
+                default:
+                    return raw;
+                }
+            } catch (RuntimeException e) {
+                return INVALID;
+            }
+        }
+
+        private static Long parseDate(final String raw) {
+            if (raw.length() > 0 && Character.isDigit(raw.charAt(raw.length() - 1))
+                    && raw.indexOf('-', 1) < 0) {
+                return Long.valueOf(raw);
+            }
+            if (raw.endsWith("Z")) {
+                return Instant.parse(raw).toEpochMilli();
+            }
+            return OffsetDateTime.parse(raw).toInstant().toEpochMilli();
+        }
+
+        private static byte[] toBytes(final UUID uuid) {
+            byte[] bytes = new byte[16];
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (msb >>> (8 * (7 - i)));
+                bytes[8 + i] = (byte) (lsb >>> (8 * (7 - i)));
+            }
+            return bytes;
+        }
+    }
+
+    private static final class CacheEntry {
+
+        final String raw;
+
+        final Object typed;
+
+        CacheEntry(String raw, Object typed) {
+            this.raw = raw;
+            this.typed = typed;
+        }
+    }
+}
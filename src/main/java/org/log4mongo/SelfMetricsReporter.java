@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.client.MongoCollection;
+import org.log4mongo.AppenderMetrics.Counts;
+import org.log4mongo.HeavyHitterSketch.HeavyHitter;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Periodically writes the metrics of a MongoDbAppender as a document into a dedicated collection.
+ * Counts and distributions in each document cover the interval since the previous one; totals are
+ * included too, as are the top loggers of the cost accounting over its last five minutes.
+ */
+final class SelfMetricsReporter extends PeriodicReporter {
+
+    private long lastReport = System.currentTimeMillis();
+
+    private Counts lastCounts;
+
+    private long lastConnectionsOpened;
+
+    private long[] lastBatchSizes;
+
+    private long[] lastInsertNanos;
+
+    private long[] lastBsonifyNanos;
+
+    private long[] lastCommandNanos;
+
+    private long[] lastPreSendNanos;
+
+    SelfMetricsReporter(MongoDbAppender appender, MongoCollection<DBObject> collection,
+            long intervalMillis) {
+        super(appender, collection, intervalMillis, "metrics");
+    }
+
+    /**
+     * Creates the metrics document for the interval since the previous call.
+     */
+    @Override
+    synchronized DBObject createDocument() {
+        AppenderMetrics metrics = appender.getMetrics();
+        DriverTelemetry driver = appender.getDriverTelemetry();
+        long now = System.currentTimeMillis();
+
+        Counts counts = metrics.getCounts();
+        Counts interval = counts.since(lastCounts);
+        long connectionsOpened = driver.getConnectionsOpened();
+
+        BasicDBObject queue = new BasicDBObject();
+        queue.put("depth", metrics.getQueueDepth());
+        queue.put("bytes", metrics.getBytesQueued());
+        queue.put("callerBlockedMillis", interval.callerBlockedMillis);
+
+        long[] batchSizes = metrics.getBatchSizes().getCounts();
+        long[] insertNanos = metrics.getInsertNanos().getCounts();
+        long[] bsonifyNanos = metrics.getBsonifyNanos().getCounts();
+        long[] commandNanos = driver.getInsertNanos().getCounts();
+        long[] preSendNanos = driver.getPreSendNanos().getCounts();
+
+        BasicDBObject driverInfo = new BasicDBObject();
+        driverInfo.put("insertCommandMicros", summarize(commandNanos, lastCommandNanos, 1000));
+        driverInfo.put("preSendLatencyMicros",
+                summarize(preSendNanos, lastPreSendNanos, 1000));
+        driverInfo.put("commandsInFlight", driver.getCommandsInFlight());
+        driverInfo.put("connectionsOpened", connectionsOpened - lastConnectionsOpened);
+
+        BasicDBObject document = new BasicDBObject();
+        document.put("timestamp", new Date(now));
+        document.put("appender", appender.getName());
+        document.put("host", hostInfo);
+        document.put("intervalMillis", now - lastReport);
+        document.put("events", toDBObject(interval));
+        document.put("totals", toDBObject(counts));
+        document.put("queue", queue);
+        document.put("threshold", metrics.getEffectiveThreshold());
+        document.put("batchSize", summarize(batchSizes, lastBatchSizes, 1));
+        document.put("insertMicros", summarize(insertNanos, lastInsertNanos, 1000));
+        document.put("bsonifyMicros", summarize(bsonifyNanos, lastBsonifyNanos, 1000));
+        document.put("driver", driverInfo);
+
+        LoggerCostTracker tracker = appender.getCostTracker();
+        if (tracker != null) {
+            BasicDBObject loggers = new BasicDBObject();
+            loggers.put("byEvents", toList(tracker.topLoggersByEvents(AppenderMetrics.TOP_N)));
+            loggers.put("byBytes", toList(tracker.topLoggersByBytes(AppenderMetrics.TOP_N)));
+            document.put("topLoggers", loggers);
+            if (tracker.getMdcKey() != null) {
+                BasicDBObject values = new BasicDBObject();
+                values.put("key", tracker.getMdcKey());
+                values.put("byEvents",
+                        toList(tracker.topMdcValuesByEvents(AppenderMetrics.TOP_N)));
+                values.put("byBytes", toList(tracker.topMdcValuesByBytes(AppenderMetrics.TOP_N)));
+                document.put("topMdcValues", values);
+            }
+        }
+
+        lastReport = now;
+        lastCounts = counts;
+        lastConnectionsOpened = connectionsOpened;
+        lastBatchSizes = batchSizes;
+        lastInsertNanos = insertNanos;
+        lastBsonifyNanos = bsonifyNanos;
+        lastCommandNanos = commandNanos;
+        lastPreSendNanos = preSendNanos;
+        return document;
+    }
+
+    /**
+     * Converts event counts into a document.
+     */
+    private static DBObject toDBObject(Counts counts) {
+        BasicDBObject events = new BasicDBObject();
+        events.put("accepted", counts.accepted);
+        events.put("written", counts.written);
+        events.put("failed", counts.failed);
+        events.put("dropped", counts.dropped);
+        events.put("suppressed", counts.suppressed);
+        events.put("sampledOut", counts.sampledOut);
+        events.put("collapsed", counts.collapsed);
+        events.put("shed", counts.shed);
+        return events;
+    }
+
+    /**
+     * Converts heavy hitters over the last minutes of the cost accounting into documents.
+     */
+    private static BasicDBList toList(List<HeavyHitter> hitters) {
+        BasicDBList list = new BasicDBList();
+        for (HeavyHitter hitter : hitters) {
+            BasicDBObject entry = new BasicDBObject("name", hitter.key);
+            entry.put("value", hitter.weight);
+            entry.put("error", hitter.error);
+            list.add(entry);
+        }
+        return list;
+    }
+
+    /**
+     * Summarizes the values a histogram recorded between two snapshots of its bucket counts.
+     */
+    private static DBObject summarize(long[] counts, long[] previous, long divisor) {
+        long[] interval = counts.clone();
+        long count = 0;
+        for (int i = 0; i < interval.length; i++) {
+            if (previous != null) {
+                interval[i] -= previous[i];
+            }
+            count += interval[i];
+        }
+        BasicDBObject summary = new BasicDBObject();
+        summary.put("count", count);
+        summary.put("p50", LogLinearHistogram.getPercentile(interval, 50) / divisor);
+        summary.put("p90", LogLinearHistogram.getPercentile(interval, 90) / divisor);
+        summary.put("p99", LogLinearHistogram.getPercentile(interval, 99) / divisor);
+        summary.put("max", LogLinearHistogram.getPercentile(interval, 100) / divisor);
+        return summary;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Raises the effective threshold of a BsonAppender above its configured threshold while the write
+ * path is under pressure, from DEBUG to INFO to WARN, and lowers it again once the pressure has
+ * cleared. ERROR and FATAL events are never affected.
+ * <p>
+ * Pressure is evaluated at most once a second, from the fill ratio of the writer queue and the
+ * fraction of time the JVM spent in garbage collection pauses since the previous evaluation, as
+ * reported by the GarbageCollectorMXBeans. The "Cycles" beans of ZGC and Shenandoah report the
+ * time of their concurrent cycles rather than pauses, so they are skipped. Each evaluation with
+ * either above its high watermark raises the threshold one step. The threshold is lowered one
+ * step once both have stayed below half their high watermark for the cooldown period, so it does
+ * not flap around the watermarks.
+ */
+final class ThresholdEscalator {
+
+    static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    static final double DEFAULT_QUEUE_FILL = 0.8;
+
+    static final double DEFAULT_GC_RATIO = 0.2;
+
+    static final long DEFAULT_COOLDOWN_MILLIS = 30000;
+
+    private static final Level[] STEPS = { Level.INFO, Level.WARN };
+
+    private final double queueFill;
+
+    private final double gcRatio;
+
+    private final long cooldownMillis;
+
+    private final List<GarbageCollectorMXBean> collectors = pauseCollectors();
+
+    private final AtomicLong nextCheck;
+
+    private long lastCheck;
+
+    private long lastGcMillis;
+
+    private long lowSince = -1;
+
+    private volatile Level level = null;
+
+    /**
+     * @param queueFill
+     *            The fill ratio of the writer queue above which the threshold is raised
+     * @param gcRatio
+     *            The fraction of time spent in garbage collection above which the threshold is
+     *            raised
+     * @param cooldownMillis
+     *            The time pressure must stay low before the threshold is lowered a step
+     */
+    ThresholdEscalator(double queueFill, double gcRatio, long cooldownMillis) {
+        this.queueFill = queueFill;
+        this.gcRatio = gcRatio;
+        this.cooldownMillis = cooldownMillis;
+        this.lastCheck = System.currentTimeMillis();
+        this.lastGcMillis = gcMillis();
+        this.nextCheck = new AtomicLong(lastCheck + CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return The level the threshold is raised to, or null if it is not raised
+     */
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param priority
+     *            The level of an event
+     * @return true if the event is below the raised threshold
+     */
+    boolean isBelow(final Priority priority) {
+        Level current = level;
+        return current != null && !priority.isGreaterOrEqual(current);
+    }
+
+    /**
+     * Claims the evaluation that is due, if any. Only one caller gets true per interval.
+     *
+     * @param millis
+     *            The current time
+     * @return true if the caller must call evaluate
+     */
+    boolean isCheckDue(final long millis) {
+        long next = nextCheck.get();
+        return millis >= next && nextCheck.compareAndSet(next, millis + CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Measures the time spent in garbage collection since the previous call and evaluates the
+     * pressure.
+     *
+     * @param millis
+     *            The current time
+     * @param fill
+     *            The fill ratio of the writer queue
+     * @param configured
+     *            The configured threshold <i>(may be null)</i>.
+     * @return The event recording the change of the threshold, or null if it did not change
+     */
+    synchronized LoggingEvent evaluate(final long millis, final double fill,
+            final Priority configured) {
+        long gc = gcMillis();
+        double ratio = (millis > lastCheck) ? (double) (gc - lastGcMillis) / (millis - lastCheck)
+                : 0;
+        lastCheck = millis;
+        lastGcMillis = gc;
+        return evaluate(millis, fill, ratio, configured);
+    }
+
+    /**
+     * Raises or lowers the threshold for the measured pressure.
+     *
+     * @return The event recording the change of the threshold, or null if it did not change
+     */
+    synchronized LoggingEvent evaluate(final long millis, final double fill, final double ratio,
+            final Priority configured) {
+        Level previous = level;
+        if (fill >= queueFill || ratio >= gcRatio) {
+            lowSince = -1;
+            for (Level step : STEPS) {
+                if (!isAtLeast(configured, step) && !isAtLeast(previous, step)) {
+                    level = step;
+                    break;
+                }
+            }
+        } else if (fill < queueFill / 2 && ratio < gcRatio / 2) {
+            if (previous == null) {
+                return null;
+            }
+            if (lowSince < 0) {
+                lowSince = millis;
+            } else if (millis - lowSince >= cooldownMillis) {
+                lowSince = millis;
+                Level lower = null;
+                for (Level step : STEPS) {
+                    if (step.isGreaterOrEqual(previous)) {
+                        break;
+                    }
+                    lower = isAtLeast(configured, step) ? null : step;
+                }
+                level = lower;
+            }
+        } else {
+            lowSince = -1;
+        }
+        return (level == previous) ? null : createRecord(millis, previous, level, fill, ratio,
+                configured);
+    }
+
+    private static boolean isAtLeast(final Priority priority, final Level step) {
+        return priority != null && priority.isGreaterOrEqual(step);
+    }
+
+    /**
+     * @return The collectors whose collection time is time the application was paused
+     */
+    static List<GarbageCollectorMXBean> pauseCollectors() {
+        List<GarbageCollectorMXBean> collectors = new ArrayList<GarbageCollectorMXBean>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!collector.getName().endsWith(" Cycles")) {
+                collectors.add(collector);
+            }
+        }
+        return collectors;
+    }
+
+    private long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            long time = collector.getCollectionTime();
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Creates a WARN event recording a change of the threshold, with the thresholds and the
+     * pressure as properties.
+     */
+    private static LoggingEvent createRecord(long millis, Level previous, Level current,
+            double fill, double ratio, Priority configured) {
+        Priority base = (configured != null) ? configured : Level.ALL;
+        String from = String.valueOf((previous != null) ? previous : base);
+        String to = String.valueOf((current != null) ? current : base);
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("threshold", to);
+        properties.put("previousThreshold", from);
+        properties.put("queueFill", String.valueOf(Math.round(fill * 100) / 100.0));
+        properties.put("gcRatio", String.valueOf(Math.round(ratio * 100) / 100.0));
+        String message = ((current == null || (previous != null && previous
+                .isGreaterOrEqual(current))) ? "Lowered" : "Raised")
+                + " log threshold from " + from + " to " + to + " (queue fill "
+                + Math.round(fill * 100) + "%, GC time " + Math.round(ratio * 100) + "%)";
+        return new LoggingEvent(ThresholdEscalator.class.getName(), Logger
+                .getLogger(ThresholdEscalator.class), millis, Level.WARN, message, Thread
+                .currentThread().getName(), null, null, null, properties);
+    }
+}
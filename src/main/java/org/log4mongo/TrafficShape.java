@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The statistical shape of the logging of a service: level mix, logger distribution, message
+ * lengths, MDC keys and their cardinality, exception rate and stack depth, and burstiness as the
+ * distribution of the number of events per tick of 100 milliseconds. Recorded by
+ * TrafficShapeRecorder, and sampled to replay the same shape of traffic.
+ * <p>
+ * Distinct loggers and MDC keys are bounded; the loggers beyond the bound are counted as one
+ * "other" logger. MDC values aren't retained: their cardinality is estimated from the smallest
+ * hashes of the values, so it is exact up to a few hundred values. Not thread-safe.
+ */
+final class TrafficShape {
+
+    static final long TICK_MILLIS = 100;
+
+    static final int MAX_LOGGERS = 1000;
+
+    static final int MAX_MDC_KEYS = 100;
+
+    static final int MAX_CARDINALITY = 10000;
+
+    static final int CARDINALITY_HASHES = 256;
+
+    static final String OTHER_LOGGER = "other";
+
+    long events = 0;
+
+    long throwables = 0;
+
+    final Map<String, long[]> levels = new LinkedHashMap<String, long[]>();
+
+    final Map<String, long[]> loggers = new HashMap<String, long[]>();
+
+    final Map<String, long[]> mdcKeys = new HashMap<String, long[]>();
+
+    final Map<String, DistinctValues> mdcValues = new HashMap<String, DistinctValues>();
+
+    final Map<String, long[]> mdcCardinality = new HashMap<String, long[]>();
+
+    final long[] messageLengths = new long[LogLinearHistogram.BUCKETS];
+
+    final long[] mdcSizes = new long[LogLinearHistogram.BUCKETS];
+
+    final long[] stackDepths = new long[LogLinearHistogram.BUCKETS];
+
+    final long[] eventsPerTick = new long[LogLinearHistogram.BUCKETS];
+
+    private long tick = -1;
+
+    private long tickEvents = 0;
+
+    /**
+     * Records an event.
+     */
+    void record(LoggingEvent event) {
+        events++;
+        increment(levels, event.getLevel().toString(), Integer.MAX_VALUE);
+        if (!increment(loggers, event.getLoggerName(), MAX_LOGGERS)) {
+            increment(loggers, OTHER_LOGGER, Integer.MAX_VALUE);
+        }
+        String message = event.getRenderedMessage();
+        messageLengths[LogLinearHistogram.bucketOf((message == null) ? 0 : message.length())]++;
+
+        Map<?, ?> properties = event.getProperties();
+        mdcSizes[LogLinearHistogram.bucketOf(properties.size())]++;
+        for (Map.Entry<?, ?> property : properties.entrySet()) {
+            String key = String.valueOf(property.getKey());
+            if (increment(mdcKeys, key, MAX_MDC_KEYS)) {
+                DistinctValues values = mdcValues.get(key);
+                if (values == null) {
+                    values = new DistinctValues();
+                    mdcValues.put(key, values);
+                }
+                values.add(String.valueOf(property.getValue()));
+            }
+        }
+
+        ThrowableInformation throwableInfo = event.getThrowableInformation();
+        if (throwableInfo != null) {
+            throwables++;
+            int depth = 0;
+            for (Throwable t = throwableInfo.getThrowable(); t != null && depth < 10000; t = t
+                    .getCause()) {
+                depth += t.getStackTrace().length;
+            }
+            stackDepths[LogLinearHistogram.bucketOf(depth)]++;
+        }
+
+        // Events stamped slightly earlier by a concurrent thread count in the current tick
+        long eventTick = event.getTimeStamp() / TICK_MILLIS;
+        if (tick < 0) {
+            tick = eventTick;
+        } else if (eventTick > tick) {
+            eventsPerTick[LogLinearHistogram.bucketOf(tickEvents)]++;
+            // Idle ticks, bounded so a quiet night doesn't dominate the shape
+            eventsPerTick[0] += Math.min(eventTick - tick - 1, 600);
+            tick = eventTick;
+            tickEvents = 0;
+        }
+        tickEvents++;
+    }
+
+    /**
+     * @return The shape as a document
+     */
+    DBObject toDBObject() {
+        BasicDBObject shape = new BasicDBObject();
+        shape.put("events", events);
+        shape.put("throwables", throwables);
+        shape.put("tickMillis", TICK_MILLIS);
+        shape.put("levels", toDocument(levels));
+        shape.put("loggers", toDocument(loggers));
+        shape.put("mdcKeys", toDocument(mdcKeys));
+        BasicDBObject cardinality = new BasicDBObject();
+        for (Map.Entry<String, DistinctValues> values : mdcValues.entrySet()) {
+            cardinality.put(values.getKey(), values.getValue().estimate());
+        }
+        shape.put("mdcCardinality", cardinality);
+        shape.put("messageLengths", toList(messageLengths));
+        shape.put("mdcSizes", toList(mdcSizes));
+        shape.put("stackDepths", toList(stackDepths));
+        long[] ticks = eventsPerTick.clone();
+        if (tickEvents > 0) {
+            ticks[LogLinearHistogram.bucketOf(tickEvents)]++;
+        }
+        shape.put("eventsPerTick", toList(ticks));
+        return shape;
+    }
+
+    /**
+     * @param document
+     *            A shape created by toDBObject
+     * @return The shape
+     */
+    static TrafficShape fromDBObject(DBObject document) {
+        TrafficShape shape = new TrafficShape();
+        shape.events = ((Number) document.get("events")).longValue();
+        shape.throwables = ((Number) document.get("throwables")).longValue();
+        fromDocument((DBObject) document.get("levels"), shape.levels);
+        fromDocument((DBObject) document.get("loggers"), shape.loggers);
+        fromDocument((DBObject) document.get("mdcKeys"), shape.mdcKeys);
+        fromDocument((DBObject) document.get("mdcCardinality"), shape.mdcCardinality);
+        fromList((List<?>) document.get("messageLengths"), shape.messageLengths);
+        fromList((List<?>) document.get("mdcSizes"), shape.mdcSizes);
+        fromList((List<?>) document.get("stackDepths"), shape.stackDepths);
+        fromList((List<?>) document.get("eventsPerTick"), shape.eventsPerTick);
+        return shape;
+    }
+
+    /**
+     * Generates events with the shape of a recorded one.
+     */
+    final class Sampler {
+
+        private final Random random;
+
+        private final List<Map.Entry<String, long[]>> levelEntries;
+
+        private final List<Map.Entry<String, long[]>> loggerEntries;
+
+        private final List<Map.Entry<String, long[]>> mdcKeyEntries;
+
+        private final Map<Integer, Throwable> failures = new HashMap<Integer, Throwable>();
+
+        Sampler(Random random) {
+            this.random = random;
+            levelEntries = new ArrayList<Map.Entry<String, long[]>>(levels.entrySet());
+            loggerEntries = new ArrayList<Map.Entry<String, long[]>>(loggers.entrySet());
+            mdcKeyEntries = new ArrayList<Map.Entry<String, long[]>>(mdcKeys.entrySet());
+        }
+
+        /**
+         * @return The number of events of a tick
+         */
+        long eventsPerTick() {
+            return sample(eventsPerTick);
+        }
+
+        /**
+         * @return A new event
+         */
+        LoggingEvent newEvent() {
+            Level level = Level.toLevel(pick(levelEntries), Level.INFO);
+            Logger logger = Logger.getLogger(pick(loggerEntries));
+
+            int length = (int) Math.min(sample(messageLengths), 1 << 20);
+            StringBuilder message = new StringBuilder(length);
+            while (message.length() < length) {
+                message.append("Replayed event ").append(random.nextInt(100000)).append(' ');
+            }
+            message.setLength(length);
+
+            Map<String, Object> properties = new HashMap<String, Object>();
+            long mdcSize = Math.min(sample(mdcSizes), mdcKeyEntries.size());
+            for (int i = 0; i < mdcSize * 4 && properties.size() < mdcSize; i++) {
+                String key = pick(mdcKeyEntries);
+                long[] cardinality = mdcCardinality.get(key);
+                DistinctValues recorded = mdcValues.get(key);
+                int values = (int) Math.max(1, (cardinality != null) ? cardinality[0]
+                        : (recorded != null) ? recorded.estimate() : 1);
+                properties.put(key, key + "-" + random.nextInt(values));
+            }
+
+            ThrowableInformation throwableInfo = null;
+            if (throwables > 0 && random.nextDouble() < (double) throwables / events) {
+                throwableInfo = new ThrowableInformation(newThrowable((int) sample(stackDepths)));
+            }
+            return new LoggingEvent(Logger.class.getName(), logger, System.currentTimeMillis(),
+                    level, message.toString(), Thread.currentThread().getName(), throwableInfo,
+                    null, null, properties);
+        }
+
+        private Throwable newThrowable(int depth) {
+            Throwable throwable = failures.get(depth);
+            if (throwable == null) {
+                throwable = new IllegalStateException("Replayed failure");
+                StackTraceElement[] frames = new StackTraceElement[depth];
+                for (int i = 0; i < depth; i++) {
+                    frames[i] = new StackTraceElement("org.example.Replayed" + (i % 7),
+                            "call" + i, "Replayed.java", i + 1);
+                }
+                throwable.setStackTrace(frames);
+                failures.put(depth, throwable);
+            }
+            return throwable;
+        }
+
+        private String pick(List<Map.Entry<String, long[]>> entries) {
+            long sum = 0;
+            for (Map.Entry<String, long[]> entry : entries) {
+                sum += entry.getValue()[0];
+            }
+            long target = (long) (random.nextDouble() * Math.max(sum, 1));
+            for (Map.Entry<String, long[]> entry : entries) {
+                target -= entry.getValue()[0];
+                if (target < 0) {
+                    return entry.getKey();
+                }
+            }
+            return entries.isEmpty() ? OTHER_LOGGER : entries.get(entries.size() - 1).getKey();
+        }
+
+        /**
+         * @return A value drawn from a histogram, uniformly within its bucket
+         */
+        private long sample(long[] histogram) {
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) (random.nextDouble() * total);
+            for (int i = 0; i < histogram.length; i++) {
+                target -= histogram[i];
+                if (target < 0) {
+                    long low = (i == 0) ? 0 : LogLinearHistogram.upperBoundOf(i - 1) + 1;
+                    long high = LogLinearHistogram.upperBoundOf(i);
+                    return low + (long) (random.nextDouble() * (high - low + 1));
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Estimates the number of distinct values from the smallest hashes seen (a k minimum values
+     * sketch): exact below CARDINALITY_HASHES values, within about 6% above.
+     */
+    static final class DistinctValues {
+
+        private final double[] smallest = new double[CARDINALITY_HASHES];
+
+        private int size = 0;
+
+        void add(String value) {
+            double position = EventSampler.position(value);
+            if (size == smallest.length && position >= smallest[size - 1]) {
+                return;
+            }
+            int index = Arrays.binarySearch(smallest, 0, size, position);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            int moved = Math.min(size, smallest.length - 1) - index;
+            System.arraycopy(smallest, index, smallest, index + 1, moved);
+            smallest[index] = position;
+            size = Math.min(size + 1, smallest.length);
+        }
+
+        /**
+         * @return The estimated number of distinct values, at most MAX_CARDINALITY
+         */
+        long estimate() {
+            if (size < smallest.length) {
+                return size;
+            }
+            return Math.min((long) ((size - 1) / smallest[size - 1]), MAX_CARDINALITY);
+        }
+    }
+
+    private static boolean increment(Map<String, long[]> counts, String key, int maxKeys) {
+        long[] count = counts.get(key);
+        if (count == null) {
+            if (counts.size() >= maxKeys) {
+                return false;
+            }
+            count = new long[1];
+            counts.put(key, count);
+        }
+        count[0]++;
+        return true;
+    }
+
+    private static DBObject toDocument(Map<String, long[]> counts) {
+        BasicDBObject document = new BasicDBObject();
+        for (Map.Entry<String, long[]> count : counts.entrySet()) {
+            document.put(count.getKey(), count.getValue()[0]);
+        }
+        return document;
+    }
+
+    private static void fromDocument(DBObject document, Map<String, long[]> counts) {
+        for (String key : document.keySet()) {
+            counts.put(key, new long[] { ((Number) document.get(key)).longValue() });
+        }
+    }
+
+    /**
+     * @return The non-empty buckets of a histogram as [bucket, count] pairs
+     */
+    private static BasicDBList toList(long[] histogram) {
+        BasicDBList list = new BasicDBList();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                BasicDBList pair = new BasicDBList();
+                pair.add(i);
+                pair.add(histogram[i]);
+                list.add(pair);
+            }
+        }
+        return list;
+    }
+
+    private static void fromList(List<?> list, long[] histogram) {
+        for (Object element : list) {
+            List<?> pair = (List<?>) element;
+            histogram[((Number) pair.get(0)).intValue()] = ((Number) pair.get(1)).longValue();
+        }
+    }
+}
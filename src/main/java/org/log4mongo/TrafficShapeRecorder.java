@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.log4mongo;
+
+import com.mongodb.util.JSON;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Log4J Appender that records the statistical shape of the events of a service (level mix,
+ * logger distribution, message lengths, MDC cardinality, exception rate and burstiness) rather
+ * than the events themselves. The shape is written as a JSON document to a file every
+ * writeInterval milliseconds and when the appender is closed. The load harness replays it
+ * through any log4mongo appender at a multiple of the recorded rate.
+ * <p>
+ * Only counts are recorded, so the shape holds logger names and MDC keys, but no messages or MDC
+ * values. MDC values are only hashed to estimate their cardinality.
+ */
+public class TrafficShapeRecorder extends AppenderSkeleton {
+
+    public static final long DEFAULT_WRITE_INTERVAL_MILLIS = 60000;
+
+    private final TrafficShape shape = new TrafficShape();
+
+    private String file = null;
+
+    private long writeInterval = DEFAULT_WRITE_INTERVAL_MILLIS;
+
+    private long lastWrite = System.currentTimeMillis();
+
+    /**
+     * @see org.apache.log4j.Appender#requiresLayout()
+     */
+    public boolean requiresLayout() {
+        return false;
+    }
+
+    /**
+     * Records the event. Called by doAppend, which serializes the calls.
+     */
+    @Override
+    protected void append(final LoggingEvent loggingEvent) {
+        shape.record(loggingEvent);
+        long now = System.currentTimeMillis();
+        if (now - lastWrite >= writeInterval) {
+            lastWrite = now;
+            write();
+        }
+    }
+
+    /**
+     * Writes the shape recorded so far.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            write();
+        }
+    }
+
+    private void write() {
+        if (file == null) {
+            return;
+        }
+        File target = new File(file);
+        File temp = new File(file + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp),
+                    StandardCharsets.UTF_8);
+            try {
+                writer.write(JSON.serialize(shape.toDBObject()));
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target))) {
+                throw new IOException("Can't rename " + temp + " to " + target);
+            }
+        } catch (IOException e) {
+            errorHandler.error("Failed to write the traffic shape to " + file, e,
+                    ErrorCode.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * @return The file the shape is written to
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * @param file
+     *            The file the shape is written to, as JSON
+     */
+    public void setFile(final String file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The milliseconds between writes of the shape
+     */
+    public long getWriteInterval() {
+        return writeInterval;
+    }
+
+    /**
+     * @param writeInterval
+     *            The milliseconds between writes of the shape <i>(must be greater than 0)</i>.
+     *            Default is 60000.
+     */
+    public void setWriteInterval(final long writeInterval) {
+        assert writeInterval > 0 : "writeInterval must be greater than 0";
+
+        this.writeInterval = writeInterval;
+    }
+
+    TrafficShape getShape() {
+        return shape;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Interface implemented by custom PatternConverters whose output has a native BSON type (e.g., a
+ * Date, a number or a sub-document).
+ * <p>
+ * If the TypedValues option of MongoDbPatternLayout is enabled and a value in the conversion
+ * pattern consists of this converter alone, the object returned by convertToValue is stored as the
+ * value instead of the converted string.
+ */
+public interface TypedPatternConverter {
+
+    /**
+     * @param event
+     *            The LoggingEvent being formatted
+     * @return The value to store <i>(may be null)</i>.
+     */
+    Object convertToValue(LoggingEvent event);
+
+}
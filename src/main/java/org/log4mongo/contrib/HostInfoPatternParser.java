@@ -23,9 +23,6 @@ import org.apache.log4j.spi.LoggingEvent;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * PatternParser that adds pattern converters for logging useful host-related info, specifically:
@@ -43,15 +40,24 @@ public class HostInfoPatternParser extends PatternParser {
 
     static final char IP_ADDRESS = 'I';
 
-    static final Map<String, PatternConverter> converters;
+    private static final String hostname;
 
-    static {
-        Map<String, PatternConverter> tmp = new HashMap<String, PatternConverter>();
-        tmp.put(String.valueOf(HOST_NAME), new HostPatternConverter());
-        tmp.put(String.valueOf(VM_NAME), new VMNamePatternConverter());
-        tmp.put(String.valueOf(IP_ADDRESS), new IPAddressPatternConverter());
+    private static final String process;
+
+    private static final String ipaddress;
 
-        converters = Collections.unmodifiableMap(tmp);
+    static {
+        String name = "";
+        String address = "";
+        try {
+            name = InetAddress.getLocalHost().getHostName();
+            address = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            LogLog.warn(e.getMessage());
+        }
+        hostname = name;
+        ipaddress = address;
+        process = ManagementFactory.getRuntimeMXBean().getName();
     }
 
     public HostInfoPatternParser(String pattern) {
@@ -63,6 +69,9 @@ public class HostInfoPatternParser extends PatternParser {
      * is parsing the pattern. If the character is for a custom converter handled by this
      * PatternParser subclass, this class adds the appropriate converter to a LinkedList of
      * converters. If not, it allows the superclass to handle the converter character.
+     * <p>
+     * A new converter is created each time, since the LinkedList is built from the converters
+     * themselves and must not be shared between parsed patterns.
      *
      * @see org.apache.log4j.helpers.PatternParser#finalizeConverter(char)
      */
@@ -70,17 +79,17 @@ public class HostInfoPatternParser extends PatternParser {
         PatternConverter pc = null;
         switch (formatChar) {
         case HOST_NAME:
-            pc = HostInfoPatternParser.converters.get(String.valueOf(HOST_NAME));
+            pc = new HostPatternConverter();
             currentLiteral.setLength(0);
             addConverter(pc);
             break;
         case VM_NAME:
-            pc = HostInfoPatternParser.converters.get(String.valueOf(VM_NAME));
+            pc = new VMNamePatternConverter();
             currentLiteral.setLength(0);
             addConverter(pc);
             break;
         case IP_ADDRESS:
-            pc = HostInfoPatternParser.converters.get(String.valueOf(IP_ADDRESS));
+            pc = new IPAddressPatternConverter();
             currentLiteral.setLength(0);
             addConverter(pc);
             break;
@@ -95,18 +104,6 @@ public class HostInfoPatternParser extends PatternParser {
      */
     private static class HostPatternConverter extends PatternConverter {
 
-        private String hostname = "";
-
-        HostPatternConverter() {
-            super();
-
-            try {
-                hostname = InetAddress.getLocalHost().getHostName();
-            } catch (UnknownHostException e) {
-                LogLog.warn(e.getMessage());
-            }
-        }
-
         public String convert(LoggingEvent event) {
             return hostname;
         }
@@ -118,14 +115,6 @@ public class HostInfoPatternParser extends PatternParser {
      */
     private static class VMNamePatternConverter extends PatternConverter {
 
-        private String process = "";
-
-        VMNamePatternConverter() {
-            super();
-
-            process = ManagementFactory.getRuntimeMXBean().getName();
-        }
-
         public String convert(LoggingEvent event) {
             return process;
         }
@@ -136,18 +125,6 @@ public class HostInfoPatternParser extends PatternParser {
      */
     private static class IPAddressPatternConverter extends PatternConverter {
 
-        private String ipaddress = "";
-
-        IPAddressPatternConverter() {
-            super();
-
-            try {
-                ipaddress = InetAddress.getLocalHost().getHostAddress();
-            } catch (UnknownHostException e) {
-                LogLog.warn(e.getMessage());
-            }
-        }
-
         public String convert(LoggingEvent event) {
             return ipaddress;
         }
@@ -0,0 +1,285 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.config.PropertySetter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an appender from application threads against an in-process WireProtocolServer and
+ * reports throughput, the latency of the logging calls and the bytes on the wire. No MongoDB
+ * server is required. Options are given as key=value arguments:
+ * <ul>
+ * <li>appender: structured (MongoDbAppender, the default), extended, patternLayout or
+ * patternLayoutDate</li>
+ * <li>threads: the number of application threads (default 4)</li>
+ * <li>events: the number of events each thread logs (default 100000)</li>
+ * <li>latencyMicros: the time the server takes for each insert (default 0)</li>
+ * <li>pattern: the conversion pattern of the pattern layout appenders</li>
+ * <li>shape: a traffic shape written by TrafficShapeRecorder. Instead of a fixed number of
+ * events, the threads together replay the shape for duration seconds (default 60) at rate times
+ * the recorded rate (default 1).</li>
+ * <li>server: host:port of a test server to write to instead of the in-process stand-in</li>
+ * </ul>
+ * Any other option is set on the appender as in a log4j configuration, e.g. bufferSize=10000.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.log4mongo.AppenderLoadHarness \
+ *     -Dexec.args="appender=structured threads=8 bufferSize=10000 latencyMicros=500"
+ * </pre>
+ */
+public class AppenderLoadHarness {
+
+    static final String DEFAULT_PATTERN = "{\"timestamp\":\"%d{ISO8601}\",\"level\":\"%p\","
+            + "\"thread\":\"%t\",\"class\":\"%c\",\"message\":\"%m\"}";
+
+    private static final Logger LOGGER = Logger.getLogger("org.example.load.LoadGenerator");
+
+    /**
+     * The outcome of a run.
+     */
+    static class Result {
+        long events;
+        long elapsedNanos;
+        long documentsInserted;
+        long insertCommands;
+        long bytesReceived;
+        long bytesSent;
+        final LogLinearHistogram callerNanos = new LogLinearHistogram();
+        final AtomicLong lateTicks = new AtomicLong();
+
+        double getEventsPerSecond() {
+            return events * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("throughput:      %,.0f events/s (%,d events in %,d ms)%n",
+                    getEventsPerSecond(), events, TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+            sb.append(String.format("caller latency:  p50 %,d us, p90 %,d us, p99 %,d us, "
+                    + "p99.9 %,d us, max %,d us%n", micros(50), micros(90), micros(99),
+                    micros(99.9), TimeUnit.NANOSECONDS.toMicros(callerNanos.getMax())));
+            sb.append(String.format("written:         %,d documents in %,d inserts%n",
+                    documentsInserted, insertCommands));
+            sb.append(String.format("bytes on wire:   %,d received (%,d per event), %,d sent",
+                    bytesReceived, (events == 0) ? 0 : bytesReceived / events, bytesSent));
+            if (lateTicks.get() > 0) {
+                sb.append(String.format("%nreplay:          %,d ticks started late",
+                        lateTicks.get()));
+            }
+            return sb.toString();
+        }
+
+        private long micros(double percentile) {
+            return TimeUnit.NANOSECONDS.toMicros(callerNanos.getPercentile(percentile));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Usage: AppenderLoadHarness [key=value ...]");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        System.out.println(options);
+        System.out.println(run(options));
+    }
+
+    /**
+     * Runs the harness.
+     *
+     * @param options
+     *            The options, as described in the class comment
+     * @return The outcome
+     */
+    static Result run(Map<String, String> options) throws Exception {
+        Map<String, String> properties = new HashMap<String, String>(options);
+        String type = remove(properties, "appender", "structured");
+        final int threads = Integer.parseInt(remove(properties, "threads", "4"));
+        final int events = Integer.parseInt(remove(properties, "events", "100000"));
+        long latencyMicros = Long.parseLong(remove(properties, "latencyMicros", "0"));
+        String pattern = remove(properties, "pattern", DEFAULT_PATTERN);
+        String shapeFile = remove(properties, "shape", null);
+        final double rate = Double.parseDouble(remove(properties, "rate", "1"));
+        final long ticks = Long.parseLong(remove(properties, "duration", "60"))
+                * TimeUnit.SECONDS.toMillis(1) / TrafficShape.TICK_MILLIS;
+        String target = remove(properties, "server", null);
+
+        final TrafficShape shape = (shapeFile == null) ? null : readShape(shapeFile);
+        WireProtocolServer server = (target == null) ? new WireProtocolServer() : null;
+        try {
+            final MongoDbAppender appender = newAppender(type, pattern);
+            appender.setName("load");
+            if (server != null) {
+                server.setLatencyMicros(latencyMicros);
+                appender.setHostname("127.0.0.1");
+                appender.setPort(String.valueOf(server.getPort()));
+            } else {
+                int colon = target.lastIndexOf(':');
+                appender.setHostname((colon < 0) ? target : target.substring(0, colon));
+                appender.setPort((colon < 0) ? "27017" : target.substring(colon + 1));
+            }
+            appender.setDatabaseName("load");
+            appender.setCollectionName("events");
+            PropertySetter setter = new PropertySetter(appender);
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                setter.setProperty(property.getKey(), property.getValue());
+            }
+            appender.activateOptions();
+
+            final Result result = new Result();
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                workers[t] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (shape != null) {
+                            replay(appender, shape.new Sampler(new Random(thread)), rate
+                                    / threads, ticks, result);
+                            return;
+                        }
+                        for (int i = 0; i < events; i++) {
+                            LoggingEvent event = new LoggingEvent(Logger.class.getName(), LOGGER,
+                                    Level.INFO, "Processed order " + i + " for customer "
+                                            + thread, null);
+                            append(appender, event, result);
+                        }
+                    }
+                }, "load-" + t);
+                workers[t].start();
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            // Closing waits until the queued events are written
+            appender.close();
+            result.elapsedNanos = System.nanoTime() - begin;
+
+            result.events = result.callerNanos.getCount();
+            if (server != null) {
+                result.documentsInserted = server.getDocumentsInserted();
+                result.insertCommands = server.getInsertCommands();
+                result.bytesReceived = server.getBytesReceived();
+                result.bytesSent = server.getBytesSent();
+            } else {
+                result.documentsInserted = appender.getMetrics().getEventsWritten();
+                result.insertCommands = appender.getMetrics().getBatchSizes().getCount();
+            }
+            return result;
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Replays the events of a shape, tick by tick. The events of a tick are appended as a burst
+     * at its start.
+     *
+     * @param share
+     *            The multiple of the recorded rate replayed by this thread
+     */
+    private static void replay(MongoDbAppender appender, TrafficShape.Sampler sampler,
+            double share, long ticks, Result result) {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(TrafficShape.TICK_MILLIS);
+        long next = System.nanoTime();
+        double carry = 0;
+        for (long tick = 0; tick < ticks; tick++) {
+            double due = sampler.eventsPerTick() * share + carry;
+            long count = (long) due;
+            carry = due - count;
+            for (long i = 0; i < count; i++) {
+                append(appender, sampler.newEvent(), result);
+            }
+            next += tickNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+            } else {
+                result.lateTicks.incrementAndGet();
+            }
+        }
+    }
+
+    private static void append(MongoDbAppender appender, LoggingEvent event, Result result) {
+        long begin = System.nanoTime();
+        appender.doAppend(event);
+        result.callerNanos.record(System.nanoTime() - begin);
+    }
+
+    private static TrafficShape readShape(String file) throws IOException {
+        byte[] json = Files.readAllBytes(Paths.get(file));
+        return TrafficShape.fromDBObject((DBObject) JSON.parse(new String(json,
+                StandardCharsets.UTF_8)));
+    }
+
+    private static MongoDbAppender newAppender(String type, String pattern) {
+        if ("structured".equals(type)) {
+            return new MongoDbAppender();
+        } else if ("extended".equals(type)) {
+            return new ExtendedMongoDbAppender();
+        }
+        MongoDbAppender appender;
+        if ("patternLayout".equals(type)) {
+            appender = new MongoDbPatternLayoutAppender();
+        } else if ("patternLayoutDate".equals(type)) {
+            appender = new MongoDbPatternLayoutDateAppender();
+        } else {
+            throw new IllegalArgumentException("Unknown appender: " + type);
+        }
+        appender.setLayout(new MongoDbPatternLayout(pattern));
+        return appender;
+    }
+
+    private static String remove(Map<String, String> properties, String key, String defaultValue) {
+        String value = properties.remove(key);
+        return (value != null) ? value : defaultValue;
+    }
+}
@@ -0,0 +1,63 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.Map;
+
+/**
+ * Creates the LoggingEvents used by the unit tests. Appenders are called directly, so the events
+ * are created as if logged through AppenderSkeleton, and location info refers to the caller of
+ * doAppend.
+ */
+final class LoggingEvents {
+
+    private LoggingEvents() {
+    }
+
+    static LoggingEvent newEvent(String loggerName, Level level, Object message) {
+        return newEvent(loggerName, level, message, null);
+    }
+
+    static LoggingEvent newEvent(String loggerName, Level level, Object message,
+            Throwable throwable) {
+        return new LoggingEvent(AppenderSkeleton.class.getName(), Logger.getLogger(loggerName),
+                level, message, throwable);
+    }
+
+    static LoggingEvent newEvent(String loggerName, long timeStamp, Level level, Object message,
+            Throwable throwable) {
+        return new LoggingEvent(AppenderSkeleton.class.getName(), Logger.getLogger(loggerName),
+                timeStamp, level, message, throwable);
+    }
+
+    /**
+     * @param properties
+     *            The MDC of the event, instead of the MDC of the current thread
+     */
+    static LoggingEvent newEvent(String loggerName, long timeStamp, Level level, Object message,
+            Throwable throwable, Map<?, ?> properties) {
+        return new LoggingEvent(AppenderSkeleton.class.getName(), Logger.getLogger(loggerName),
+                timeStamp, level, message, Thread.currentThread().getName(),
+                (throwable == null) ? null : new ThrowableInformation(throwable), null, null,
+                properties);
+    }
+}
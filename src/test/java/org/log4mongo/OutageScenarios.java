@@ -0,0 +1,229 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.config.PropertySetter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures what an application goes through while MongoDB is failing: a MongoDbAppender writes
+ * to a WireProtocolServer, an application thread logs at a steady rate, and a fault is injected
+ * after a second. Each scenario reports how long logging calls blocked the application thread,
+ * how many events were lost, and how long after the end of the fault the first insert was
+ * acknowledged. Options are given as key=value arguments:
+ * <ul>
+ * <li>fault: one of the Fault names, or all (the default)</li>
+ * <li>faultMillis: the duration of the fault (default 5000)</li>
+ * <li>intervalMicros: the time between two events of the application thread (default 1000)</li>
+ * </ul>
+ * Any other option is set on the appender as in a log4j configuration, e.g. bufferSize=10000.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.log4mongo.OutageScenarios \
+ *     -Dexec.args="fault=STALL bufferSize=10000 blocking=false"
+ * </pre>
+ */
+public class OutageScenarios {
+
+    private static final long WARMUP_MILLIS = 1000;
+
+    // Time the application keeps logging after the appender recovered
+    private static final long SETTLE_MILLIS = 500;
+
+    private static final long MAX_RECOVERY_MILLIS = 60000;
+
+    private static final Logger LOGGER = Logger.getLogger("org.example.outage.Application");
+
+    /**
+     * The injected faults.
+     */
+    enum Fault {
+        /** Inserts are not acknowledged until the fault ends. */
+        STALL,
+        /** Every document of the inserts fails with a write error. */
+        WRITE_ERRORS,
+        /** Connections are closed, and refused until the fault ends. */
+        CONNECTION_LOSS,
+        /** Connections are closed, and the server is not primary until the fault ends. */
+        FAILOVER,
+        /** The connection of one insert is closed after it was stored but not acknowledged. */
+        DROP_BEFORE_ACK
+    }
+
+    /**
+     * The outcome of a scenario.
+     */
+    static class Outcome {
+        Fault fault;
+        long appended;
+        long written;
+        long failed;
+        long dropped;
+        long recoveryMillis = -1;
+        final LogLinearHistogram callerNanos = new LogLinearHistogram();
+
+        /**
+         * @return The events appended but not stored. Negative if events were stored although
+         *         the appender counted them as failed.
+         */
+        long getLost() {
+            return appended - written;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s appended %,7d  written %,7d  failed %,6d  dropped %,6d"
+                    + "  lost %,6d  blocked p99 %,7d us  max %,8d us  total %,6d ms"
+                    + "  recovery %s", fault, appended, written, failed, dropped, getLost(),
+                    TimeUnit.NANOSECONDS.toMicros(callerNanos.getPercentile(99)),
+                    TimeUnit.NANOSECONDS.toMicros(callerNanos.getMax()),
+                    TimeUnit.NANOSECONDS.toMillis(callerNanos.getSum()),
+                    (recoveryMillis < 0) ? "none" : String.format("%,d ms", recoveryMillis));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Usage: OutageScenarios [key=value ...]");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        System.out.println(options);
+        String fault = options.containsKey("fault") ? options.remove("fault") : "all";
+        for (Fault f : Fault.values()) {
+            if ("all".equals(fault) || f.name().equals(fault)) {
+                System.out.println(run(f, options));
+            }
+        }
+    }
+
+    /**
+     * Runs a scenario.
+     *
+     * @param fault
+     *            The fault injected
+     * @param options
+     *            The options, as described in the class comment
+     * @return The outcome
+     */
+    static Outcome run(Fault fault, Map<String, String> options) throws Exception {
+        Map<String, String> properties = new HashMap<String, String>(options);
+        long faultMillis = Long.parseLong(remove(properties, "faultMillis", "5000"));
+        long intervalNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(remove(properties,
+                "intervalMicros", "1000")));
+
+        WireProtocolServer server = new WireProtocolServer();
+        try {
+            MongoDbAppender appender = new MongoDbAppender();
+            appender.setName("outage");
+            appender.setHostname("127.0.0.1");
+            appender.setPort(String.valueOf(server.getPort()));
+            appender.setDatabaseName("outage");
+            appender.setCollectionName("events");
+            PropertySetter setter = new PropertySetter(appender);
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                setter.setProperty(property.getKey(), property.getValue());
+            }
+            appender.activateOptions();
+
+            Outcome outcome = new Outcome();
+            outcome.fault = fault;
+            long start = System.currentTimeMillis();
+            long next = System.nanoTime();
+            boolean injected = false;
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (!injected && now - start >= WARMUP_MILLIS) {
+                    inject(server, fault, faultMillis);
+                    injected = true;
+                }
+                long recoveredAt = server.getRecoveredAt();
+                if (injected
+                        && ((recoveredAt != 0 && now - recoveredAt >= SETTLE_MILLIS) || now
+                                - server.getFaultEnd() >= MAX_RECOVERY_MILLIS)) {
+                    break;
+                }
+
+                LoggingEvent event = new LoggingEvent(Logger.class.getName(), LOGGER,
+                        Level.INFO, "Event " + outcome.appended, null);
+                long begin = System.nanoTime();
+                appender.doAppend(event);
+                outcome.callerNanos.record(System.nanoTime() - begin);
+                outcome.appended++;
+
+                next += intervalNanos;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(sleep);
+                } else {
+                    // Don't make up for the time the application was blocked
+                    next = System.nanoTime();
+                }
+            }
+            appender.close();
+
+            long recoveredAt = server.getRecoveredAt();
+            if (recoveredAt != 0) {
+                outcome.recoveryMillis = Math.max(0, recoveredAt - server.getFaultEnd());
+            }
+            outcome.written = server.getDocumentsInserted();
+            outcome.failed = appender.getMetrics().getEventsFailed();
+            outcome.dropped = appender.getMetrics().getEventsDropped();
+            return outcome;
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void inject(WireProtocolServer server, Fault fault, long faultMillis) {
+        switch (fault) {
+        case STALL:
+            server.stall(faultMillis);
+            break;
+        case WRITE_ERRORS:
+            server.failInserts(faultMillis);
+            break;
+        case CONNECTION_LOSS:
+            server.dropConnections(faultMillis);
+            break;
+        case FAILOVER:
+            server.failover(faultMillis);
+            break;
+        case DROP_BEFORE_ACK:
+            server.dropAfterInsert(1);
+            break;
+        }
+    }
+
+    private static String remove(Map<String, String> properties, String key, String defaultValue) {
+        String value = properties.remove(key);
+        return (value != null) ? value : defaultValue;
+    }
+}
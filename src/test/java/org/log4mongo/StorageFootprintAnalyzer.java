@@ -0,0 +1,370 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.config.PropertySetter;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Reports the storage footprint of a sample of events: the encoded BSON size per event and per
+ * top-level field, an estimate of the size after block compression, and an estimate of the size
+ * of a set of indexes. Each variant of the bsonifier configuration (e.g., field projections,
+ * promoted MDC keys or message tokens) is reported side by side, so the savings of a schema change
+ * can be quantified before it is rolled out.
+ * <p>
+ * The sample can be a captured trace: a stream of serialized LoggingEvents, as sent by a Log4J
+ * SocketAppender (with LocationInfo enabled, so location fields have their real size). Run as
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.log4mongo.StorageFootprintAnalyzer \
+ *     -Dexec.args="trace.ser indexes=timestamp;level,timestamp sample=100000 \
+ *         variant.lean.fieldProjections=timestamp,level,message"
+ * </pre>
+ *
+ * Variant options are set on a LoggingEventBsonifierImpl as in a Log4J configuration.
+ */
+public class StorageFootprintAnalyzer {
+
+    /** The _id ObjectId field the driver adds to each document. */
+    static final int ID_FIELD_SIZE = 1 + 4 + 12;
+
+    /** The RecordId each index entry refers to. */
+    static final int RECORD_ID_SIZE = 8;
+
+    /** The size of the pages compressed by the storage engine. */
+    static final int COMPRESSION_BLOCK_SIZE = 32 * 1024;
+
+    private final Map<String, Variant> variants = new LinkedHashMap<String, Variant>();
+
+    private final List<String[][]> indexes = new ArrayList<String[][]>();
+
+    private final List<String> indexNames = new ArrayList<String>();
+
+    private long events = 0;
+
+    /**
+     * Creates an analyzer reporting the default configuration of LoggingEventBsonifierImpl.
+     */
+    public StorageFootprintAnalyzer() {
+        addVariant("default", new LoggingEventBsonifierImpl());
+    }
+
+    /**
+     * @param name
+     *            The name of the variant in the report
+     * @param bsonifier
+     *            The bsonifier of the variant
+     */
+    public void addVariant(final String name, final LoggingEventBsonifier bsonifier) {
+        if (events > 0) {
+            throw new IllegalStateException("Variants must be added before the events");
+        }
+        variants.put(name, new Variant(name, bsonifier));
+    }
+
+    /**
+     * @param indexes
+     *            Semicolon delimited list of indexes, each a comma delimited list of (possibly
+     *            dotted) field paths, e.g. "timestamp;loggerName,timestamp". The _id index is
+     *            always included.
+     */
+    public void setIndexes(final String indexes) {
+        if (events > 0) {
+            throw new IllegalStateException("Indexes must be set before the events");
+        }
+        this.indexes.clear();
+        indexNames.clear();
+        for (String index : indexes.split(";")) {
+            if (index.trim().length() == 0) {
+                continue;
+            }
+            String[] fields = index.split(",");
+            String[][] paths = new String[fields.length][];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = fields[i].trim();
+                paths[i] = fields[i].split("\\.");
+            }
+            this.indexes.add(paths);
+            indexNames.add(Arrays.toString(fields));
+        }
+    }
+
+    /**
+     * Adds an event of the sample.
+     *
+     * @param event
+     *            The event
+     */
+    public void add(final LoggingEvent event) {
+        events++;
+        for (Variant variant : variants.values()) {
+            BSONObject bson = variant.bsonifier.bsonify(event);
+            if (bson != null) {
+                variant.add(bson, indexes);
+            }
+        }
+    }
+
+    /**
+     * @return The number of events in the sample
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    Variant getVariant(final String name) {
+        return variants.get(name);
+    }
+
+    /**
+     * @return The report, as text
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Storage footprint of %,d events%n", events));
+        if (events == 0) {
+            return sb.toString();
+        }
+        for (Variant variant : variants.values()) {
+            long documentBytes = variant.getDocumentBytes();
+            long compressedBytes = variant.getCompressedBytes();
+            sb.append(String.format("%nvariant %s: %,d bytes per event, %,d compressed (zlib, %.0f%%)%n",
+                    variant.name, documentBytes / events, compressedBytes / events,
+                    100.0 * compressedBytes / documentBytes));
+            sb.append(String.format("  %-24s %12s %8s%n", "field", "bytes/event", "share"));
+            for (Map.Entry<String, long[]> field : variant.fieldBytes.entrySet()) {
+                long bytes = field.getValue()[0];
+                sb.append(String.format("  %-24s %12.1f %7.1f%%%n", field.getKey(),
+                        (double) bytes / events, 100.0 * bytes / documentBytes));
+            }
+            sb.append(String.format("  %-24s %12s%n", "index", "bytes/event"));
+            sb.append(String.format("  %-24s %12d%n", "[_id]", 1 + 12 + RECORD_ID_SIZE));
+            for (int i = 0; i < indexes.size(); i++) {
+                sb.append(String.format("  %-24s %12.1f%n", indexNames.get(i),
+                        (double) variant.indexBytes[i] / events));
+            }
+        }
+        sb.append(String.format("%nIndex sizes are estimated before the prefix compression of "
+                + "the storage engine.%n"));
+        return sb.toString();
+    }
+
+    /**
+     * Reads the events of a trace.
+     *
+     * @param in
+     *            A stream of serialized LoggingEvents
+     * @param maxEvents
+     *            The maximum number of events read
+     * @return The number of events read
+     */
+    public long addTrace(final InputStream in, final long maxEvents) throws IOException {
+        ObjectInputStream objects = new ObjectInputStream(new BufferedInputStream(in));
+        long read = 0;
+        try {
+            while (read < maxEvents) {
+                Object object = objects.readObject();
+                if (object instanceof LoggingEvent) {
+                    add((LoggingEvent) object);
+                    read++;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the trace
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a trace of LoggingEvents", e);
+        }
+        return read;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: StorageFootprintAnalyzer <trace> [indexes=...] "
+                    + "[sample=<events>] [variant.<name>.<property>=<value> ...]");
+            System.exit(1);
+        }
+        StorageFootprintAnalyzer analyzer = new StorageFootprintAnalyzer();
+        Map<String, PropertySetter> setters = new LinkedHashMap<String, PropertySetter>();
+        long sample = Long.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            String key = (equals < 0) ? args[i] : args[i].substring(0, equals);
+            String value = (equals < 0) ? "" : args[i].substring(equals + 1);
+            if ("indexes".equals(key)) {
+                analyzer.setIndexes(value);
+            } else if ("sample".equals(key)) {
+                sample = Long.parseLong(value);
+            } else if (key.startsWith("variant.") && key.indexOf('.', 8) > 0) {
+                String name = key.substring(8, key.indexOf('.', 8));
+                PropertySetter setter = setters.get(name);
+                if (setter == null) {
+                    LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+                    analyzer.addVariant(name, bsonifier);
+                    setter = new PropertySetter(bsonifier);
+                    setters.put(name, setter);
+                }
+                setter.setProperty(key.substring(key.indexOf('.', 8) + 1), value);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            analyzer.addTrace(in, sample);
+        } finally {
+            in.close();
+        }
+        System.out.println(analyzer);
+    }
+
+    /**
+     * The sizes accumulated for one bsonifier configuration.
+     */
+    static final class Variant {
+
+        final String name;
+
+        final LoggingEventBsonifier bsonifier;
+
+        /** Encoded bytes by top-level field, in the order the fields first appeared. */
+        final Map<String, long[]> fieldBytes = new LinkedHashMap<String, long[]>();
+
+        long[] indexBytes = new long[0];
+
+        private long documentBytes = 0;
+
+        private long compressedBytes = 0;
+
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(
+                COMPRESSION_BLOCK_SIZE * 2);
+
+        private static final byte[] ID_PREFIX = { 7, '_', 'i', 'd', 0 };
+
+        private final Deflater deflater = new Deflater();
+
+        private final byte[] deflated = new byte[COMPRESSION_BLOCK_SIZE * 2];
+
+        Variant(String name, LoggingEventBsonifier bsonifier) {
+            this.name = name;
+            this.bsonifier = bsonifier;
+            fieldBytes.put("_id", new long[1]);
+        }
+
+        void add(BSONObject bson, List<String[][]> indexes) {
+            byte[] encoded = BSON.encode(bson);
+            documentBytes += ID_FIELD_SIZE + encoded.length;
+            fieldBytes.get("_id")[0] += ID_FIELD_SIZE;
+            for (String key : bson.keySet()) {
+                long[] bytes = fieldBytes.get(key);
+                if (bytes == null) {
+                    bytes = new long[1];
+                    fieldBytes.put(key, bytes);
+                }
+                bytes[0] += elementSize(key, bson.get(key));
+            }
+
+            if (indexBytes.length != indexes.size()) {
+                indexBytes = new long[indexes.size()];
+            }
+            for (int i = 0; i < indexBytes.length; i++) {
+                long size = RECORD_ID_SIZE;
+                for (String[] path : indexes.get(i)) {
+                    // Type byte and value, without the key
+                    size += elementSize("", resolve(bson, path)) - 1;
+                }
+                indexBytes[i] += size;
+            }
+
+            // ObjectIds are as unique as the driver makes them, so they compress as badly
+            block.write(ID_PREFIX, 0, ID_PREFIX.length);
+            block.write(new ObjectId().toByteArray(), 0, 12);
+            block.write(encoded, 0, encoded.length);
+            if (block.size() >= COMPRESSION_BLOCK_SIZE) {
+                compressBlock();
+            }
+        }
+
+        long getDocumentBytes() {
+            return documentBytes;
+        }
+
+        /**
+         * @return The size of the documents compressed in blocks, as the storage engine stores
+         *         them
+         */
+        long getCompressedBytes() {
+            // The partial block is compressed as if it were complete, but kept for more documents
+            return compressedBytes + ((block.size() > 0) ? compress(block.toByteArray()) : 0);
+        }
+
+        private void compressBlock() {
+            compressedBytes += compress(block.toByteArray());
+            block.reset();
+        }
+
+        private long compress(byte[] input) {
+            long size = 0;
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                size += deflater.deflate(deflated);
+            }
+            return size;
+        }
+
+        /**
+         * @return The size of the element in the encoded document: type, key and value
+         */
+        static int elementSize(String key, Object value) {
+            BasicBSONObject element = new BasicBSONObject(key, value);
+            // Without the length and terminator of the enclosing document
+            return BSON.encode(element).length - 5;
+        }
+
+        private static Object resolve(BSONObject bson, String[] path) {
+            Object value = bson;
+            for (String key : path) {
+                if (!(value instanceof BSONObject)) {
+                    return null;
+                }
+                value = ((BSONObject) value).get(key);
+            }
+            return value;
+        }
+    }
+}
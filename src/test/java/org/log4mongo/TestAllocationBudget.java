@@ -0,0 +1,263 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation regression gate for the appenders. The bytes allocated by the logging thread per
+ * appended event, from BsonAppender.append through the bsonifier or layout to the insert into a
+ * fake collection, must stay within the budgets in allocation-budget.properties. These tests
+ * don't require a MongoDB server.
+ * <p>
+ * Budgets leave some headroom over the measured values, which are printed. When a change
+ * legitimately allocates more, raise its budget in the same commit. Strings take twice as many
+ * bytes when they are stored as UTF-16 (on JDK 8, or with -XX:-CompactStrings), so a budget may be
+ * overridden for that string coding with a .utf16 suffix.
+ * <p>
+ * The budgets were measured on OpenJDK 17 (Temurin 17.0.9, HotSpot), the UTF-16 ones with
+ * -XX:-CompactStrings. Other JDKs allocate differently inside the JDK classes the appenders use,
+ * so the budgets may need to be measured again when the build moves to another JDK. The test is
+ * skipped on JVMs that don't count the bytes allocated by each thread.
+ */
+public class TestAllocationBudget {
+
+    private static final int WARMUP_EVENTS = 20000;
+
+    private static final int MEASURED_EVENTS = 2000;
+
+    private static final String[] APPENDERS = { "structured", "extended", "patternLayout",
+            "patternLayoutDate" };
+
+    private static final String[] SHAPES = { "plain", "mdc", "exception", "longMessage" };
+
+    // Log4J 1.2 pattern layouts have no throwable converter, so the exception shape is only
+    // measured for the structured appenders
+    private static final String PATTERN = "{\"timestamp\":\"%d{ISO8601}\",\"level\":\"%p\","
+            + "\"thread\":\"%t\",\"class\":\"%c\",\"message\":\"%m\",\"requestId\":"
+            + "\"%X{requestId}\",\"properties\":\"%X\"}";
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    private static WireProtocolServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("The JVM doesn't count the bytes allocated by threads",
+                isAllocationCounted(bean));
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        // Keeps the monitor of the appenders' clients quiet; nothing is inserted through it
+        server = new WireProtocolServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testAllocationWithinBudget() throws Exception {
+        Properties budgets = new Properties();
+        InputStream in = TestAllocationBudget.class
+                .getResourceAsStream("/allocation-budget.properties");
+        assertNotNull("allocation-budget.properties not found", in);
+        try {
+            budgets.load(in);
+        } finally {
+            in.close();
+        }
+
+        boolean utf16 = isUtf16Strings();
+        List<String> exceeded = new ArrayList<String>();
+        for (String type : APPENDERS) {
+            for (String shape : SHAPES) {
+                if ("exception".equals(shape) && type.startsWith("patternLayout")) {
+                    continue;
+                }
+                String key = type + "." + shape;
+                long measured = measure(type, shape);
+                String budget = utf16 ? budgets.getProperty(key + ".utf16",
+                        budgets.getProperty(key)) : budgets.getProperty(key);
+                assertNotNull("No allocation budget for " + key, budget);
+                System.out.println("Allocated per event by " + key + (utf16 ? " (UTF-16)" : "")
+                        + ": " + measured + " bytes (budget " + budget + ")");
+                if (measured > Long.parseLong(budget.trim())) {
+                    exceeded.add(key + " allocated " + measured + " bytes per event, budget "
+                            + budget);
+                }
+            }
+        }
+        assertTrue(exceeded.toString(), exceeded.isEmpty());
+    }
+
+    /**
+     * @return true if the JVM counts the bytes allocated by each thread, which takes the
+     *         com.sun.management extension of ThreadMXBean
+     */
+    private static boolean isAllocationCounted(java.lang.management.ThreadMXBean bean) {
+        try {
+            return bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+        } catch (NoClassDefFoundError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if strings are stored as UTF-16 rather than compacted to Latin-1
+     */
+    private static boolean isUtf16Strings() {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory
+                    .getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return bean == null || !Boolean.parseBoolean(bean.getVMOption("CompactStrings")
+                    .getValue());
+        } catch (IllegalArgumentException e) {
+            // No such option before JDK 9
+            return true;
+        }
+    }
+
+    /**
+     * @return The bytes allocated per event appended by the logging thread
+     */
+    private long measure(String type, String shape) {
+        MongoDbAppender appender = newAppender(type);
+        try {
+            List<LoggingEvent> events = newEvents(shape, WARMUP_EVENTS);
+            for (LoggingEvent event : events) {
+                appender.doAppend(event);
+            }
+            events = newEvents(shape, MEASURED_EVENTS);
+
+            long thread = Thread.currentThread().getId();
+            long before = threadBean.getThreadAllocatedBytes(thread);
+            for (LoggingEvent event : events) {
+                appender.doAppend(event);
+            }
+            long allocated = threadBean.getThreadAllocatedBytes(thread) - before;
+            return allocated / MEASURED_EVENTS;
+        } finally {
+            appender.close();
+        }
+    }
+
+    private static MongoDbAppender newAppender(String type) {
+        MongoDbAppender appender;
+        if ("structured".equals(type)) {
+            appender = new MongoDbAppender();
+        } else if ("extended".equals(type)) {
+            appender = new ExtendedMongoDbAppender();
+        } else {
+            appender = "patternLayout".equals(type) ? new MongoDbPatternLayoutAppender()
+                    : new MongoDbPatternLayoutDateAppender();
+            appender.setLayout(new MongoDbPatternLayout(PATTERN));
+        }
+        appender.setName("allocation-" + type);
+        appender.setHostname("127.0.0.1");
+        appender.setPort(String.valueOf(server.getPort()));
+        appender.setDatabaseName("log4mongo");
+        appender.setCollectionName("allocation");
+        appender.activateOptions();
+        appender.setCollection(newFakeCollection());
+        return appender;
+    }
+
+    private static List<LoggingEvent> newEvents(String shape, int count) {
+        Logger logger = Logger.getLogger("org.example.orders.OrderService");
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("requestId", "6f1c2a9e-3b7d-4c55-9e0a-0d5b7f2c1e44");
+        ThrowableInformation throwable = null;
+        String message = "Order 4711 accepted for customer 1337";
+        if ("mdc".equals(shape)) {
+            for (int i = 0; i < 19; i++) {
+                mdc.put("context" + i, "value-" + i);
+            }
+        } else if ("exception".equals(shape)) {
+            throwable = new ThrowableInformation(new IllegalStateException("Failed",
+                    new IllegalArgumentException("Invalid", new RuntimeException("Root cause"))));
+        } else if ("longMessage".equals(shape)) {
+            StringBuilder sb = new StringBuilder(4096);
+            while (sb.length() < 4096) {
+                sb.append("Request \"GET /orders?customer=1337\" from C:\\clients\\web ");
+            }
+            message = sb.toString();
+        }
+
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new LoggingEvent(Logger.class.getName(), logger,
+                    System.currentTimeMillis(), Level.INFO, message, "main", throwable, null,
+                    null, mdc));
+        }
+        return events;
+    }
+
+    /**
+     * @return A collection that accepts inserts and discards them
+     */
+    @SuppressWarnings("rawtypes")
+    private static MongoCollection newFakeCollection() {
+        final MongoNamespace namespace = new MongoNamespace("log4mongo", "allocation");
+        return (MongoCollection) Proxy.newProxyInstance(TestAllocationBudget.class
+                .getClassLoader(), new Class<?>[] { MongoCollection.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.startsWith("with")) {
+                            return proxy;
+                        } else if (name.startsWith("insert")) {
+                            return null;
+                        } else if ("getWriteConcern".equals(name)) {
+                            return WriteConcern.ACKNOWLEDGED;
+                        } else if ("getNamespace".equals(name)) {
+                            return namespace;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+}
@@ -0,0 +1,189 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.bson.BSONObject;
+import org.junit.Test;
+import org.log4mongo.AppenderHealth.Pressure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit tests of the health API of MongoDbAppender, against the in-process WireProtocolServer.
+ * These tests don't require a MongoDB server.
+ */
+public class TestAppenderHealth {
+
+    private static final String LOGGER = TestAppenderHealth.class.getName();
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Test
+    public void testPressureLevels() {
+        assertEquals(Pressure.NORMAL, new AppenderHealth(0, 0.2, false, 0, 0, null, null)
+                .getPressure());
+        assertEquals(Pressure.ELEVATED, new AppenderHealth(0, 0.5, false, 0, 0, null, null)
+                .getPressure());
+        assertEquals(Pressure.ELEVATED, new AppenderHealth(0, 0, false, 0.01, 0, null, null)
+                .getPressure());
+        AppenderHealth raised = new AppenderHealth(0, 0, false, 0, 0, Level.DEBUG, Level.INFO);
+        assertEquals(Pressure.ELEVATED, raised.getPressure());
+        assertFalse(raised.isEnabledFor(Level.DEBUG));
+        assertTrue(raised.isEnabledFor(Level.ERROR));
+        assertEquals(Pressure.CRITICAL, new AppenderHealth(0, 0.95, false, 0, 0, null, null)
+                .getPressure());
+        assertEquals(Pressure.CRITICAL, new AppenderHealth(0, 0, false, 0.2, 0, null, null)
+                .getPressure());
+        assertEquals(Pressure.CRITICAL, new AppenderHealth(0, 0, true, 0, 0, null, null)
+                .getPressure());
+        // Events shed or suppressed by policy are not lost to the write path
+        AppenderHealth policy = new AppenderHealth(0, 0, false, 0, 0.5, null, null);
+        assertEquals(Pressure.NORMAL, policy.getPressure());
+        assertEquals(0.5, policy.getPolicyDropRate(), 0);
+    }
+
+    @Test
+    public void testListenerSeesFailingInserts() throws Exception {
+        WireProtocolServer server = new WireProtocolServer();
+        MongoDbAppender appender = new MongoDbAppender();
+        final List<AppenderHealth> changes = Collections
+                .synchronizedList(new ArrayList<AppenderHealth>());
+        try {
+            appender.setName("health");
+            appender.setHostname("127.0.0.1");
+            appender.setPort(String.valueOf(server.getPort()));
+            appender.setDatabaseName("log4mongo");
+            appender.setCollectionName("logs");
+            appender.activateOptions();
+            appender.addHealthListener(new AppenderHealthListener() {
+                public void healthChanged(AppenderHealth previous, AppenderHealth current) {
+                    changes.add(current);
+                }
+            });
+
+            for (int i = 0; i < 150; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.INFO, "Health check"));
+                Thread.sleep(10);
+            }
+            AppenderHealth health = appender.getHealth();
+            assertEquals(Pressure.NORMAL, health.getPressure());
+            assertFalse(health.isFailing());
+            assertTrue(changes.isEmpty());
+
+            server.failInserts(3000);
+            AppenderHealth failing = logUntil(appender, changes, true);
+            assertTrue(failing.isFailing());
+            assertEquals(Pressure.CRITICAL, failing.getPressure());
+            // The window also covers the events stored before the failures
+            assertTrue(appender.getHealth().getDropRate() >= AppenderHealth.CRITICAL_DROP_RATE);
+
+            AppenderHealth recovered = logUntil(appender, changes, false);
+            assertFalse(recovered.isFailing());
+            // The failed inserts are still in the drop rate window
+            assertTrue(recovered.getDropRate() > 0);
+        } finally {
+            appender.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testShedEventsCountedOnce() throws Exception {
+        WireProtocolServer server = new WireProtocolServer();
+        final CountDownLatch release = new CountDownLatch(1);
+        MongoDbAppender appender = new MongoDbAppender() {
+            @Override
+            protected void append(List<BSONObject> batch) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.append(batch);
+            }
+        };
+        try {
+            appender.setName("shedding");
+            appender.setHostname("127.0.0.1");
+            appender.setPort(String.valueOf(server.getPort()));
+            appender.setDatabaseName("log4mongo");
+            appender.setCollectionName("logs");
+            appender.setBufferSize(10);
+            appender.setBatchSize(1);
+            appender.setBlocking(false);
+            appender.setThresholdEscalation(true);
+            appender.setEscalationQueueFill(0.5);
+            appender.activateOptions();
+
+            // The writer thread holds one event, and the queue keeps room for the record
+            for (int i = 0; i < 8; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.DEBUG, "Queued"));
+            }
+            Thread.sleep(ThresholdEscalator.CHECK_INTERVAL_MILLIS + 100);
+            HealthMonitor monitor = new HealthMonitor(appender);
+            monitor.tick();
+            AppenderMetrics.Counts before = appender.getMetrics().getCounts();
+
+            for (int i = 0; i < 30; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.DEBUG, "Shed"));
+            }
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.WARN, "Kept"));
+            }
+            monitor.tick();
+
+            AppenderMetrics.Counts logged = appender.getMetrics().getCounts().since(before);
+            assertEquals(Level.INFO, appender.getEffectiveThreshold());
+            assertEquals(30, logged.shed);
+            assertEquals(10, logged.accepted);
+            AppenderHealth health = monitor.getHealth();
+            assertEquals(30 / 40.0, health.getPolicyDropRate(), 1e-9);
+            assertEquals((logged.dropped + logged.failed) / 40.0, health.getDropRate(), 1e-9);
+        } finally {
+            release.countDown();
+            appender.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Logs until the last change seen by the listener has the given failing state, or the timeout
+     * has passed, and returns that change.
+     */
+    private static AppenderHealth logUntil(MongoDbAppender appender,
+            List<AppenderHealth> changes, boolean failing) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!changes.isEmpty() && changes.get(changes.size() - 1).isFailing() == failing) {
+                break;
+            }
+            appender.doAppend(newEvent(LOGGER, Level.INFO, "Health check"));
+            Thread.sleep(10);
+        }
+        assertFalse("No change seen", changes.isEmpty());
+        return changes.get(changes.size() - 1);
+    }
+}
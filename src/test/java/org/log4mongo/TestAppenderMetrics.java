@@ -0,0 +1,146 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.bson.BSONObject;
+import org.junit.Test;
+import org.log4mongo.TestBsonAppender.CollectingAppender;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the write-path metrics of BsonAppender. These tests don't require a MongoDB
+ * server.
+ */
+public class TestAppenderMetrics {
+
+    private static final String LOGGER = TestAppenderMetrics.class.getName();
+
+    @Test
+    public void testHistogramPercentiles() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50), 0.125);
+        assertWithin(990, histogram.getPercentile(99), 0.125);
+        assertEquals(1000, histogram.getPercentile(100));
+
+        for (long value : new long[] { 0, 7, 8, 9, 1023, 1024, 123456789L, Long.MAX_VALUE }) {
+            int bucket = LogLinearHistogram.bucketOf(value);
+            assertTrue(LogLinearHistogram.upperBoundOf(bucket) >= Math.min(value, 1L << 48));
+        }
+    }
+
+    @Test
+    public void testSynchronousMetrics() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.activateOptions();
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.INFO, "Entry " + i));
+        }
+        AppenderMetrics metrics = appender.getMetrics();
+        assertEquals(10, metrics.getEventsAccepted());
+        assertEquals(0, metrics.getEventsDropped());
+        assertEquals(10, metrics.getBsonifyNanos().getCount());
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void testDroppedEventsAndQueueDepth() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CollectingAppender appender = new CollectingAppender() {
+            @Override
+            protected void append(List<BSONObject> batch) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.append(batch);
+            }
+        };
+        appender.setName("metrics");
+        appender.setBufferSize(5);
+        appender.setBatchSize(1);
+        appender.setBlocking(false);
+        appender.activateOptions();
+
+        appender.doAppend(newEvent(LOGGER, Level.INFO, "Held by the writer thread"));
+        while (appender.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        for (int i = 1; i < 20; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.INFO, "Entry " + i));
+        }
+        AppenderMetrics metrics = appender.getMetrics();
+        assertEquals(20, metrics.getEventsAccepted());
+        assertEquals(14, metrics.getEventsDropped());
+        assertEquals(5, metrics.getQueueDepth());
+        assertTrue(metrics.getBytesQueued() > 0);
+
+        release.countDown();
+        appender.close();
+        assertEquals(20, metrics.getEventsDropped() + appender.documents.size());
+        assertEquals(0, metrics.getBytesQueued());
+    }
+
+    @Test
+    public void testMBeanRegistration() throws Exception {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setName("jmx");
+        appender.activateOptions();
+        appender.doAppend(newEvent(LOGGER, Level.INFO, "Entry"));
+
+        ObjectName name = appender.getMetrics().register("TestAppender");
+        ObjectName duplicate = new CollectingAppender() {
+            {
+                setName("jmx");
+            }
+        }.getMetrics().register("TestAppender");
+        try {
+            assertNotNull(name);
+            assertFalse(name.equals(duplicate));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "EventsAccepted"));
+            assertEquals(0, server.getAttribute(name, "QueueDepth"));
+        } finally {
+            AppenderMetrics.unregister(name);
+            AppenderMetrics.unregister(duplicate);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    private static void assertWithin(long expected, long actual, double relativeError) {
+        assertTrue(actual + " not within " + relativeError + " of " + expected,
+                Math.abs(actual - expected) <= expected * relativeError);
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for BsonAppender that don't require a MongoDB server.
+ */
+public class TestBsonAppender {
+
+    private static final String LOGGER = TestBsonAppender.class.getName();
+
+    @Test
+    public void testSynchronousAppend() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.activateOptions();
+
+        appender.doAppend(newEvent(LOGGER, Level.INFO, "Synchronous entry"));
+
+        assertEquals(1, appender.documents.size());
+        assertEquals(Thread.currentThread().getName(), appender.threads.get(0));
+        appender.close();
+    }
+
+    @Test
+    public void testAsynchronousAppend() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setName("async");
+        appender.setBufferSize(100);
+        appender.setBatchSize(10);
+        appender.activateOptions();
+
+        MDC.put("requestId", "r-1");
+        try {
+            for (int i = 0; i < 25; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.INFO,
+                        new StringBuilder("Entry ").append(i)));
+            }
+        } finally {
+            MDC.remove("requestId");
+        }
+        appender.close();
+
+        assertEquals(25, appender.documents.size());
+        for (String thread : appender.threads) {
+            assertTrue(thread.startsWith("log4mongo-writer-async"));
+        }
+        BSONObject bson = appender.documents.get(24);
+        assertEquals("Entry 24", bson.get("message"));
+        assertEquals(Thread.currentThread().getName(), bson.get("thread"));
+        assertEquals("r-1", ((BSONObject) bson.get("properties")).get("requestId"));
+        // Location info is captured on the logging thread
+        assertEquals("testAsynchronousAppend", bson.get("method"));
+    }
+
+    @Test
+    public void testEnqueueAfterStopIsRejected() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setName("stopped");
+        AsyncBsonWriter writer = new AsyncBsonWriter(appender, 10, true, 1, 10);
+        writer.start();
+        writer.stop(1000);
+
+        assertFalse(writer.isRunning());
+        assertFalse(writer.enqueue(newEvent(LOGGER, Level.INFO, "Late entry")));
+        assertEquals(0, writer.size());
+        assertEquals(0, appender.getMetrics().getQueueDepth());
+    }
+
+    @Test
+    public void testInvalidWriterOptionsFallBackToOne() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setName("invalid");
+        appender.setBufferSize(10);
+        appender.setWriterThreads(0);
+        appender.setBatchSize(0);
+        appender.activateOptions();
+
+        // Blocking with no writer thread would hang here
+        for (int i = 0; i < 50; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.INFO, "Entry " + i));
+        }
+        appender.close();
+        assertEquals(50, appender.documents.size());
+    }
+
+    @Test
+    public void testWriterThreadsShareStockPatternLayout() throws Exception {
+        WireProtocolServer server = new WireProtocolServer();
+        server.setRetainDocuments(true);
+        final MongoDbPatternLayoutAppender appender = new MongoDbPatternLayoutAppender();
+        try {
+            appender.setName("stockLayout");
+            appender.setHostname("127.0.0.1");
+            appender.setPort(String.valueOf(server.getPort()));
+            appender.setDatabaseName("log4mongo");
+            appender.setCollectionName("logs");
+            appender.setLayout(new PatternLayout("{\"message\":\"%m\",\"level\":\"%p\"}"));
+            appender.setBufferSize(1000);
+            appender.setWriterThreads(4);
+            appender.setBatchSize(1);
+            appender.activateOptions();
+
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final String prefix = "Thread " + t + " entry ";
+                threads[t] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < 500; i++) {
+                            appender.doAppend(newEvent(LOGGER, Level.INFO, prefix + i));
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            appender.close();
+            server.close();
+        }
+
+        Set<Object> messages = new HashSet<Object>();
+        for (BSONObject bson : server.getDocuments()) {
+            assertEquals("INFO", bson.get("level"));
+            messages.add(bson.get("message"));
+        }
+        assertEquals(2000, messages.size());
+        assertEquals(0, appender.getMetrics().getEventsFailed());
+    }
+
+    @Test
+    public void testSnapshotSkipsLocationWhenNotProjected() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setFieldProjections("*=level,message");
+
+        LoggingEvent event = newEvent(LOGGER, Level.INFO, "Lean entry");
+        LoggingEvent snapshot = appender.snapshot(event);
+        assertFalse(event.locationInformationExists());
+        assertFalse(snapshot.locationInformationExists());
+        assertEquals("Lean entry", snapshot.getMessage());
+        assertEquals(event.getTimeStamp(), snapshot.getTimeStamp());
+        assertEquals(event.getLoggerName(), snapshot.getLoggerName());
+
+        appender.setFieldProjections(null);
+        snapshot = appender.snapshot(event);
+        assertTrue(snapshot.locationInformationExists());
+        assertNotNull(snapshot.getLocationInformation().getLineNumber());
+        assertNull(snapshot.getThrowableInformation());
+    }
+
+    /**
+     * BsonAppender that keeps stored documents in memory.
+     */
+    static class CollectingAppender extends BsonAppender {
+
+        final List<BSONObject> documents = Collections
+                .synchronizedList(new ArrayList<BSONObject>());
+
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void append(BSONObject bson) {
+            documents.add(bson);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        public void close() {
+            stopWriter();
+        }
+    }
+}
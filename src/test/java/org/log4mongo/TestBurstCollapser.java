@@ -0,0 +1,139 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.junit.Test;
+import org.log4mongo.TestBsonAppender.CollectingAppender;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the collapsing of repeated events in BsonAppender.
+ */
+public class TestBurstCollapser {
+
+    private static final String LOGGER = TestBurstCollapser.class.getName();
+
+    @Test
+    public void testKeyIgnoresDigits() {
+        assertEquals(BurstCollapser.hash("a", Level.INFO, "Retry 1 of 10", null),
+                BurstCollapser.hash("a", Level.INFO, "Retry 12 of 10", null));
+        assertFalse(BurstCollapser.hash("a", Level.INFO, "Retry 1", null) == BurstCollapser
+                .hash("a", Level.WARN, "Retry 1", null));
+        assertFalse(BurstCollapser.hash("a", Level.INFO, "Retry 1", null) == BurstCollapser
+                .hash("b", Level.INFO, "Retry 1", null));
+        assertFalse(BurstCollapser.hash("a", Level.INFO, "Retry", null) == BurstCollapser.hash(
+                "a", Level.INFO, "Retry", "java.io.IOException at a.b"));
+        assertFalse(BurstCollapser.hash("ab", Level.INFO, "c", null) == BurstCollapser.hash("a",
+                Level.INFO, "bc", null));
+    }
+
+    @Test
+    public void testWindow() {
+        BurstCollapser collapser = new BurstCollapser(1000);
+        long start = System.currentTimeMillis();
+        assertFalse(collapser.collapse(newEvent(LOGGER, start, Level.INFO, "Retry 1", null)));
+        try {
+            for (int i = 2; i <= 100; i++) {
+                MDC.put("tenant", "t" + (i % 4));
+                assertTrue(collapser.collapse(newEvent(LOGGER, start + i, Level.INFO, "Retry " + i,
+                        null)));
+            }
+        } finally {
+            MDC.remove("tenant");
+        }
+        // Other events are not affected
+        assertFalse(collapser.collapse(newEvent(LOGGER, start + 100, Level.INFO, "Other", null)));
+        assertFalse(collapser.collapse(newEvent(LOGGER, start + 100, Level.INFO, "Failed",
+                new IllegalStateException())));
+        assertTrue(collapser.drainSummaries(start + 999, false).isEmpty());
+
+        // The window has passed: the next occurrence starts a new burst
+        assertFalse(collapser.collapse(newEvent(LOGGER, start + 1000, Level.INFO, "Retry 101",
+                null)));
+        assertTrue(collapser.isSummaryDue(start + 1000));
+        List<LoggingEvent> summaries = collapser.drainSummaries(start + 1000, false);
+        assertEquals(1, summaries.size());
+        LoggingEvent summary = summaries.get(0);
+        assertEquals("Retry 1", summary.getRenderedMessage());
+        assertEquals(Level.INFO, summary.getLevel());
+        assertEquals(LOGGER, summary.getLoggerName());
+        BSONObject repeated = ((BurstCollapser.Summary) summary).getRepeated();
+        assertEquals(99L, repeated.get("count"));
+        assertEquals(new Date(start + 2), repeated.get("first"));
+        assertEquals(new Date(start + 100), repeated.get("last"));
+        assertNull(repeated.get("exception"));
+        // The MDC values of the repeats at powers of two are sampled
+        List<?> tenants = (List<?>) ((BSONObject) repeated.get("mdc")).get("tenant");
+        assertEquals(Arrays.asList("t2", "t3", "t1"), tenants);
+
+        // Closing ends the remaining bursts, which have no repeats
+        assertTrue(collapser.drainSummaries(start + 1001, true).isEmpty());
+    }
+
+    @Test
+    public void testExceptionFingerprint() {
+        BurstCollapser collapser = new BurstCollapser(60000);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i > 0, collapser.collapse(newEvent(LOGGER, start, Level.INFO, "Failed",
+                    new IllegalStateException("attempt " + i))));
+        }
+        assertFalse(collapser.collapse(newEvent(LOGGER, start, Level.INFO, "Failed",
+                new IllegalArgumentException())));
+        List<LoggingEvent> summaries = collapser.drainSummaries(start, true);
+        assertEquals(1, summaries.size());
+        BSONObject repeated = ((BurstCollapser.Summary) summaries.get(0)).getRepeated();
+        assertEquals(9L, repeated.get("count"));
+        assertTrue(((String) repeated.get("exception"))
+                .startsWith("java.lang.IllegalStateException at "));
+    }
+
+    @Test
+    public void testAppenderStoresFirstOccurrenceAndSummary() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setCollapseWindow(60000);
+        appender.setBufferSize(100);
+        appender.activateOptions();
+        for (int i = 0; i < 1000; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.WARN, "Health check " + i + " failed"));
+        }
+        appender.close();
+
+        assertEquals(2, appender.documents.size());
+        assertEquals("Health check 0 failed", appender.documents.get(0).get("message"));
+        assertNull(appender.documents.get(0).get(BurstCollapser.REPEATED_FIELD));
+        BSONObject summary = appender.documents.get(1);
+        assertEquals("WARN", summary.get("level"));
+        assertEquals("Health check 0 failed", summary.get("message"));
+        assertEquals(999L, ((BSONObject) summary.get(BurstCollapser.REPEATED_FIELD))
+                .get("count"));
+        assertEquals(999, appender.getMetrics().getEventsCollapsed());
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JUnit unit tests for the driver telemetry of MongoDbAppender. These tests don't require a
+ * MongoDB server.
+ */
+public class TestDriverTelemetry {
+
+    private final ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+
+    @Test
+    public void testInsertCommands() throws Exception {
+        DriverTelemetry telemetry = new DriverTelemetry();
+        ConnectionDescription connection = new ConnectionDescription(serverId);
+
+        telemetry.insertStarting();
+        Thread.sleep(2);
+        telemetry.commandStarted(started(connection, "insert"));
+        assertEquals(1, telemetry.getCommandsInFlight());
+        telemetry.commandSucceeded(new CommandSucceededEvent(1, connection, "insert",
+                new BsonDocument(), TimeUnit.MILLISECONDS.toNanos(5)));
+
+        assertEquals(1, telemetry.getInsertCommandsSucceeded());
+        assertEquals(0, telemetry.getCommandsInFlight());
+        assertEquals(1, telemetry.getCommandsInFlightMax());
+        assertTrue(telemetry.getInsertCommandLatencyMaxMicros() >= 5000);
+        assertTrue(telemetry.getPreSendLatencyMaxMicros() >= 2000);
+        assertEquals(1, telemetry.getPreSendNanos().getCount());
+    }
+
+    @Test
+    public void testConnectionsAndFailures() {
+        DriverTelemetry telemetry = new DriverTelemetry();
+        ConnectionDescription first = new ConnectionDescription(serverId);
+        ConnectionDescription second = new ConnectionDescription(serverId);
+
+        telemetry.commandStarted(started(first, "isMaster"));
+        telemetry.commandStarted(started(second, "insert"));
+        telemetry.commandSucceeded(new CommandSucceededEvent(1, first, "isMaster",
+                new BsonDocument(), 1000));
+        telemetry.commandFailed(new CommandFailedEvent(2, second, "insert", 1000,
+                new RuntimeException("Failed")));
+        telemetry.commandStarted(started(first, "insert"));
+        telemetry.commandSucceeded(new CommandSucceededEvent(3, first, "insert",
+                new BsonDocument(), 1000));
+
+        assertEquals(2, telemetry.getConnectionsOpened());
+        assertEquals(2, telemetry.getCommandsInFlightMax());
+        assertEquals(1, telemetry.getCommandsFailed());
+        assertEquals(1, telemetry.getInsertCommandsSucceeded());
+        // No insert was started by an appender on this thread
+        assertEquals(0, telemetry.getPreSendNanos().getCount());
+    }
+
+    private CommandStartedEvent started(ConnectionDescription connection, String commandName) {
+        return new CommandStartedEvent(1, connection, "log4mongo", commandName,
+                new BsonDocument());
+    }
+}
@@ -0,0 +1,210 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.junit.Test;
+import org.log4mongo.TestBsonAppender.CollectingAppender;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the token-bucket rate limits of BsonAppender.
+ */
+public class TestEventRateLimiter {
+
+    private static final String LOGGER = TestEventRateLimiter.class.getName();
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testParse() {
+        assertNull(EventRateLimiter.parse(null, 1000));
+        assertNull(EventRateLimiter.parse(" ", 1000));
+        assertNull(EventRateLimiter.parse("com.acme=fast&DEBUG=0&WARN=10/0&INFO", 1000));
+
+        EventRateLimiter.Limit limit = EventRateLimiter.Limit.parse("0.5");
+        assertEquals(0.5, limit.eventsPerSecond, 0);
+        assertEquals(1, limit.burst);
+        assertEquals("100/250", EventRateLimiter.Limit.parse(" 100 / 250 ").toString());
+    }
+
+    @Test
+    public void testBurstThenRate() {
+        EventRateLimiter limiter = EventRateLimiter.parse("org.example=10/5", 60000);
+        long now = System.nanoTime();
+        int acquired = 0;
+        for (int i = 0; i < 20; i++) {
+            if (limiter.tryAcquire(newEvent("org.example.Service", Level.INFO, "Entry"), now)) {
+                acquired++;
+            }
+        }
+        assertEquals(5, acquired);
+
+        // A token every 100 ms
+        assertFalse(limiter.tryAcquire(newEvent("org.example.Service", Level.INFO, "Entry"),
+                now + SECOND / 20));
+        assertTrue(limiter.tryAcquire(newEvent("org.example", Level.INFO, "Entry"),
+                now + SECOND / 10));
+        assertFalse(limiter.tryAcquire(newEvent("org.example", Level.INFO, "Entry"),
+                now + SECOND / 10));
+        // Other loggers are not limited, and neither is a logger that only shares a name prefix
+        assertTrue(limiter.tryAcquire(newEvent("org.other", Level.INFO, "Entry"), now));
+        assertTrue(limiter.tryAcquire(newEvent("org.examples", Level.INFO, "Entry"), now));
+
+        // The bucket refills to its burst size, not beyond
+        now += 10 * SECOND;
+        acquired = 0;
+        for (int i = 0; i < 20; i++) {
+            if (limiter.tryAcquire(newEvent("org.example.Service", Level.INFO, "Entry"), now)) {
+                acquired++;
+            }
+        }
+        assertEquals(5, acquired);
+    }
+
+    @Test
+    public void testLevelLoggerAndMdcBuckets() {
+        EventRateLimiter limiter = EventRateLimiter.parse(
+                "DEBUG=2&*=3&org.example.hot=1&mdc:tenant=4", 60000);
+        long now = System.nanoTime();
+
+        assertEquals(2, acquire(limiter, "org.example.debug", Level.DEBUG, 10, now));
+        // Each logger has a bucket of its own
+        assertEquals(3, acquire(limiter, "org.example.a", Level.INFO, 10, now));
+        assertEquals(3, acquire(limiter, "org.example.b", Level.INFO, 10, now));
+        // A prefix bucket is shared by its descendants
+        assertEquals(1, acquire(limiter, "org.example.hot.a", Level.INFO, 10, now));
+        assertEquals(0, acquire(limiter, "org.example.hot.b", Level.INFO, 10, now));
+
+        MDC.put("tenant", "acme");
+        try {
+            assertEquals(3, acquire(limiter, "org.example.c", Level.INFO, 10, now));
+            assertEquals(1, acquire(limiter, "org.example.d", Level.INFO, 10, now));
+            MDC.put("tenant", "globex");
+            assertEquals(3, acquire(limiter, "org.example.e", Level.INFO, 10, now));
+        } finally {
+            MDC.remove("tenant");
+        }
+    }
+
+    @Test
+    public void testSummaries() {
+        EventRateLimiter limiter = EventRateLimiter.parse("org.example=1&mdc:tenant=1", 60000);
+        long now = System.nanoTime();
+        assertEquals(1, acquire(limiter, "org.example.Service", Level.INFO, 5, now));
+        MDC.put("tenant", "acme");
+        try {
+            assertEquals(1, acquire(limiter, "org.other", Level.WARN, 3, now));
+        } finally {
+            MDC.remove("tenant");
+        }
+
+        long millis = System.currentTimeMillis();
+        assertFalse(limiter.isSummaryDue(millis));
+        assertTrue(limiter.isSummaryDue(millis + 60000));
+        assertFalse(limiter.isSummaryDue(millis + 60000));
+
+        List<LoggingEvent> summaries = limiter.drainSummaries(millis);
+        assertEquals(2, summaries.size());
+        LoggingEvent logger = summaries.get(0);
+        assertEquals("org.example.Service", logger.getLoggerName());
+        assertEquals(Level.INFO, logger.getLevel());
+        assertEquals("org.example=1/1", logger.getMDC(EventRateLimiter.RULE_PROPERTY));
+        assertEquals("4", logger.getMDC(EventRateLimiter.SUPPRESSED_PROPERTY));
+        assertTrue(logger.getRenderedMessage(), logger.getRenderedMessage().startsWith(
+                "4 events suppressed by rate limit org.example=1/1"));
+        LoggingEvent tenant = summaries.get(1);
+        assertEquals(Level.WARN, tenant.getLevel());
+        assertEquals("2", tenant.getMDC(EventRateLimiter.SUPPRESSED_PROPERTY));
+        assertEquals("acme", tenant.getMDC("tenant"));
+
+        assertTrue(limiter.drainSummaries(millis).isEmpty());
+    }
+
+    @Test
+    public void testIdleMdcBucketsAreEvicted() {
+        EventRateLimiter limiter = EventRateLimiter.parse("mdc:tenant=1", 60000);
+        long now = System.nanoTime();
+        for (int i = 0; i < EventRateLimiter.MAX_MDC_VALUES; i++) {
+            assertTrue(limiter.tryAcquire(newTenantEvent("tenant-" + i), now));
+        }
+        // Values beyond the maximum share the overflow bucket
+        assertTrue(limiter.tryAcquire(newTenantEvent("late-1"), now));
+        assertFalse(limiter.tryAcquire(newTenantEvent("late-2"), now));
+        assertTrue(limiter.tryAcquire(newTenantEvent("tenant-0"), now + 60 * SECOND + SECOND / 2));
+
+        long millis = System.currentTimeMillis();
+        assertEquals(1, limiter.drainSummaries(millis, now + 61 * SECOND).size());
+        // The idle buckets were evicted, so a new value gets a limit of its own
+        assertTrue(limiter.tryAcquire(newTenantEvent("late-2"), now + 61 * SECOND));
+        assertFalse(limiter.tryAcquire(newTenantEvent("late-2"), now + 61 * SECOND));
+        assertTrue(limiter.tryAcquire(newTenantEvent("late-3"), now + 61 * SECOND));
+        // The bucket of a value that took a token during the interval is kept
+        assertFalse(limiter.tryAcquire(newTenantEvent("tenant-0"), now + 61 * SECOND));
+    }
+
+    @Test
+    public void testAppenderSuppressesAndSummarizes() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setRateLimits(TestEventRateLimiter.class.getName() + "=1/10");
+        appender.setRateLimitSummaryInterval(60000);
+        appender.activateOptions();
+
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.INFO, "Entry " + i));
+        }
+        assertEquals(10, appender.documents.size());
+        assertEquals(100, appender.getMetrics().getEventsAccepted());
+        assertEquals(90, appender.getMetrics().getEventsSuppressed());
+
+        appender.close();
+        assertEquals(11, appender.documents.size());
+        BSONObject summary = appender.documents.get(10);
+        assertEquals("INFO", summary.get("level"));
+        BSONObject properties = (BSONObject) summary.get("properties");
+        assertEquals("90", properties.get(EventRateLimiter.SUPPRESSED_PROPERTY));
+        assertTrue(((String) summary.get("message")).startsWith("90 events suppressed"));
+    }
+
+    private static LoggingEvent newTenantEvent(String tenant) {
+        return newEvent(LOGGER, System.currentTimeMillis(), Level.INFO, "Entry", null,
+                Collections.singletonMap("tenant", tenant));
+    }
+
+    private static int acquire(EventRateLimiter limiter, String loggerName, Level level,
+            int events, long nanos) {
+        int acquired = 0;
+        for (int i = 0; i < events; i++) {
+            if (limiter.tryAcquire(newEvent(loggerName, level, "Entry"), nanos)) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+}
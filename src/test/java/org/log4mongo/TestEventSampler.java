@@ -0,0 +1,131 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.MDC;
+import org.bson.BSONObject;
+import org.junit.Test;
+import org.log4mongo.TestBsonAppender.CollectingAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the deterministic head sampling of BsonAppender.
+ */
+public class TestEventSampler {
+
+    private static final String LOGGER = TestEventSampler.class.getName();
+
+    @Test
+    public void testParse() {
+        assertNull(EventSampler.parse(null, "traceId"));
+        assertNull(EventSampler.parse("DEBUG=1&*=1", "traceId"));
+        assertNull(EventSampler.parse("DEBUG=2&INFO=half&com.acme:LOUD=0.1&:DEBUG=0.1", null));
+    }
+
+    @Test
+    public void testRatePrecedence() {
+        EventSampler sampler = EventSampler.parse("*=0.5&DEBUG=0.1&com.acme=0.2"
+                + "&com.acme.hot:DEBUG=0.01&com.acme.hot.audit=1", "traceId");
+
+        assertEquals(0.5, sampler.getRate(newEvent("org.other", Level.INFO, "Entry")), 0);
+        assertEquals(0.1, sampler.getRate(newEvent("org.other", Level.DEBUG, "Entry")), 0);
+        assertEquals(0.2, sampler.getRate(newEvent("com.acme.Service", Level.DEBUG, "Entry")), 0);
+        assertEquals(0.01, sampler.getRate(newEvent("com.acme.hot.Loop", Level.DEBUG, "Entry")), 0);
+        assertEquals(0.2, sampler.getRate(newEvent("com.acme.hot.Loop", Level.INFO, "Entry")), 0);
+        assertEquals(0.2, sampler.getRate(newEvent("com.acme.hot.Loop", Level.TRACE, "Entry")), 0);
+        assertEquals(1, sampler.getRate(newEvent("com.acme.hot.audit.Log", Level.DEBUG, "Entry")),
+                0);
+        // Warnings and errors are never sampled
+        assertEquals(1, sampler.getRate(newEvent("com.acme.hot.Loop", Level.WARN, "Entry")), 0);
+        assertEquals(1, sampler.getRate(newEvent("org.other", Level.ERROR, "Entry")), 0);
+    }
+
+    @Test
+    public void testDecisionFollowsTrace() {
+        EventSampler sampler = EventSampler.parse("INFO=0.25", "traceId");
+        int kept = 0;
+        try {
+            for (int i = 0; i < 4000; i++) {
+                MDC.put("traceId", "5f3c2a" + Integer.toHexString(i * 7919));
+                boolean first = sampler.sample(newEvent("org.example.Front", Level.INFO, "Entry"));
+                // Every line of a trace gets the same decision
+                assertEquals(first, sampler.sample(newEvent("org.example.Back", Level.INFO,
+                        "Entry")));
+                assertEquals(first, sampler.sample(newEvent("org.example.Front", Level.INFO,
+                        "Entry")));
+                assertTrue(sampler.sample(newEvent("org.example.Front", Level.WARN, "Entry")));
+                if (first) {
+                    kept++;
+                    // A trace kept at some rate is kept at any higher rate
+                    assertTrue(EventSampler.parse("INFO=0.5", "traceId").sample(
+                            newEvent("org.example.Front", Level.INFO, "Entry")));
+                }
+            }
+        } finally {
+            MDC.remove("traceId");
+        }
+        assertEquals(1000, kept, 100);
+    }
+
+    @Test
+    public void testPositionIsUniform() {
+        int[] deciles = new int[10];
+        for (int i = 0; i < 10000; i++) {
+            double position = EventSampler.position("trace-" + i);
+            assertTrue(position >= 0 && position < 1);
+            deciles[(int) (position * 10)]++;
+        }
+        for (int count : deciles) {
+            assertEquals(1000, count, 150);
+        }
+    }
+
+    @Test
+    public void testAppenderRecordsSampleRate() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.setSampleRates("DEBUG=0");
+        appender.setSampleMdcKey("traceId");
+        appender.activateOptions();
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.DEBUG, "Dropped"));
+        }
+        appender.doAppend(newEvent(LOGGER, Level.INFO, "Kept"));
+        appender.close();
+        assertEquals(1, appender.documents.size());
+        assertFalse(appender.documents.get(0).containsField(EventSampler.SAMPLE_RATE_FIELD));
+        assertEquals(10, appender.getMetrics().getEventsSampledOut());
+
+        appender = new CollectingAppender();
+        appender.setSampleRates(TestEventSampler.class.getName() + "=0.5");
+        appender.setBufferSize(100);
+        appender.activateOptions();
+        for (int i = 0; i < 200; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.INFO, "Sampled"));
+        }
+        appender.close();
+        assertEquals(100, appender.documents.size(), 40);
+        for (BSONObject bson : appender.documents) {
+            assertEquals(0.5, bson.get(EventSampler.SAMPLE_RATE_FIELD));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the exception frequency tracking of LoggingEventBsonifierImpl.
+ */
+public class TestExceptionFrequencyTracker {
+
+    private static final String LOGGER = TestExceptionFrequencyTracker.class.getName();
+
+    private static final long MINUTE = 60000;
+
+    @Test
+    public void testFingerprintIgnoresMessage() {
+        String first = ExceptionFrequencyTracker.fingerprint(new ThrowableInformation(fail("one")));
+        String second = ExceptionFrequencyTracker.fingerprint(new ThrowableInformation(fail("two")));
+        assertEquals(first, second);
+        assertTrue(first, first.startsWith("java.lang.IllegalStateException at "
+                + TestExceptionFrequencyTracker.class.getName() + ".fail"));
+        assertTrue(first, first.endsWith(" caused by java.io.IOException"));
+
+        String other = ExceptionFrequencyTracker.fingerprint(new ThrowableInformation(
+                new IllegalArgumentException("one")));
+        assertFalse(first.equals(other));
+    }
+
+    @Test
+    public void testFingerprintFromStringRepresentation() {
+        String[] lines = { "java.lang.IllegalStateException: Remote failure",
+                "\tat org.example.Service.call(Service.java:42)",
+                "\tat org.example.Client.run(Client.java:7)" };
+        assertEquals("java.lang.IllegalStateException at org.example.Service.call"
+                + " < org.example.Client.run",
+                ExceptionFrequencyTracker.fingerprint(new ThrowableInformation(lines)));
+        assertNull(ExceptionFrequencyTracker.fingerprint(new ThrowableInformation(new String[0])));
+    }
+
+    @Test
+    public void testBsonifierTracksExceptions() throws Exception {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        // Exception tracking is opt-in
+        assertNull(bsonifier.getExceptionTracker());
+        bsonifier.setExceptionTrackingCapacity(32);
+        for (int i = 0; i < 3; i++) {
+            bsonifier.bsonify(newEvent(LOGGER, Level.ERROR, "Failed " + i, fail("attempt " + i)));
+        }
+        bsonifier.bsonify(newEvent(LOGGER, Level.INFO, "Fine"));
+
+        ExceptionFrequencyTracker tracker = bsonifier.getExceptionTracker();
+        assertEquals(3, tracker.getExceptionsLogged());
+        String[] top = tracker.getTopExceptionsLastMinute();
+        assertEquals(1, top.length);
+        assertTrue(top[0], top[0].endsWith("=3"));
+
+        ObjectName name = AppenderMetrics.register(tracker,
+                "org.log4mongo:type=Test,component=Exceptions", "exceptions");
+        try {
+            assertNotNull(name);
+            assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                    "ExceptionsLogged"));
+        } finally {
+            AppenderMetrics.unregister(name);
+        }
+
+        bsonifier.setExceptionTrackingCapacity(0);
+        assertNull(bsonifier.getExceptionTracker());
+    }
+
+    @Test
+    public void testSummaryOfLastCompleteMinute() {
+        ExceptionFrequencyTracker tracker = new ExceptionFrequencyTracker(8);
+        long start = 100 * MINUTE;
+        for (int minute = 0; minute < 5; minute++) {
+            for (int i = 0; i < 6; i++) {
+                tracker.record(newEvent(LOGGER, start + minute * MINUTE, Level.ERROR, "Failure",
+                        fail("steady")));
+            }
+        }
+        tracker.record(newEvent(LOGGER, start + 4 * MINUTE, Level.ERROR, "Failure",
+                new IllegalArgumentException("once")));
+        // Exceptions of the current minute are not part of the summary
+        tracker.record(newEvent(LOGGER, start + 5 * MINUTE, Level.ERROR, "Failure",
+                new UnsupportedOperationException()));
+
+        DBObject summary = tracker.createSummary(start + 5 * MINUTE + 30000);
+        assertEquals(new Date(start + 4 * MINUTE), summary.get("timestamp"));
+        BasicDBList exceptions = (BasicDBList) summary.get("exceptions");
+        assertEquals(2, exceptions.size());
+        DBObject steady = (DBObject) exceptions.get(0);
+        assertEquals(6L, steady.get("count"));
+        assertEquals(6.0, (Double) steady.get("ratePerMinute5"), 0.001);
+        assertEquals(2.0, (Double) steady.get("ratePerMinute15"), 0.001);
+
+        assertNull(tracker.createSummary(start + 20 * MINUTE));
+    }
+
+    private static Throwable fail(String message) {
+        return new IllegalStateException(message, new IOException("Root cause"));
+    }
+}
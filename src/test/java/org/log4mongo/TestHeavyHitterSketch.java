@@ -0,0 +1,116 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.BasicDBObject;
+import org.apache.log4j.Level;
+import org.apache.log4j.MDC;
+import org.bson.BSON;
+import org.junit.Test;
+import org.log4mongo.HeavyHitterSketch.HeavyHitter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for HeavyHitterSketch and the per-logger cost accounting.
+ */
+public class TestHeavyHitterSketch {
+
+    @Test
+    public void testHeavyHittersSurviveManyDistinctKeys() {
+        HeavyHitterSketch sketch = new HeavyHitterSketch(16, 60000, 5);
+        long now = 600000;
+        for (int i = 0; i < 10000; i++) {
+            sketch.add("noisy", 1, now);
+            if (i % 2 == 0) {
+                sketch.add("chatty", 1, now);
+            }
+            sketch.add("logger-" + i, 1, now);
+        }
+        List<HeavyHitter> top = sketch.top(2, now);
+        assertEquals(2, top.size());
+        assertEquals("noisy", top.get(0).key);
+        assertEquals("chatty", top.get(1).key);
+        // Estimates never underestimate, and overestimate by at most the error
+        assertTrue(top.get(0).weight >= 10000);
+        assertTrue(top.get(0).weight - top.get(0).error <= 10000);
+    }
+
+    @Test
+    public void testWindowsExpire() {
+        HeavyHitterSketch sketch = new HeavyHitterSketch(4, 1000, 3);
+        sketch.add("old", 100, 1500);
+        sketch.add("recent", 10, 3500);
+        assertEquals("old", sketch.top(10, 3500).get(0).key);
+
+        // The window of "old" is recycled
+        sketch.add("recent", 5, 4200);
+        List<HeavyHitter> top = sketch.top(10, 4500);
+        assertEquals(1, top.size());
+        assertEquals("recent", top.get(0).key);
+        assertEquals(15, top.get(0).weight);
+
+        assertEquals(0, sketch.top(10, 10000).size());
+    }
+
+    @Test
+    public void testEstimateSize() {
+        BasicDBObject document = new BasicDBObject("message", "Hello").append("line", 42)
+                .append("tags", Arrays.asList("a", "b"));
+        assertEquals(BSON.encode(document).length,
+                LoggerCostTracker.estimateSize(document));
+    }
+
+    @Test
+    public void testLoggerCosts() {
+        LoggerCostTracker tracker = new LoggerCostTracker(8, "tenant");
+        MDC.put("tenant", "acme");
+        try {
+            for (int i = 0; i < 5; i++) {
+                tracker.record(newEvent("org.example.Busy", Level.INFO, "Entry"),
+                        new BasicDBObject("message", "A long message that takes some space"));
+            }
+            tracker.record(newEvent("org.example.Quiet", Level.INFO, "Entry"),
+                    new BasicDBObject("message", "Hi"));
+        } finally {
+            MDC.remove("tenant");
+        }
+        assertEquals("org.example.Busy=5", tracker.topLoggersByEvents(1).get(0).toString());
+        assertEquals("org.example.Busy", tracker.topLoggersByBytes(1).get(0).key);
+        assertEquals(6, tracker.topMdcValuesByEvents(1).get(0).weight);
+        assertEquals("acme", tracker.topMdcValuesByBytes(1).get(0).key);
+    }
+
+    @Test
+    public void testCostTrackingIsOptIn() {
+        TestBsonAppender.CollectingAppender appender = new TestBsonAppender.CollectingAppender();
+        assertNull(appender.getCostTracker());
+
+        appender.setCostTrackingCapacity(16);
+        appender.activateOptions();
+        appender.doAppend(newEvent("org.example.Tracked", Level.INFO, "Entry"));
+        appender.close();
+        assertEquals("org.example.Tracked=1", appender.getCostTracker().topLoggersByEvents(1)
+                .get(0).toString());
+    }
+}
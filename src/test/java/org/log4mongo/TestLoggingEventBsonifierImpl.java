@@ -2,11 +2,27 @@ package org.log4mongo;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import org.apache.log4j.Level;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.bson.BsonBinarySubType;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 import org.junit.Test;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
 
 public class TestLoggingEventBsonifierImpl {
 
@@ -22,6 +38,172 @@ public class TestLoggingEventBsonifierImpl {
         assertEquals(sb.toString(), retrievedValue);
     }
 
+    @Test
+    public void testDefaultProjectionWritesAllFields() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        BSONObject bson = bsonifier.bsonify(newEvent("com.acme.hot.Service", Level.INFO,
+                "message"));
+
+        assertNotNull(bson.get("timestamp"));
+        assertNotNull(bson.get("thread"));
+        assertNotNull(bson.get("host"));
+        assertNotNull(bson.get("fileName"));
+        assertTrue(((BSONObject) bson.get("loggerName")).containsField("package"));
+    }
+
+    @Test
+    public void testFieldProjectionBoundToLoggerPrefix() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        bsonifier.setFieldProjections("com.acme.hot=timestamp,level,loggerName,message");
+
+        BSONObject bson = bsonifier.bsonify(newEvent("com.acme.hot.Service", Level.INFO,
+                "message"));
+        assertEquals(4, bson.keySet().size());
+        assertEquals("INFO", bson.get("level"));
+        assertEquals("message", bson.get("message"));
+        BSONObject loggerName = (BSONObject) bson.get("loggerName");
+        assertEquals("com.acme.hot.Service", loggerName.get("fullyQualifiedClassName"));
+        assertFalse(loggerName.containsField("package"));
+
+        // Prefix matches whole name components only
+        bson = bsonifier.bsonify(newEvent("com.acme.hotter.Service", Level.INFO, "message"));
+        assertNotNull(bson.get("host"));
+    }
+
+    @Test
+    public void testFieldProjectionLevelBindingTakesPrecedence() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        bsonifier.setFieldProjections("com.acme=level,message & ERROR=all & *=level");
+
+        BSONObject bson = bsonifier.bsonify(newEvent("com.acme.hot.Service", Level.ERROR,
+                "message"));
+        assertNotNull(bson.get("host"));
+        assertNotNull(bson.get("thread"));
+
+        bson = bsonifier.bsonify(newEvent("com.acme.hot.Service", Level.WARN, "message"));
+        assertEquals(2, bson.keySet().size());
+
+        bson = bsonifier.bsonify(newEvent("org.other.Service", Level.WARN, "message"));
+        assertEquals(1, bson.keySet().size());
+        assertEquals("WARN", bson.get("level"));
+    }
+
+    @Test
+    public void testPromotedMdcKeys() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        bsonifier.setPromotedMdcKeys("traceId=objectId & session=uuid & userId=long "
+                + "& since=date & tenant=string & message=string");
+
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("traceId", "5f1c0895fd5eee04a445deb0");
+        mdc.put("session", "123e4567-e89b-12d3-a456-426614174000");
+        mdc.put("userId", "not a number");
+        mdc.put("since", "2020-01-02T03:04:05Z");
+        mdc.put("tenant", "acme");
+        mdc.put("message", "reserved");
+        BSONObject bson = bsonifier.bsonify(newEvent("com.acme.Service",
+                System.currentTimeMillis(), Level.INFO, "message", null, mdc));
+
+        assertEquals(new ObjectId("5f1c0895fd5eee04a445deb0"), bson.get("traceId"));
+        Binary session = (Binary) bson.get("session");
+        assertEquals(BsonBinarySubType.UUID_STANDARD.getValue(), session.getType());
+        assertEquals(16, session.length());
+        assertEquals(new Date(1577934245000L), bson.get("since"));
+        assertEquals("acme", bson.get("tenant"));
+        assertEquals("message", bson.get("message"));
+
+        // Unparseable and reserved keys stay in the properties sub-document
+        BSONObject properties = (BSONObject) bson.get("properties");
+        assertEquals(2, properties.keySet().size());
+        assertEquals("not a number", properties.get("userId"));
+        assertEquals("reserved", properties.get("message"));
+
+        // Promoted keys are written even if the projection excludes the MDC
+        bsonifier.setFieldProjections("*=level");
+        bson = bsonifier.bsonify(newEvent("com.acme.Service", System.currentTimeMillis(),
+                Level.INFO, "message", null, mdc));
+        assertEquals("acme", bson.get("tenant"));
+        assertFalse(bson.containsField("properties"));
+    }
+
+    @Test
+    public void testPromotedMdcKeysReadFromEventProperties() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        bsonifier.setPromotedMdcKeys("tenant=string & userId=long");
+        bsonifier.setFieldProjections("*=level");
+
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("userId", "not a number");
+        // The MDC of the BSONifying thread must not leak into a snapshot of another thread
+        MDC.put("tenant", "writer");
+        try {
+            BSONObject bson = bsonifier.bsonify(newEvent("com.acme.Service",
+                    System.currentTimeMillis(), Level.INFO, "message", null, mdc));
+            assertFalse(bson.containsField("tenant"));
+            assertFalse(bson.containsField("userId"));
+        } finally {
+            MDC.remove("tenant");
+        }
+    }
+
+    @Test
+    public void testPromotedMdcKeysCantReplaceAppenderFields() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        bsonifier.setPromotedMdcKeys("sampleRate=string & repeated=string & keywords=string");
+        bsonifier.setTokenField("keywords");
+
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("sampleRate", "a");
+        mdc.put("repeated", "b");
+        mdc.put("keywords", "c");
+        BSONObject bson = bsonifier.bsonify(newEvent("com.acme.Service",
+                System.currentTimeMillis(), Level.INFO, "message", null, mdc));
+
+        assertFalse(bson.containsField("sampleRate"));
+        assertFalse(bson.containsField("repeated"));
+        assertEquals(3, ((BSONObject) bson.get("properties")).keySet().size());
+        assertEquals(Arrays.asList("message"), bson.get("keywords"));
+    }
+
+    @Test
+    public void testMessageTokens() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        BSONObject bson = bsonifier.bsonify(newEvent("com.acme.Service", Level.INFO, "message"));
+        assertFalse(bson.containsField("tokens"));
+
+        bsonifier.setTokenField("tokens");
+        bsonifier.setMaxTokens(5);
+        LoggingEvent event = newEvent("com.acme.Service", Level.ERROR,
+                "The order 42 FAILED: the order was rejected", new IllegalStateException(
+                        "Payment declined", new RuntimeException("card expired")));
+        bson = bsonifier.bsonify(event);
+        assertEquals(Arrays.asList("order", "42", "failed", "rejected", "payment"),
+                bson.get("tokens"));
+
+        bsonifier.setMaxTokens(10);
+        bsonifier.setTokenStopWords("order");
+        bsonifier.setTokenDelimiter("\\s+");
+        bson = bsonifier.bsonify(event);
+        assertEquals(Arrays.asList("the", "42", "failed:", "was", "rejected", "payment",
+                "declined", "card", "expired"), bson.get("tokens"));
+
+        // The sample delimiter matches the default split
+        bsonifier.setTokenStopWords("");
+        bsonifier.setTokenDelimiter("[^\\p{L}\\p{N}]+");
+        BSONObject sample = bsonifier.bsonify(newEvent("com.acme.Service", Level.INFO,
+                "cache_miss for key-7"));
+        bsonifier.setTokenDelimiter(null);
+        assertEquals(Arrays.asList("cache", "miss", "for", "key"), sample.get("tokens"));
+        assertEquals(sample.get("tokens"), bsonifier.bsonify(newEvent("com.acme.Service",
+                Level.INFO, "cache_miss for key-7")).get("tokens"));
+
+        // The tokens can't replace the message
+        bsonifier.setTokenField("message");
+        assertNull(bsonifier.getTokenField());
+        assertEquals("message", bsonifier.bsonify(newEvent("com.acme.Service", Level.INFO,
+                "message")).get("message"));
+    }
+
     // Create a subclass so I can test a protected method
     // Replace this after extending Privateer to support superclasses in method signature
     public class LoggingEventBsonifierImplSubclass extends LoggingEventBsonifierImpl {
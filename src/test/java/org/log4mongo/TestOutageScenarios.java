@@ -0,0 +1,102 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.junit.Test;
+import org.log4mongo.OutageScenarios.Fault;
+import org.log4mongo.OutageScenarios.Outcome;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JUnit tests of MongoDbAppender during outages, against the fault-injecting
+ * WireProtocolServer. These tests don't require a MongoDB server.
+ */
+public class TestOutageScenarios {
+
+    private static final long FAULT_MILLIS = 1000;
+
+    @Test
+    public void testStallBlocksSynchronousCallers() throws Exception {
+        Outcome outcome = run(Fault.STALL);
+        assertTrue(outcome.toString(),
+                outcome.callerNanos.getMax() >= TimeUnit.MILLISECONDS.toNanos(FAULT_MILLIS / 2));
+        assertEquals(outcome.toString(), 0, outcome.getLost());
+        assertRecovered(outcome);
+    }
+
+    @Test
+    public void testStallWithNonBlockingBuffer() throws Exception {
+        Outcome outcome = run(Fault.STALL, "bufferSize", "100", "blocking", "false");
+        assertTrue(outcome.toString(),
+                outcome.callerNanos.getMax() < TimeUnit.MILLISECONDS.toNanos(FAULT_MILLIS / 2));
+        assertTrue(outcome.toString(), outcome.dropped > 0);
+        assertEquals(outcome.toString(), outcome.appended, outcome.written + outcome.dropped
+                + outcome.failed);
+        assertRecovered(outcome);
+    }
+
+    @Test
+    public void testWriteErrors() throws Exception {
+        Outcome outcome = run(Fault.WRITE_ERRORS);
+        assertTrue(outcome.toString(), outcome.failed > 0);
+        assertEquals(outcome.toString(), outcome.appended, outcome.written + outcome.failed);
+        assertRecovered(outcome);
+    }
+
+    @Test
+    public void testConnectionLoss() throws Exception {
+        Outcome outcome = run(Fault.CONNECTION_LOSS);
+        assertTrue(outcome.toString(), outcome.written + outcome.failed >= outcome.appended);
+        assertRecovered(outcome);
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        Outcome outcome = run(Fault.FAILOVER);
+        assertTrue(outcome.toString(), outcome.written + outcome.failed >= outcome.appended);
+        assertRecovered(outcome);
+    }
+
+    @Test
+    public void testDropBeforeAcknowledgement() throws Exception {
+        Outcome outcome = run(Fault.DROP_BEFORE_ACK);
+        // The event was stored, but the appender can't know and counts it as failed
+        assertEquals(outcome.toString(), 1, outcome.failed);
+        assertEquals(outcome.toString(), outcome.appended, outcome.written);
+        assertRecovered(outcome);
+    }
+
+    private static Outcome run(Fault fault, String... options) throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("faultMillis", String.valueOf(FAULT_MILLIS));
+        for (int i = 0; i < options.length; i += 2) {
+            properties.put(options[i], options[i + 1]);
+        }
+        return OutageScenarios.run(fault, properties);
+    }
+
+    private static void assertRecovered(Outcome outcome) {
+        assertTrue(outcome.toString(), outcome.recoveryMillis >= 0
+                && outcome.recoveryMillis < 10000);
+    }
+}
@@ -0,0 +1,244 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.log4mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.PatternConverter;
+import org.apache.log4j.helpers.PatternParser;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.log4mongo.contrib.HostInfoPatternLayout;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the document templates compiled by MongoDbPatternLayout. These tests don't
+ * require a MongoDB server.
+ */
+public class TestPatternBsonTemplate {
+
+    private static final String LOGGER = TestPatternBsonTemplate.class.getName();
+
+    private static final String PATTERN = "{\"extra\":\"%e\",\"level\":\"%p\","
+            + "\"nested\":{\"class\":\"%c{1}\",\"message\":\"%m\"},"
+            + "\"array\":[\"%c{1}\",\"%p: %m\"],\"version\":2,'single':'quoted', flag : true}";
+
+    @Test
+    public void testTemplateMatchesJsonRoundTrip() {
+        MongoDbPatternLayout layout = new CustomPatternLayout();
+        layout.setConversionPattern(PATTERN);
+
+        LoggingEvent event = newEvent(LOGGER, Level.WARN,
+                "\"Quotes\" ' and c:\\users\\some_file\\");
+        DBObject bson = layout.formatBson(event);
+        DBObject parsed = (DBObject) JSON.parse(layout.format(event));
+
+        assertEquals(parsed, bson);
+        assertEquals("useful info", bson.get("extra"));
+        assertEquals("WARN", bson.get("level"));
+        assertEquals(event.getRenderedMessage(), ((DBObject) bson.get("nested")).get("message"));
+        BasicDBList array = (BasicDBList) bson.get("array");
+        assertEquals("WARN: " + event.getRenderedMessage(), array.get(1));
+        assertEquals(2, bson.get("version"));
+        assertEquals("quoted", bson.get("single"));
+        assertEquals(Boolean.TRUE, bson.get("flag"));
+        assertFalse(layout.isLocationRequired());
+    }
+
+    @Test
+    public void testHostInfoPatternLayout() throws Exception {
+        MongoDbPatternLayout layout = new HostInfoPatternLayout();
+        layout.setConversionPattern("{\"message\":\"%m\",\"host\":{\"name\":\"%H\", "
+                + "\"process\":\"%V\", \"ip_address\":\"%I\"}}");
+
+        DBObject bson = layout.formatBson(newEvent(LOGGER, Level.WARN, "Host info"));
+        DBObject host = (DBObject) bson.get("host");
+        assertEquals(InetAddress.getLocalHost().getHostName(), host.get("name"));
+        assertEquals(InetAddress.getLocalHost().getHostAddress(), host.get("ip_address"));
+        assertEquals("Host info", bson.get("message"));
+        // The legacy string format must not be affected by compiling the template
+        assertEquals(bson, JSON.parse(layout.format(newEvent(LOGGER, Level.WARN, "Host info"))));
+    }
+
+    @Test
+    public void testLocationRequired() {
+        MongoDbPatternLayout layout = new MongoDbPatternLayout(
+                "{\"message\":\"%m\",\"line\":\"%L\"}");
+        assertTrue(layout.isLocationRequired());
+    }
+
+    @Test
+    public void testPatternThatIsNotADocument() {
+        MongoDbPatternLayout layout = new MongoDbPatternLayout();
+        assertNull(layout.formatBson(newEvent(LOGGER, Level.WARN, "Plain")));
+        assertTrue(layout.isLocationRequired());
+
+        layout.setConversionPattern("{\"message\":\"%m\"");
+        assertNull(layout.formatBson(newEvent(LOGGER, Level.WARN, "Unterminated")));
+    }
+
+    @Test
+    public void testExtendedJsonPatternIsParsed() throws Exception {
+        MongoDbPatternLayout layout = new MongoDbPatternLayout(
+                "{\"message\":\"%m\",\"ref\":{\"$oid\":\"5f1c0895fd5eee04a445deb0\"}}");
+        assertNull(layout.formatBson(newEvent(LOGGER, Level.WARN, "Extended")));
+
+        WireProtocolServer server = new WireProtocolServer();
+        MongoDbPatternLayoutAppender appender = new MongoDbPatternLayoutAppender();
+        try {
+            appender.setLayout(layout);
+            // An appender that can't store documents doesn't format them
+            assertNull(appender.bsonify(newEvent(LOGGER, Level.WARN, "Extended")));
+
+            appender.setHostname("127.0.0.1");
+            appender.setPort(String.valueOf(server.getPort()));
+            appender.setDatabaseName("log4mongo");
+            appender.setCollectionName("logs");
+            appender.activateOptions();
+            BSONObject bson = appender.bsonify(newEvent(LOGGER, Level.WARN, "Extended"));
+            assertEquals("Extended", bson.get("message"));
+            assertEquals(new ObjectId("5f1c0895fd5eee04a445deb0"), bson.get("ref"));
+        } finally {
+            appender.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTypedValues() {
+        MongoDbPatternLayout layout = new MongoDbPatternLayout("{\"timestamp\":\"%d\","
+                + "\"line\":\"%L\",\"relative\":\"%r\",\"mdc\":\"%X\","
+                + "\"user\":\"%X{user}\",\"padded\":\"%10r\",\"text\":\"at %d\"}");
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+                Logger.getLogger(TestPatternBsonTemplate.class), System.currentTimeMillis(),
+                Level.WARN, "Typed", "main", null, null, new LocationInfo("Typed.java",
+                        "org.example.Typed", "run", "42"), Collections.singletonMap("user",
+                        "bob"));
+
+        DBObject strings = layout.formatBson(event);
+        assertTrue(strings.get("timestamp") instanceof String);
+        assertTrue(strings.get("line") instanceof String);
+
+        DBObject dates = layout.formatBson(event, true);
+        assertEquals(new Date(event.getTimeStamp()), dates.get("timestamp"));
+        assertTrue(dates.get("line") instanceof String);
+
+        layout.setTypedValues(true);
+        DBObject typed = layout.formatBson(event);
+        assertEquals(new Date(event.getTimeStamp()), typed.get("timestamp"));
+        assertEquals(42, typed.get("line"));
+        assertEquals(event.getTimeStamp() - LoggingEvent.getStartTime(), typed.get("relative"));
+        assertEquals("bob", ((DBObject) typed.get("mdc")).get("user"));
+        assertEquals("bob", typed.get("user"));
+        assertTrue(typed.get("padded") instanceof String);
+        assertTrue(typed.get("text") instanceof String);
+    }
+
+    @Test
+    public void testCustomTypedPatternConverter() {
+        MongoDbPatternLayout layout = new MongoDbPatternLayout() {
+            @Override
+            public PatternParser createPatternParser(String pattern) {
+                return new PatternParser(pattern) {
+                    @Override
+                    protected void finalizeConverter(char c) {
+                        if (c == 'N') {
+                            addConverter(new LengthConverter());
+                            currentLiteral.setLength(0);
+                        } else {
+                            super.finalizeConverter(c);
+                        }
+                    }
+                };
+            }
+        };
+        layout.setConversionPattern("{\"length\":\"%N\"}");
+        layout.setTypedValues(true);
+        assertEquals(6, layout.formatBson(newEvent(LOGGER, Level.WARN, "Custom")).get("length"));
+    }
+
+    @Test
+    public void testDatePath() {
+        assertArrayEquals(new String[] { "timestamp" }, MongoDbPatternLayoutDateAppender
+                .getDatePath("{\"level\":\"%p\",\"timestamp\":\"%d{ISO8601}\"}"));
+        assertArrayEquals(new String[] { "event", "time" }, MongoDbPatternLayoutDateAppender
+                .getDatePath("{\"event\":{\"time\":\"%d\",\"level\":\"%p\"}}"));
+        assertNull(MongoDbPatternLayoutDateAppender.getDatePath("{\"level\":\"%p\"}"));
+    }
+
+    @Test
+    public void testConcurrentFormatting() throws Exception {
+        final MongoDbPatternLayout layout = new MongoDbPatternLayout(
+                "{\"timestamp\":\"%d{ISO8601}\",\"message\":\"%m\"}");
+        final AtomicInteger mismatches = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String prefix = "Thread \"" + t + "\" ";
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        LoggingEvent event = newEvent(LOGGER, Level.WARN, prefix + i);
+                        String message = event.getRenderedMessage();
+                        if (!message.equals(layout.formatBson(event).get("message"))
+                                || !message.equals(((DBObject) JSON.parse(layout
+                                        .format(event))).get("message"))) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, mismatches.get());
+    }
+
+    /**
+     * Custom converter storing the length of the message as a number.
+     */
+    private static class LengthConverter extends PatternConverter implements
+            TypedPatternConverter {
+
+        @Override
+        protected String convert(LoggingEvent event) {
+            return String.valueOf(convertToValue(event));
+        }
+
+        public Object convertToValue(LoggingEvent event) {
+            return event.getRenderedMessage().length();
+        }
+    }
+
+}
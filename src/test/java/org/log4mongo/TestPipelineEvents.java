@@ -0,0 +1,89 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.log4j.Level;
+import org.junit.Test;
+import org.log4mongo.TestBsonAppender.CollectingAppender;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the Java Flight Recorder events of the appender pipeline. These tests don't
+ * require a MongoDB server.
+ */
+public class TestPipelineEvents {
+
+    private static final String LOGGER = TestPipelineEvents.class.getName();
+
+    @Test
+    public void testPipelineEventsAreRecorded() throws Exception {
+        assumeTrue(PipelineEvents.ENABLED);
+
+        File file = File.createTempFile("log4mongo", ".jfr");
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        try {
+            Recording recording = new Recording();
+            for (String name : new String[] { "Bsonify", "HandOff", "Flush", "Drop" }) {
+                recording.enable("org.log4mongo." + name);
+            }
+            recording.start();
+
+            CollectingAppender appender = new CollectingAppender();
+            appender.setName("jfr");
+            appender.setBufferSize(10);
+            appender.activateOptions();
+            for (int i = 0; i < 5; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.INFO, "Entry " + i));
+            }
+            appender.close();
+
+            recording.stop();
+            recording.dump(file.toPath());
+            recording.close();
+
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                String name = event.getEventType().getName();
+                if (name.startsWith("org.log4mongo.")) {
+                    assertEquals("jfr", event.getString("appender"));
+                    // The timed stages carry their duration natively, for recording thresholds
+                    assertEquals(name, !"org.log4mongo.Drop".equals(name),
+                            event.getDuration().toNanos() > 0);
+                    Integer count = counts.get(name);
+                    counts.put(name, (count == null) ? 1 : count + 1);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        assertEquals(Integer.valueOf(5), counts.get("org.log4mongo.Bsonify"));
+        assertEquals(Integer.valueOf(5), counts.get("org.log4mongo.HandOff"));
+        assertTrue(counts.get("org.log4mongo.Flush") >= 1);
+        assertFalse(counts.containsKey("org.log4mongo.Drop"));
+    }
+}
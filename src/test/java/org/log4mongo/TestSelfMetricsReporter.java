@@ -0,0 +1,111 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.client.MongoCollection;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JUnit unit tests for the self-metrics documents of MongoDbAppender. These tests don't require a
+ * MongoDB server.
+ */
+public class TestSelfMetricsReporter {
+
+    @Test
+    public void testDocumentsCoverTheInterval() {
+        MongoDbAppender appender = new MongoDbAppender();
+        appender.setName("metrics");
+        AppenderMetrics metrics = appender.getMetrics();
+        SelfMetricsReporter reporter = new SelfMetricsReporter(appender, null, 10000);
+
+        for (int i = 0; i < 10; i++) {
+            metrics.eventAccepted();
+        }
+        metrics.eventsWritten(8);
+        metrics.eventsDropped(2);
+        metrics.insertCompleted(8, 3000000);
+        DBObject first = reporter.createDocument();
+
+        metrics.eventAccepted();
+        metrics.eventsWritten(1);
+        metrics.eventsShed(3);
+        metrics.eventsSuppressed(4);
+        metrics.insertCompleted(1, 1000000);
+        DBObject second = reporter.createDocument();
+
+        assertEquals("metrics", first.get("appender"));
+        assertNotNull(((DBObject) first.get("host")).get("process"));
+        assertTrue(first.get("timestamp") instanceof Date);
+        assertEquals(10L, ((DBObject) first.get("events")).get("accepted"));
+        assertEquals(2L, ((DBObject) first.get("events")).get("dropped"));
+        assertEquals(8L, ((DBObject) first.get("batchSize")).get("p50"));
+
+        DBObject events = (DBObject) second.get("events");
+        assertEquals(1L, events.get("accepted"));
+        assertEquals(0L, events.get("dropped"));
+        assertEquals(3L, events.get("shed"));
+        assertEquals(4L, events.get("suppressed"));
+        assertEquals(0L, events.get("sampledOut"));
+        DBObject totals = (DBObject) second.get("totals");
+        assertEquals(11L, totals.get("accepted"));
+        assertEquals(2L, totals.get("dropped"));
+        assertEquals(3L, totals.get("shed"));
+        DBObject insert = (DBObject) second.get("insertMicros");
+        assertEquals(1L, insert.get("count"));
+        assertWithin(1000, (Long) insert.get("max"), 0.125);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReportWritesToTheCollection() {
+        final List<Object> inserted = new ArrayList<Object>();
+        MongoCollection<DBObject> collection = (MongoCollection<DBObject>) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { MongoCollection.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("insertOne".equals(method.getName())) {
+                            inserted.add(args[0]);
+                        }
+                        return null;
+                    }
+                });
+        MongoDbAppender appender = new MongoDbAppender();
+        SelfMetricsReporter reporter = new SelfMetricsReporter(appender, collection, 60000);
+        reporter.start();
+        reporter.stop();
+
+        // Only the final report of the partial interval
+        assertEquals(1, inserted.size());
+    }
+
+    private static void assertWithin(long expected, long actual, double relativeError) {
+        assertTrue(actual + " not within " + relativeError + " of " + expected,
+                Math.abs(actual - expected) <= expected * relativeError);
+    }
+}
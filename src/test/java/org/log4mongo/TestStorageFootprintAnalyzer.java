@@ -0,0 +1,117 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSON;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for StorageFootprintAnalyzer. These tests don't require a MongoDB server.
+ */
+public class TestStorageFootprintAnalyzer {
+
+    private static final String LOGGER = TestStorageFootprintAnalyzer.class.getName();
+
+    private static final Map<String, String> PROPERTIES =
+            Collections.singletonMap("requestId", "r-1");
+
+    @Test
+    public void testFieldSizesAddUpToDocumentSize() {
+        LoggingEventBsonifierImpl bsonifier = new LoggingEventBsonifierImpl();
+        StorageFootprintAnalyzer analyzer = new StorageFootprintAnalyzer();
+        LoggingEventBsonifierImpl lean = new LoggingEventBsonifierImpl();
+        lean.setFieldProjections("*=timestamp,level,message");
+        analyzer.addVariant("lean", lean);
+        analyzer.setIndexes("timestamp;loggerName.fullyQualifiedClassName,timestamp");
+
+        LoggingEvent event = newEvent(LOGGER, System.currentTimeMillis(), Level.INFO,
+                "Order 4711 accepted", null, PROPERTIES);
+        analyzer.add(event);
+        analyzer.add(newEvent(LOGGER, System.currentTimeMillis(), Level.INFO,
+                "Order 4712 accepted", null, PROPERTIES));
+
+        StorageFootprintAnalyzer.Variant variant = analyzer.getVariant("default");
+        long fields = 0;
+        for (long[] bytes : variant.fieldBytes.values()) {
+            fields += bytes[0];
+        }
+        // Each document is 4 bytes of length and a terminator more than its elements
+        assertEquals(variant.getDocumentBytes(), fields + 2 * 5);
+        assertEquals(StorageFootprintAnalyzer.ID_FIELD_SIZE
+                + BSON.encode(bsonifier.bsonify(event)).length, variant.getDocumentBytes() / 2,
+                4);
+        assertTrue(variant.getCompressedBytes() < variant.getDocumentBytes());
+
+        // Date: type and 8 bytes, and the RecordId
+        assertEquals(2 * (1 + 8 + 8), variant.indexBytes[0]);
+        assertTrue(variant.indexBytes[1] > variant.indexBytes[0]);
+
+        StorageFootprintAnalyzer.Variant leanVariant = analyzer.getVariant("lean");
+        assertEquals(4, leanVariant.fieldBytes.size());
+        assertTrue(leanVariant.getDocumentBytes() < variant.getDocumentBytes());
+        assertTrue(analyzer.toString().contains("variant lean"));
+    }
+
+    @Test
+    public void testReportDoesNotChangeCompressedSize() {
+        StorageFootprintAnalyzer reported = new StorageFootprintAnalyzer();
+        StorageFootprintAnalyzer unreported = new StorageFootprintAnalyzer();
+        for (int i = 0; i < 20; i++) {
+            LoggingEvent event = newEvent(LOGGER, System.currentTimeMillis(), Level.INFO,
+                    "Order " + i + " accepted", null, PROPERTIES);
+            reported.add(event);
+            unreported.add(event);
+            if (i == 10) {
+                reported.toString();
+            }
+        }
+        long compressed = reported.getVariant("default").getCompressedBytes();
+        assertEquals(compressed, reported.getVariant("default").getCompressedBytes());
+        // The random ObjectIds of the two samples only differ by a few bytes once compressed
+        assertEquals(unreported.getVariant("default").getCompressedBytes(), compressed, 10);
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(trace);
+        for (int i = 0; i < 10; i++) {
+            LoggingEvent event = newEvent(LOGGER, System.currentTimeMillis(), Level.INFO,
+                    "Entry " + i, null, PROPERTIES);
+            event.getLocationInformation();
+            out.writeObject(event);
+        }
+        out.close();
+
+        StorageFootprintAnalyzer analyzer = new StorageFootprintAnalyzer();
+        assertEquals(5, analyzer.addTrace(new ByteArrayInputStream(trace.toByteArray()), 5));
+        assertEquals(5, analyzer.getEvents());
+        assertTrue(analyzer.getVariant("default").fieldBytes.containsKey("lineNumber"));
+    }
+}
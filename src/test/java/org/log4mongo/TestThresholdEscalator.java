@@ -0,0 +1,146 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.junit.Test;
+import org.log4mongo.TestBsonAppender.CollectingAppender;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the threshold escalation of BsonAppender under pressure.
+ */
+public class TestThresholdEscalator {
+
+    private static final String LOGGER = TestThresholdEscalator.class.getName();
+
+    @Test
+    public void testRaiseAndLowerWithHysteresis() {
+        ThresholdEscalator escalator = new ThresholdEscalator(0.8, 0.2, 10000);
+        long now = 0;
+
+        assertNull(escalator.evaluate(now, 0.5, 0.0, null));
+        LoggingEvent record = escalator.evaluate(now += 1000, 0.9, 0.0, null);
+        assertEquals(Level.INFO, escalator.getLevel());
+        assertEquals(Level.WARN, record.getLevel());
+        assertEquals("INFO", record.getMDC("threshold"));
+        assertEquals("ALL", record.getMDC("previousThreshold"));
+        assertEquals("0.9", record.getMDC("queueFill"));
+        assertTrue(record.getRenderedMessage(), record.getRenderedMessage().startsWith(
+                "Raised log threshold from ALL to INFO"));
+        assertTrue(escalator.isBelow(Level.DEBUG));
+        assertFalse(escalator.isBelow(Level.INFO));
+
+        // GC pressure alone raises it further, but never above WARN
+        assertEquals("WARN", escalator.evaluate(now += 1000, 0.0, 0.3, null).getMDC("threshold"));
+        assertNull(escalator.evaluate(now += 1000, 1.0, 0.5, null));
+        assertFalse(escalator.isBelow(Level.ERROR));
+
+        // Between the low and high watermarks nothing changes, and the cooldown restarts
+        assertNull(escalator.evaluate(now += 1000, 0.1, 0.0, null));
+        assertNull(escalator.evaluate(now += 9000, 0.1, 0.0, null));
+        assertNull(escalator.evaluate(now += 1000, 0.5, 0.0, null));
+        assertNull(escalator.evaluate(now += 1000, 0.1, 0.0, null));
+        assertNull(escalator.evaluate(now += 9999, 0.1, 0.0, null));
+        record = escalator.evaluate(now += 1, 0.1, 0.0, null);
+        assertEquals("INFO", record.getMDC("threshold"));
+        assertTrue(record.getRenderedMessage().startsWith("Lowered log threshold from WARN"));
+        assertNull(escalator.evaluate(now += 5000, 0.1, 0.0, null));
+        assertEquals("ALL", escalator.evaluate(now += 5000, 0.1, 0.0, null)
+                .getMDC("threshold"));
+        assertNull(escalator.getLevel());
+    }
+
+    @Test
+    public void testConfiguredThreshold() {
+        ThresholdEscalator escalator = new ThresholdEscalator(0.8, 0.2, 0);
+        assertEquals("WARN", escalator.evaluate(0, 1.0, 0.0, Level.INFO).getMDC("threshold"));
+        // With no cooldown, the first low evaluation starts it and the next lowers the threshold
+        assertNull(escalator.evaluate(1, 0.0, 0.0, Level.INFO));
+        assertEquals("INFO", escalator.evaluate(2, 0.0, 0.0, Level.INFO).getMDC("threshold"));
+        assertNull(escalator.getLevel());
+
+        // Nothing to raise above WARN
+        assertNull(new ThresholdEscalator(0.8, 0.2, 0).evaluate(0, 1.0, 1.0, Level.WARN));
+    }
+
+    @Test
+    public void testConcurrentCycleCollectorsAreSkipped() {
+        for (GarbageCollectorMXBean collector : ThresholdEscalator.pauseCollectors()) {
+            assertFalse(collector.getName(), collector.getName().endsWith(" Cycles"));
+        }
+    }
+
+    @Test
+    public void testAppenderShedsEventsUnderQueuePressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CollectingAppender appender = new CollectingAppender() {
+            @Override
+            protected void append(BSONObject bson) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.append(bson);
+            }
+        };
+        appender.setName("escalating");
+        appender.setBufferSize(10);
+        appender.setBatchSize(1);
+        appender.setBlocking(false);
+        appender.setThresholdEscalation(true);
+        appender.setEscalationQueueFill(0.5);
+        appender.activateOptions();
+
+        // The writer thread holds one event, and the queue keeps room for the record
+        for (int i = 0; i < 8; i++) {
+            appender.doAppend(newEvent(LOGGER, Level.DEBUG, "Entry"));
+        }
+        assertTrue(appender.getQueueFill() >= 0.5);
+        Thread.sleep(ThresholdEscalator.CHECK_INTERVAL_MILLIS + 100);
+
+        // Checking the threshold neither evaluates the pressure nor sheds events
+        assertTrue(appender.isAsSevereAsThreshold(Level.DEBUG));
+        assertEquals(0, appender.getMetrics().getThresholdChanges());
+        assertEquals(0, appender.getMetrics().getEventsShed());
+
+        appender.doAppend(newEvent(LOGGER, Level.DEBUG, "Entry"));
+        assertEquals(Level.INFO, appender.getEffectiveThreshold());
+        assertEquals(1, appender.getMetrics().getThresholdChanges());
+        assertEquals(1, appender.getMetrics().getEventsShed());
+        assertEquals("INFO", appender.getMetrics().getEffectiveThreshold());
+
+        release.countDown();
+        appender.close();
+        boolean recorded = false;
+        for (BSONObject bson : appender.documents) {
+            recorded |= ((String) bson.get("message")).startsWith("Raised log threshold");
+        }
+        assertTrue(recorded);
+    }
+}
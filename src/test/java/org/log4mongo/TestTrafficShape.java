@@ -0,0 +1,172 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit unit tests for the recording and replay of traffic shapes. These tests don't require a
+ * MongoDB server.
+ */
+public class TestTrafficShape {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndSample() {
+        TrafficShape shape = recordShape();
+        TrafficShape copy = TrafficShape.fromDBObject((DBObject) JSON.parse(JSON.serialize(shape
+                .toDBObject())));
+        assertEquals(1000, copy.events);
+        assertEquals(100, copy.throwables);
+
+        TrafficShape.Sampler sampler = copy.new Sampler(new Random(1));
+        int errors = 0, throwables = 0, withMdc = 0;
+        for (int i = 0; i < 2000; i++) {
+            LoggingEvent event = sampler.newEvent();
+            errors += (event.getLevel() == Level.ERROR) ? 1 : 0;
+            throwables += (event.getThrowableInformation() != null) ? 1 : 0;
+            withMdc += event.getProperties().containsKey("tenant") ? 1 : 0;
+            assertTrue(event.getLoggerName().startsWith("org.example."));
+            assertTrue(event.getRenderedMessage().length() <= 80);
+        }
+        assertWithin(400, errors, 80);
+        assertWithin(200, throwables, 60);
+        assertWithin(1000, withMdc, 100);
+
+        // Bursts of 50 events in every tenth tick, nothing in between
+        long bursts = 0;
+        for (int i = 0; i < 1000; i++) {
+            long events = sampler.eventsPerTick();
+            assertTrue(events == 0 || (events >= 48 && events <= 55));
+            bursts += (events > 0) ? 1 : 0;
+        }
+        assertWithin(100, bursts, 40);
+    }
+
+    @Test
+    public void testMdcCardinality() {
+        TrafficShape shape = new TrafficShape();
+        for (int i = 0; i < 50000; i++) {
+            LoggingEvent event = newEvent("org.example.Orders", i, Level.INFO,
+                    "Message of some length", null, new HashMap<String, String>());
+            event.setProperty("tenant", "tenant-" + (i % 7));
+            event.setProperty("requestId", "request-" + (i % 5000));
+            shape.record(event);
+        }
+        DBObject cardinality = (DBObject) shape.toDBObject().get("mdcCardinality");
+        assertEquals(7L, ((Number) cardinality.get("tenant")).longValue());
+        assertWithin(5000, ((Number) cardinality.get("requestId")).longValue(), 750);
+    }
+
+    @Test
+    public void testOlderTimestampStaysInTick() {
+        TrafficShape shape = new TrafficShape();
+        // A concurrent thread stamped its event just before the current tick started
+        shape.record(newEvent("org.example.Orders", 1000, Level.INFO, "Entry", null));
+        shape.record(newEvent("org.example.Orders", 999, Level.INFO, "Entry", null));
+        shape.record(newEvent("org.example.Orders", 1050, Level.INFO, "Entry", null));
+        shape.record(newEvent("org.example.Orders", 1100, Level.INFO, "Entry", null));
+
+        long[] ticks = new long[LogLinearHistogram.BUCKETS];
+        for (Object pair : (List<?>) shape.toDBObject().get("eventsPerTick")) {
+            ticks[((Number) ((List<?>) pair).get(0)).intValue()] = ((Number) ((List<?>) pair)
+                    .get(1)).longValue();
+        }
+        assertEquals(1, ticks[LogLinearHistogram.bucketOf(3)]);
+        assertEquals(1, ticks[LogLinearHistogram.bucketOf(1)]);
+        assertEquals(0, ticks[0]);
+    }
+
+    @Test
+    public void testRecorderWritesShape() throws Exception {
+        File file = new File(folder.getRoot(), "shape.json");
+        TrafficShapeRecorder recorder = new TrafficShapeRecorder();
+        recorder.setFile(file.getPath());
+        recorder.activateOptions();
+        recorder.doAppend(newEvent("org.example.Orders", 0, Level.INFO, "Entry", null));
+        recorder.close();
+
+        DBObject shape = (DBObject) JSON.parse(new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8));
+        assertEquals(1L, ((Number) shape.get("events")).longValue());
+        assertEquals(1L, ((Number) ((DBObject) shape.get("loggers")).get("org.example.Orders"))
+                .longValue());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        File file = new File(folder.getRoot(), "shape.json");
+        Files.write(file.toPath(), JSON.serialize(recordShape().toDBObject()).getBytes(
+                StandardCharsets.UTF_8));
+
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("shape", file.getPath());
+        options.put("threads", "2");
+        options.put("duration", "2");
+        options.put("rate", "2");
+        options.put("bufferSize", "1000");
+        AppenderLoadHarness.Result result = AppenderLoadHarness.run(options);
+        // 20 ticks, a tenth of which are bursts of about 50 events, at twice the rate
+        assertTrue(String.valueOf(result.events), result.events > 0 && result.events < 1000);
+        assertEquals(result.events, result.documentsInserted);
+    }
+
+    /**
+     * Records 1000 events in bursts of 50 every second: 20% ERROR with an exception for half of
+     * them, half with a tenant in the MDC.
+     */
+    private TrafficShape recordShape() {
+        TrafficShape shape = new TrafficShape();
+        for (int i = 0; i < 1000; i++) {
+            long timeStamp = (i / 50) * 1000L;
+            Level level = (i % 5 == 0) ? Level.ERROR : Level.INFO;
+            Throwable throwable = (i % 10 == 0) ? new IllegalStateException() : null;
+            LoggingEvent event = newEvent("org.example.Logger" + (i % 3), timeStamp, level,
+                    "Message of some length", throwable, new HashMap<String, String>());
+            if (i % 2 == 0) {
+                event.setProperty("tenant", "tenant-" + (i % 7));
+            }
+            shape.record(event);
+        }
+        return shape;
+    }
+
+    private static void assertWithin(long expected, long actual, long delta) {
+        assertTrue(actual + " is not within " + delta + " of " + expected,
+                Math.abs(expected - actual) <= delta);
+    }
+}
@@ -0,0 +1,83 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.apache.log4j.Level;
+import org.bson.BSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.log4mongo.LoggingEvents.newEvent;
+
+/**
+ * JUnit tests of the appenders against the in-process WireProtocolServer, and of the load
+ * harness. These tests don't require a MongoDB server.
+ */
+public class TestWireProtocolServer {
+
+    private static final String LOGGER = TestWireProtocolServer.class.getName();
+
+    @Test
+    public void testAppenderWritesToServer() throws Exception {
+        WireProtocolServer server = new WireProtocolServer();
+        try {
+            server.setRetainDocuments(true);
+            MongoDbAppender appender = new MongoDbAppender();
+            appender.setName("standIn");
+            appender.setHostname("127.0.0.1");
+            appender.setPort(String.valueOf(server.getPort()));
+            appender.setDatabaseName("log4mongo");
+            appender.setCollectionName("logs");
+            appender.activateOptions();
+
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(newEvent(LOGGER, Level.WARN, "Event " + i));
+            }
+            appender.close();
+
+            List<BSONObject> documents = server.getDocuments();
+            assertEquals(10, documents.size());
+            assertEquals("Event 9", documents.get(9).get("message"));
+            assertEquals("WARN", documents.get(0).get("level"));
+            assertEquals(10, appender.getMetrics().getEventsWritten());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLoadHarness() throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("appender", "patternLayout");
+        options.put("threads", "2");
+        options.put("events", "500");
+        options.put("bufferSize", "100");
+        options.put("latencyMicros", "100");
+
+        AppenderLoadHarness.Result result = AppenderLoadHarness.run(options);
+        assertEquals(1000, result.events);
+        assertEquals(1000, result.documentsInserted);
+        assertEquals(1000, result.callerNanos.getCount());
+        assertTrue(result.insertCommands < 1000);
+        assertTrue(result.bytesReceived > 1000 * 60);
+    }
+}
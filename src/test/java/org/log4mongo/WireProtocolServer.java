@@ -0,0 +1,535 @@
+/* Copyright (C) 2010 Robert Stewart (robert@wombatnation.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.log4mongo;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for a standalone mongod, speaking enough of the MongoDB wire protocol
+ * for the appenders to write to it: the handshake (isMaster/hello, buildinfo, getlasterror, ping)
+ * and insert commands, over OP_QUERY/OP_REPLY as the 3.x driver sends them or over OP_MSG, and
+ * legacy OP_INSERT messages. Inserted documents are counted, not stored, unless retained for a
+ * test.
+ * <p>
+ * Each connection is served by its own thread. Inserts can be delayed by a configurable latency
+ * to simulate a remote or loaded server.
+ * <p>
+ * Faults can be scripted to simulate outages: stalled inserts, failing inserts, dropped and
+ * refused connections, a failover during which the server is not primary, and connections dropped
+ * after an insert was received but before it was acknowledged. Each fault lasts for a given time;
+ * the time of the first insert acknowledged after the last fault ended is recorded.
+ */
+class WireProtocolServer implements Closeable {
+
+    private static final int OP_REPLY = 1;
+
+    private static final int OP_INSERT = 2002;
+
+    private static final int OP_QUERY = 2004;
+
+    private static final int OP_MSG = 2013;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int MORE_TO_COME = 1 << 1;
+
+    private static final int CHECKSUM_PRESENT = 1;
+
+    private final ServerSocket serverSocket;
+
+    private final Set<Socket> connections = Collections
+            .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final AtomicInteger connectionIds = new AtomicInteger();
+
+    private final AtomicInteger responseIds = new AtomicInteger();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong insertCommands = new AtomicLong();
+
+    private final AtomicLong documentsInserted = new AtomicLong();
+
+    private final List<BSONObject> documents = Collections
+            .synchronizedList(new ArrayList<BSONObject>());
+
+    private volatile long latencyNanos = 0;
+
+    private volatile boolean retainDocuments = false;
+
+    private volatile boolean closed = false;
+
+    private volatile long stallUntil = 0;
+
+    private volatile long failUntil = 0;
+
+    private volatile long downUntil = 0;
+
+    private volatile long secondaryUntil = 0;
+
+    private final AtomicInteger dropNextInserts = new AtomicInteger();
+
+    private volatile long faultEnd = 0;
+
+    private final AtomicLong recoveredAt = new AtomicLong();
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     */
+    WireProtocolServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "wire-protocol-server-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param latencyMicros
+     *            The time each insert takes before it is acknowledged
+     */
+    void setLatencyMicros(long latencyMicros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    /**
+     * @param retainDocuments
+     *            true to keep the inserted documents for getDocuments
+     */
+    void setRetainDocuments(boolean retainDocuments) {
+        this.retainDocuments = retainDocuments;
+    }
+
+    /**
+     * @return The documents inserted while they were retained
+     */
+    List<BSONObject> getDocuments() {
+        synchronized (documents) {
+            return new ArrayList<BSONObject>(documents);
+        }
+    }
+
+    long getDocumentsInserted() {
+        return documentsInserted.get();
+    }
+
+    long getInsertCommands() {
+        return insertCommands.get();
+    }
+
+    /**
+     * @return The bytes sent by clients, including message headers
+     */
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return The bytes of the replies, including message headers
+     */
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Holds the acknowledgement of inserts, without failing them.
+     *
+     * @param millis
+     *            The duration of the stall
+     */
+    void stall(long millis) {
+        stallUntil = fault(millis);
+    }
+
+    /**
+     * Fails every document of inserts with a write error.
+     *
+     * @param millis
+     *            The duration of the failures
+     */
+    void failInserts(long millis) {
+        failUntil = fault(millis);
+    }
+
+    /**
+     * Closes all connections, and closes new connections as soon as they are accepted.
+     *
+     * @param millis
+     *            The time during which the server is unreachable
+     */
+    void dropConnections(long millis) {
+        downUntil = fault(millis);
+        closeConnections();
+    }
+
+    /**
+     * Closes all connections, and reports that the server is no longer primary, so inserts are
+     * rejected with a NotMaster error.
+     *
+     * @param millis
+     *            The time until the server is primary again
+     */
+    void failover(long millis) {
+        secondaryUntil = fault(millis);
+        closeConnections();
+    }
+
+    /**
+     * Closes the connections of the next inserts after counting their documents as inserted, as
+     * if the server failed before acknowledging them.
+     *
+     * @param inserts
+     *            The number of inserts
+     */
+    void dropAfterInsert(int inserts) {
+        fault(0);
+        dropNextInserts.set(inserts);
+    }
+
+    /**
+     * @return The time of the first insert acknowledged after the last fault ended, or 0 if
+     *         there was none yet
+     */
+    long getRecoveredAt() {
+        return recoveredAt.get();
+    }
+
+    /**
+     * @return The time the last fault ended
+     */
+    long getFaultEnd() {
+        return faultEnd;
+    }
+
+    private long fault(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        faultEnd = end;
+        recoveredAt.set(0);
+        return end;
+    }
+
+    private void closeConnections() {
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                if (System.currentTimeMillis() < downUntil) {
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                final int connectionId = connectionIds.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket, connectionId);
+                    }
+                }, "wire-protocol-connection-" + connectionId);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket, int connectionId) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] header = new byte[HEADER_SIZE];
+            while (!closed) {
+                in.readFully(header);
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                int length = headerBuffer.getInt();
+                int requestId = headerBuffer.getInt();
+                headerBuffer.getInt();
+                int opCode = headerBuffer.getInt();
+                byte[] body = new byte[length - HEADER_SIZE];
+                in.readFully(body);
+                bytesReceived.addAndGet(length);
+
+                ByteBuffer message = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+                switch (opCode) {
+                case OP_QUERY:
+                    onQuery(message, requestId, connectionId, out);
+                    break;
+                case OP_MSG:
+                    onMessage(message, requestId, connectionId, out);
+                    break;
+                case OP_INSERT:
+                    message.getInt();
+                    readCString(message);
+                    List<BSONObject> inserted = new ArrayList<BSONObject>();
+                    while (message.hasRemaining()) {
+                        inserted.add(readDocument(message));
+                    }
+                    insert(inserted);
+                    break;
+                default:
+                    throw new IOException("Unsupported op code " + opCode);
+                }
+            }
+        } catch (EOFException e) {
+            // Client closed the connection
+        } catch (IOException e) {
+            // Closed
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void onQuery(ByteBuffer message, int requestId, int connectionId, OutputStream out)
+            throws IOException {
+        message.getInt();
+        String collection = readCString(message);
+        message.getInt();
+        message.getInt();
+        BSONObject query = readDocument(message);
+        if (!collection.endsWith(".$cmd")) {
+            throw new IOException("Queries are not supported: " + collection);
+        }
+        if (query.containsField("$query")) {
+            query = (BSONObject) query.get("$query");
+        }
+        byte[] reply = BSON.encode(command(query, connectionId));
+
+        ByteBuffer buffer = newMessage(HEADER_SIZE + 20 + reply.length, requestId, OP_REPLY);
+        buffer.putInt(0);
+        buffer.putLong(0);
+        buffer.putInt(0);
+        buffer.putInt(1);
+        buffer.put(reply);
+        send(buffer, out);
+    }
+
+    private void onMessage(ByteBuffer message, int requestId, int connectionId, OutputStream out)
+            throws IOException {
+        int flags = message.getInt();
+        int end = message.limit() - (((flags & CHECKSUM_PRESENT) != 0) ? 4 : 0);
+        BSONObject command = null;
+        while (message.position() < end) {
+            byte kind = message.get();
+            if (kind == 0) {
+                command = readDocument(message);
+            } else {
+                // A document sequence, e.g. the documents of an insert
+                int sectionEnd = message.position() + message.getInt();
+                String identifier = readCString(message);
+                BasicBSONList sequence = new BasicBSONList();
+                while (message.position() < sectionEnd) {
+                    sequence.add(readDocument(message));
+                }
+                if (command == null) {
+                    command = new BasicBSONObject();
+                }
+                command.put(identifier, sequence);
+            }
+        }
+        if (command == null) {
+            throw new IOException("OP_MSG without a body");
+        }
+        BSONObject reply = command(command, connectionId);
+        if ((flags & MORE_TO_COME) != 0) {
+            return;
+        }
+        byte[] encoded = BSON.encode(reply);
+        ByteBuffer buffer = newMessage(HEADER_SIZE + 5 + encoded.length, requestId, OP_MSG);
+        buffer.putInt(0);
+        buffer.put((byte) 0);
+        buffer.put(encoded);
+        send(buffer, out);
+    }
+
+    /**
+     * Executes a command.
+     *
+     * @return The reply
+     */
+    private BSONObject command(BSONObject command, int connectionId) throws IOException {
+        String name = command.keySet().iterator().next();
+        BasicBSONObject reply = new BasicBSONObject();
+        if ("ismaster".equalsIgnoreCase(name) || "hello".equals(name)) {
+            boolean primary = System.currentTimeMillis() >= secondaryUntil;
+            reply.put("ismaster", primary);
+            reply.put("isWritablePrimary", primary);
+            reply.put("secondary", !primary);
+            reply.put("maxBsonObjectSize", 16 * 1024 * 1024);
+            reply.put("maxMessageSizeBytes", 48000000);
+            reply.put("maxWriteBatchSize", 1000);
+            reply.put("localTime", new Date());
+            reply.put("connectionId", connectionId);
+            reply.put("minWireVersion", 0);
+            reply.put("maxWireVersion", 6);
+        } else if ("buildinfo".equalsIgnoreCase(name)) {
+            reply.put("version", "3.6.0");
+            reply.put("versionArray", new int[] { 3, 6, 0, 0 });
+        } else if ("getlasterror".equalsIgnoreCase(name)) {
+            reply.put("connectionId", connectionId);
+            reply.put("n", 0);
+            reply.put("err", null);
+        } else if ("insert".equals(name)) {
+            List<?> inserted = (List<?>) command.get("documents");
+            @SuppressWarnings("unchecked")
+            List<BSONObject> documents = (List<BSONObject>) inserted;
+            long now = System.currentTimeMillis();
+            if (now < secondaryUntil) {
+                return error(reply, 10107, "not master");
+            }
+            if (now < failUntil) {
+                BasicBSONList writeErrors = new BasicBSONList();
+                for (int i = 0; i < documents.size(); i++) {
+                    writeErrors.add(new BasicBSONObject("index", i).append("code", 100).append(
+                            "errmsg", "Simulated write failure"));
+                }
+                reply.put("n", 0);
+                reply.put("writeErrors", writeErrors);
+                reply.put("ok", 1.0);
+                return reply;
+            }
+            insert(documents);
+            if (dropNextInserts.get() > 0 && dropNextInserts.getAndDecrement() > 0) {
+                throw new IOException("Simulated failure before the acknowledgement");
+            }
+            reply.put("n", inserted.size());
+            if (now >= faultEnd) {
+                recoveredAt.compareAndSet(0, now);
+            }
+        } else if (!"ping".equals(name)) {
+            return error(reply, 59, "no such command: '" + name + "'");
+        }
+        reply.put("ok", 1.0);
+        return reply;
+    }
+
+    private static BSONObject error(BasicBSONObject reply, int code, String message) {
+        reply.put("ok", 0.0);
+        reply.put("errmsg", message);
+        reply.put("code", code);
+        return reply;
+    }
+
+    private void insert(List<BSONObject> inserted) {
+        for (long stall = stallUntil - System.currentTimeMillis(); stall > 0 && !closed; stall = stallUntil
+                - System.currentTimeMillis()) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(stall));
+        }
+        long latency = latencyNanos;
+        if (latency > 0) {
+            long deadline = System.nanoTime() + latency;
+            for (long remaining = latency; remaining > 0; remaining = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        insertCommands.incrementAndGet();
+        documentsInserted.addAndGet(inserted.size());
+        if (retainDocuments) {
+            documents.addAll(inserted);
+        }
+    }
+
+    private ByteBuffer newMessage(int length, int responseTo, int opCode) {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(length);
+        buffer.putInt(responseIds.incrementAndGet());
+        buffer.putInt(responseTo);
+        buffer.putInt(opCode);
+        return buffer;
+    }
+
+    private void send(ByteBuffer buffer, OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+        bytesSent.addAndGet(buffer.position());
+    }
+
+    private static String readCString(ByteBuffer buffer) {
+        int start = buffer.position();
+        while (buffer.get() != 0) {
+            // Find the terminating null
+        }
+        return new String(buffer.array(), start, buffer.position() - start - 1,
+                StandardCharsets.UTF_8);
+    }
+
+    private static BSONObject readDocument(ByteBuffer buffer) {
+        int size = buffer.getInt(buffer.position());
+        byte[] document = new byte[size];
+        buffer.get(document);
+        return new BasicBSONDecoder().readObject(document);
+    }
+}